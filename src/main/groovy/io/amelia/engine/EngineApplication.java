@@ -19,6 +19,7 @@ import io.amelia.engine.config.ConfigData;
 import io.amelia.engine.config.ConfigRegistry;
 import io.amelia.engine.log.L;
 import io.amelia.engine.looper.LooperRouter;
+import io.amelia.engine.scripting.ScriptingPrecompiler;
 import io.amelia.engine.storage.StorageBus;
 import io.amelia.extra.UtilityEncrypt;
 import io.amelia.extra.UtilityObjects;
@@ -159,6 +160,8 @@ public final class EngineApplication implements ParcelReceiver, ParcelInterface,
 	{
 		//if ( currentRunlevel == Runlevel.MAINLOOP )
 		// LooperRouter.getMainLooper().postTaskRepeatingLater( entry -> Tasks.heartbeat( LooperRouter.getMainLooper().getLastPolledMillis() ), 50L, 50L );
+		ScriptingPrecompiler.onRunlevelChange( currentRunlevel );
+
 		if ( currentRunlevel == Runlevel.SHUTDOWN )
 		{
 			L.info( "Saving Configuration..." );
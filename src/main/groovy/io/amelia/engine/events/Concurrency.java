@@ -0,0 +1,33 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+/**
+ * Represents how a synchronous event is serialized against other events while being dispatched
+ */
+public enum Concurrency
+{
+	/**
+	 * Event is serialized against every other event also declared as GLOBAL.
+	 * <p/>
+	 * This is the legacy behavior and should only be used by events whose listeners mutate shared engine state.
+	 */
+	GLOBAL,
+	/**
+	 * Event is serialized against other events of the exact same class, listeners observe one event of this type at a time.
+	 */
+	ORDERED,
+	/**
+	 * Event is never serialized, the same event type may be dispatched on any number of threads simultaneously.
+	 * <p/>
+	 * Listeners of these events must be thread-safe.
+	 */
+	CONCURRENT
+}
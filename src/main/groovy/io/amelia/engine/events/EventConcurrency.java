@@ -0,0 +1,32 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation to declare the ordering guarantee of a synchronous event class.
+ * <p>
+ * Events without this annotation are {@link Concurrency#ORDERED}. The annotation is inherited, so subclasses follow their parent unless they declare otherwise.
+ */
+@Target( ElementType.TYPE )
+@Retention( RetentionPolicy.RUNTIME )
+@Inherited
+public @interface EventConcurrency
+{
+	/**
+	 * Define how this event is serialized against other events.
+	 */
+	Concurrency value() default Concurrency.ORDERED;
+}
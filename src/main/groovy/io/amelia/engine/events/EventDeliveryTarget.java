@@ -0,0 +1,94 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import io.amelia.engine.looper.LooperTaskTrait;
+
+/**
+ * Represents where a {@link ListenerMailbox} delivers its events, i.e., the thread the listener runs on.
+ */
+public interface EventDeliveryTarget
+{
+	/**
+	 * Delivers on the provided executor, delayed deliveries are timed by a shared daemon scheduler and then handed to the executor.
+	 *
+	 * @param executor The executor
+	 *
+	 * @return The delivery target
+	 */
+	static EventDeliveryTarget of( @Nonnull Executor executor )
+	{
+		return new EventDeliveryTarget()
+		{
+			@Override
+			public void execute( @Nonnull Runnable task )
+			{
+				executor.execute( task );
+			}
+
+			@Override
+			public void executeLater( @Nonnull Runnable task, long delayMillis )
+			{
+				Scheduler.SCHEDULER.schedule( () -> executor.execute( task ), delayMillis, TimeUnit.MILLISECONDS );
+			}
+		};
+	}
+
+	/**
+	 * Delivers on the provided looper, e.g., a {@link io.amelia.engine.looper.DefaultLooper} owned by the listener.
+	 *
+	 * @param looper The looper
+	 *
+	 * @return The delivery target
+	 */
+	static EventDeliveryTarget of( @Nonnull LooperTaskTrait looper )
+	{
+		return new EventDeliveryTarget()
+		{
+			@Override
+			public void execute( @Nonnull Runnable task )
+			{
+				looper.postTask( entry -> task.run() );
+			}
+
+			@Override
+			public void executeLater( @Nonnull Runnable task, long delayMillis )
+			{
+				looper.postTaskLater( entry -> task.run(), delayMillis );
+			}
+		};
+	}
+
+	void execute( @Nonnull Runnable task );
+
+	void executeLater( @Nonnull Runnable task, @Nonnegative long delayMillis );
+
+	final class Scheduler
+	{
+		static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "EventDeliveryScheduler" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		private Scheduler()
+		{
+			// Static Access
+		}
+	}
+}
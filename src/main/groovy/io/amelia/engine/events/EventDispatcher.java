@@ -12,10 +12,13 @@ package io.amelia.engine.events;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nonnull;
 
@@ -29,9 +32,34 @@ import io.amelia.support.RegistrarContext;
 
 public class EventDispatcher
 {
+	private static final Object NO_LOCK = new Object();
 	private static Map<Class<? extends AbstractEvent>, EventHandlers> handlers = new ConcurrentHashMap<>();
+	private static List<ListenerMailbox<?>> mailboxes = new CopyOnWriteArrayList<>();
 	private static EventDispatcher instance;
 	private static Object lock = new Object();
+	/**
+	 * Resolves the monitor each event class is serialized on, computed once per class from the {@link EventConcurrency} annotation.
+	 */
+	private static final ClassValue<Object> locks = new ClassValue<Object>()
+	{
+		@Override
+		protected Object computeValue( Class<?> eventClass )
+		{
+			switch ( getConcurrency( eventClass ) )
+			{
+				case GLOBAL:
+					return lock;
+				case CONCURRENT:
+					return NO_LOCK;
+				default:
+					return new Object();
+			}
+		}
+	};
+	/**
+	 * Tracks how many synchronous events the current thread is dispatching, used to detect async events fired from inside synchronous code.
+	 */
+	private static final ThreadLocal<int[]> syncDepth = ThreadLocal.withInitial( () -> new int[1] );
 
 	/**
 	 * Calls an event with the given details.<br>
@@ -55,7 +83,7 @@ public class EventDispatcher
 
 	/**
 	 * Calls an event with the given details.<br>
-	 * This method only synchronizes when the event is not asynchronous.
+	 * This method only synchronizes when the event is not asynchronous, and then only as strictly as the event's {@link Concurrency} requires.
 	 *
 	 * @param event Event details
 	 *
@@ -65,17 +93,32 @@ public class EventDispatcher
 	{
 		if ( event.isAsynchronous() )
 		{
-			if ( Thread.holdsLock( lock ) )
+			if ( syncDepth.get()[0] > 0 )
 				throw new IllegalStateException( event.getEventName() + " cannot be triggered asynchronously from inside synchronized code." );
 			if ( EngineCore.isPrimaryThread() )
 				throw new IllegalStateException( event.getEventName() + " cannot be triggered asynchronously from primary server thread." );
 			fireEvent( event );
 		}
 		else
-			synchronized ( lock )
+		{
+			int[] depth = syncDepth.get();
+			depth[0]++;
+			try
 			{
-				fireEvent( event );
+				Object eventLock = locks.get( event.getClass() );
+				if ( eventLock == NO_LOCK )
+					fireEvent( event );
+				else
+					synchronized ( eventLock )
+					{
+						fireEvent( event );
+					}
+			}
+			finally
+			{
+				depth[0]--;
 			}
+		}
 
 		return event;
 	}
@@ -91,13 +134,18 @@ public class EventDispatcher
 
 	private static void fireEvent( @Nonnull AbstractEvent event ) throws EventException.Error
 	{
+		final boolean profiling = EventProfiler.isEnabled();
+		final long dispatchStart = profiling ? System.nanoTime() : 0L;
+
 		event.onEventPreCall();
 
-		for ( RegisteredListener registration : getEventListeners( event.getClass() ) )
+		for ( RegisteredListener registration : EventListenerResolver.resolve( event.getClass() ) )
 		{
 			if ( !registration.getRegistrar().isEnabled() )
 				continue;
 
+			final long start = profiling ? System.nanoTime() : 0L;
+
 			// TODO Future implementation; report exceptions to plugin developers.
 			try
 			{
@@ -121,22 +169,70 @@ public class EventDispatcher
 			{
 				L.severe( "Could not pass event " + event.getEventName() + " to " + registration.getRegistrar().getName(), ex );
 			}
+			finally
+			{
+				if ( profiling )
+					EventProfiler.recordListener( registration, event, System.nanoTime() - start );
+			}
 		}
 
 		event.onEventPostCall();
+
+		if ( profiling )
+			EventProfiler.recordEvent( event, System.nanoTime() - dispatchStart );
+	}
+
+	/**
+	 * Gets the {@link Concurrency} declared by the event class or one of its superclasses.
+	 *
+	 * @param eventClass The event class
+	 *
+	 * @return The declared concurrency, {@link Concurrency#ORDERED} if none was declared
+	 */
+	public static Concurrency getConcurrency( @Nonnull Class<?> eventClass )
+	{
+		EventConcurrency eventConcurrency = eventClass.getAnnotation( EventConcurrency.class );
+		return eventConcurrency == null ? Concurrency.ORDERED : eventConcurrency.value();
 	}
 
+	/**
+	 * Gets every registered asynchronous listener mailbox, used to inspect delivery back-pressure.
+	 *
+	 * @return Unmodifiable list of mailboxes
+	 */
+	public static List<ListenerMailbox<?>> getMailboxes()
+	{
+		return Collections.unmodifiableList( mailboxes );
+	}
+
+	/**
+	 * Gets the listeners registered for exactly the provided event class, creating the list if none exists.
+	 * Listeners registered for superclasses are not included, see {@link #getResolvedListeners(Class)}.
+	 *
+	 * @param event The event class
+	 *
+	 * @return The handler list
+	 */
 	public static EventHandlers getEventListeners( @Nonnull Class<? extends AbstractEvent> event )
 	{
-		EventHandlers eventHandlers = handlers.get( event );
+		return handlers.computeIfAbsent( event, key -> new EventHandlers() );
+	}
 
-		if ( eventHandlers == null )
-		{
-			eventHandlers = new EventHandlers();
-			handlers.put( event, eventHandlers );
-		}
+	/**
+	 * Gets every listener that will receive an event of the provided class, including those registered for its superclasses, in the order they're called.
+	 *
+	 * @param event The concrete event class
+	 *
+	 * @return The resolved listeners
+	 */
+	public static List<RegisteredListener> getResolvedListeners( @Nonnull Class<? extends AbstractEvent> event )
+	{
+		return Collections.unmodifiableList( Arrays.asList( EventListenerResolver.resolve( event ) ) );
+	}
 
-		return eventHandlers;
+	static EventHandlers peekEventListeners( @Nonnull Class<? extends AbstractEvent> event )
+	{
+		return handlers.get( event );
 	}
 
 	public static void listen( @Nonnull final RegistrarContext registrar, @Nonnull final Object listener, @Nonnull final Method method ) throws EventException.Error
@@ -170,7 +266,7 @@ public class EventDispatcher
 				}
 			}
 
-		listen( registrar, eventHandler.priority(), eventClass, event -> {
+		listen( registrar, eventHandler.priority(), eventClass, method.toGenericString(), event -> {
 			try
 			{
 				if ( !eventClass.isAssignableFrom( event.getClass() ) )
@@ -230,8 +326,40 @@ public class EventDispatcher
 		getEventListeners( event ).register( new RegisteredListener<>( registrar, priority, listener ) );
 	}
 
+	private static <E extends AbstractEvent> void listen( @Nonnull RegistrarContext registrar, @Nonnull Priority priority, @Nonnull Class<E> event, @Nonnull String handlerName, @Nonnull ConsumerWithException<E, EventException.Error> listener )
+	{
+		getEventListeners( event ).register( new RegisteredListener<>( registrar, priority, listener, handlerName ) );
+	}
+
+	static <E extends AbstractEvent> void listen( @Nonnull RegistrarContext registrar, @Nonnull Priority priority, @Nonnull Class<E> event, @Nonnull ListenerMailbox<E> mailbox )
+	{
+		mailboxes.add( mailbox );
+		listen( registrar, priority, event, ListenerMailbox.class.getSimpleName() + "<" + event.getName() + ">", mailbox::offer );
+	}
+
+	/**
+	 * Starts the registration of a listener that receives events on its own {@link EventDeliveryTarget} instead of the dispatching thread.
+	 * <pre>
+	 * EventDispatcher.listenAsync( registrar, PermissibleEntityEvent.class, EventDeliveryTarget.of( looper ) )
+	 *   .coalesceBy( event -&gt; event.getEntity() )
+	 *   .batchWindow( 250 )
+	 *   .listen( event -&gt; ... );
+	 * </pre>
+	 *
+	 * @param registrar Registrar of event registration
+	 * @param event     Event class to register
+	 * @param target    Where the events are delivered
+	 *
+	 * @return The mailbox builder
+	 */
+	public static <E extends AbstractEvent> ListenerMailbox.Builder<E> listenAsync( @Nonnull RegistrarContext registrar, @Nonnull Class<E> event, @Nonnull EventDeliveryTarget target )
+	{
+		return new ListenerMailbox.Builder<>( registrar, event, target );
+	}
+
 	public static void unregisterEvents( @Nonnull RegistrarContext registrar )
 	{
 		EventHandlers.unregisterAll( registrar );
+		mailboxes.removeIf( mailbox -> mailbox.getRegistrar().equals( registrar ) );
 	}
 }
@@ -27,6 +27,22 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 {
 	private static final List<EventHandlers> handlers = new ArrayList<>();
 
+	/**
+	 * Get every registered listener across all handler lists
+	 *
+	 * @return the list of registered listeners
+	 */
+	public static ArrayList<RegisteredListener> getAllRegisteredListeners()
+	{
+		ArrayList<RegisteredListener> listeners = new ArrayList<>();
+		synchronized ( handlers )
+		{
+			for ( EventHandlers handler : handlers )
+				listeners.addAll( handler.getRegisteredListeners() );
+		}
+		return listeners;
+	}
+
 	/**
 	 * Get a specific creator's registered listeners associated with this handler list
 	 *
@@ -65,6 +81,7 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 						list.clear();
 				}
 		}
+		EventListenerResolver.invalidate();
 	}
 
 	/**
@@ -87,6 +104,11 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 	{
 		for ( Priority o : Priority.values() )
 			listeners.put( o, new ArrayList<>() );
+
+		synchronized ( handlers )
+		{
+			handlers.add( this );
+		}
 	}
 
 	@Override
@@ -95,7 +117,7 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 		return getRegisteredListeners().get( index );
 	}
 
-	public List<RegisteredListener> getRegisteredListeners()
+	public synchronized List<RegisteredListener> getRegisteredListeners()
 	{
 		List<RegisteredListener> registeredListeners = new ArrayList<>();
 		for ( List<RegisteredListener> listOfListeners : listeners.values() )
@@ -113,6 +135,7 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 		if ( listeners.get( listener.getPriority() ).contains( listener ) )
 			throw new IllegalStateException( "This listener is already registered to priority " + listener.getPriority().toString() );
 		listeners.get( listener.getPriority() ).add( listener );
+		EventListenerResolver.invalidate();
 	}
 
 	/**
@@ -143,6 +166,7 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 			for ( ListIterator<RegisteredListener> i = list.listIterator(); i.hasNext(); )
 				if ( i.next().getRegistrar().equals( registrar ) )
 					i.remove();
+		EventListenerResolver.invalidate();
 	}
 
 	/**
@@ -153,5 +177,6 @@ public class EventHandlers extends AbstractList<RegisteredListener>
 	public synchronized void unregister( RegisteredListener listener )
 	{
 		listeners.get( listener.getPriority() ).remove( listener );
+		EventListenerResolver.invalidate();
 	}
 }
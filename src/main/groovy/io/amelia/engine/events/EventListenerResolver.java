@@ -0,0 +1,119 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Resolves the complete listener chain for a concrete event class.
+ * <p>
+ * The chain is the merge of every {@link EventHandlers} registered for the event class and each of its superclasses up to {@link AbstractEvent},
+ * ordered by {@link Priority} and, within a priority, most specific class first. Chains are computed once per class and kept until any
+ * listener is registered or unregistered, so dispatching to a subclass costs the same as an exact match.
+ */
+final class EventListenerResolver
+{
+	private static final RegisteredListener[] EMPTY = new RegisteredListener[0];
+	private static final ClassValue<Holder> resolved = new ClassValue<Holder>()
+	{
+		@Override
+		protected Holder computeValue( Class<?> eventClass )
+		{
+			return new Holder();
+		}
+	};
+	private static final AtomicLong version = new AtomicLong();
+
+	private static RegisteredListener[] compute( @Nonnull Class<? extends AbstractEvent> eventClass )
+	{
+		EnumMap<Priority, List<RegisteredListener>> merged = null;
+
+		for ( Class<?> clazz = eventClass; clazz != null && AbstractEvent.class.isAssignableFrom( clazz ); clazz = clazz.getSuperclass() )
+		{
+			EventHandlers eventHandlers = EventDispatcher.peekEventListeners( clazz.asSubclass( AbstractEvent.class ) );
+			if ( eventHandlers == null )
+				continue;
+
+			for ( RegisteredListener listener : eventHandlers.getRegisteredListeners() )
+			{
+				if ( merged == null )
+					merged = new EnumMap<>( Priority.class );
+				merged.computeIfAbsent( listener.getPriority(), priority -> new ArrayList<>() ).add( listener );
+			}
+		}
+
+		if ( merged == null )
+			return EMPTY;
+
+		List<RegisteredListener> result = new ArrayList<>();
+		for ( List<RegisteredListener> list : merged.values() )
+			result.addAll( list );
+		return result.toArray( EMPTY );
+	}
+
+	/**
+	 * Discards every resolved chain, called whenever a listener is registered or unregistered.
+	 */
+	static void invalidate()
+	{
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Gets the priority ordered listeners that will receive an event of the provided class.
+	 * The returned array is shared and must not be modified.
+	 *
+	 * @param eventClass The concrete event class
+	 *
+	 * @return The listeners
+	 */
+	static RegisteredListener[] resolve( @Nonnull Class<? extends AbstractEvent> eventClass )
+	{
+		Holder holder = resolved.get( eventClass );
+		Snapshot snapshot = holder.snapshot;
+		// Read the version before computing, a registration made while computing will force the next call to recompute.
+		long current = version.get();
+
+		if ( snapshot == null || snapshot.version != current )
+		{
+			snapshot = new Snapshot( current, compute( eventClass ) );
+			holder.snapshot = snapshot;
+		}
+
+		return snapshot.listeners;
+	}
+
+	private EventListenerResolver()
+	{
+		// Static Access
+	}
+
+	private static class Holder
+	{
+		volatile Snapshot snapshot;
+	}
+
+	private static class Snapshot
+	{
+		final RegisteredListener[] listeners;
+		final long version;
+
+		Snapshot( long version, RegisteredListener[] listeners )
+		{
+			this.version = version;
+			this.listeners = listeners;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import io.amelia.engine.log.L;
+
+/**
+ * Opt-in timing of event dispatch.
+ * <p>
+ * When enabled, every call to a {@link RegisteredListener} and every dispatch of an event type is timed and any listener call exceeding
+ * the slow listener threshold is logged with its registrar and handler. When disabled, which is the default, the dispatcher only
+ * performs a single volatile read per event.
+ */
+public final class EventProfiler
+{
+	private static final Map<Class<? extends AbstractEvent>, Timings> eventTypes = new ConcurrentHashMap<>();
+	private static volatile boolean enabled = false;
+	private static volatile long slowListenerThreshold = TimeUnit.MILLISECONDS.toNanos( 50 );
+
+	public static long getSlowListenerThreshold( @Nonnull TimeUnit unit )
+	{
+		return unit.convert( slowListenerThreshold, TimeUnit.NANOSECONDS );
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	static void recordEvent( @Nonnull AbstractEvent event, long nanos )
+	{
+		eventTypes.computeIfAbsent( event.getClass(), key -> new Timings() ).record( nanos );
+	}
+
+	static void recordListener( @Nonnull RegisteredListener<?> listener, @Nonnull AbstractEvent event, long nanos )
+	{
+		listener.getTimings().record( nanos );
+		listener.recordEventClass( event.getClass() );
+
+		long threshold = slowListenerThreshold;
+		if ( threshold > 0 && nanos > threshold )
+			L.warning( String.format( "The creator '%s' took %sms to handle %s on listener '%s', which exceeds the slow listener threshold.", listener.getRegistrar().getName(), TimeUnit.NANOSECONDS.toMillis( nanos ), event.getEventName(), listener.getHandlerName() ) );
+	}
+
+	/**
+	 * Resets the timings of every listener and event type
+	 */
+	public static void reset()
+	{
+		eventTypes.clear();
+		for ( RegisteredListener<?> listener : EventHandlers.getAllRegisteredListeners() )
+			listener.reset();
+	}
+
+	public static void setEnabled( boolean enabled )
+	{
+		EventProfiler.enabled = enabled;
+	}
+
+	/**
+	 * Sets the duration a single listener call may take before it's logged as slow, zero disables the log.
+	 *
+	 * @param threshold The threshold
+	 * @param unit      The threshold unit
+	 */
+	public static void setSlowListenerThreshold( @Nonnegative long threshold, @Nonnull TimeUnit unit )
+	{
+		slowListenerThreshold = unit.toNanos( threshold );
+	}
+
+	/**
+	 * Takes a snapshot of the current timings, sorted with the most total time first.
+	 *
+	 * @return The snapshot
+	 */
+	public static Snapshot snapshot()
+	{
+		List<ListenerSnapshot> listeners = new ArrayList<>();
+		for ( RegisteredListener<?> listener : EventHandlers.getAllRegisteredListeners() )
+			if ( listener.getTimings().getCount() > 0 )
+				listeners.add( new ListenerSnapshot( listener ) );
+		listeners.sort( ( left, right ) -> Long.compare( right.getTotalNanos(), left.getTotalNanos() ) );
+
+		List<EventTypeSnapshot> events = new ArrayList<>();
+		for ( Map.Entry<Class<? extends AbstractEvent>, Timings> entry : eventTypes.entrySet() )
+			events.add( new EventTypeSnapshot( entry.getKey(), entry.getValue() ) );
+		events.sort( ( left, right ) -> Long.compare( right.getTotalNanos(), left.getTotalNanos() ) );
+
+		return new Snapshot( System.currentTimeMillis(), listeners, events );
+	}
+
+	private EventProfiler()
+	{
+		// Static Access
+	}
+
+	public static class EventTypeSnapshot extends TimingsSnapshot
+	{
+		private final Class<? extends AbstractEvent> eventClass;
+
+		private EventTypeSnapshot( Class<? extends AbstractEvent> eventClass, Timings timings )
+		{
+			super( timings );
+			this.eventClass = eventClass;
+		}
+
+		public Class<? extends AbstractEvent> getEventClass()
+		{
+			return eventClass;
+		}
+
+		/**
+		 * Gets the average number of dispatches per second since the timings were started or last reset.
+		 */
+		public double getThroughput()
+		{
+			long elapsed = System.currentTimeMillis() - getSince();
+			return elapsed <= 0 ? 0 : getCount() * 1000D / elapsed;
+		}
+	}
+
+	public static class ListenerSnapshot extends TimingsSnapshot
+	{
+		private final Class<? extends AbstractEvent> eventClass;
+		private final String handlerName;
+		private final Priority priority;
+		private final String registrarName;
+
+		private ListenerSnapshot( RegisteredListener<?> listener )
+		{
+			super( listener.getTimings() );
+			registrarName = listener.getRegistrar().getName();
+			handlerName = listener.getHandlerName();
+			priority = listener.getPriority();
+			eventClass = listener.getEventClass();
+		}
+
+		public Class<? extends AbstractEvent> getEventClass()
+		{
+			return eventClass;
+		}
+
+		public String getHandlerName()
+		{
+			return handlerName;
+		}
+
+		public Priority getPriority()
+		{
+			return priority;
+		}
+
+		public String getRegistrarName()
+		{
+			return registrarName;
+		}
+	}
+
+	public static class Snapshot
+	{
+		private final List<EventTypeSnapshot> events;
+		private final List<ListenerSnapshot> listeners;
+		private final long taken;
+
+		private Snapshot( long taken, List<ListenerSnapshot> listeners, List<EventTypeSnapshot> events )
+		{
+			this.taken = taken;
+			this.listeners = Collections.unmodifiableList( listeners );
+			this.events = Collections.unmodifiableList( events );
+		}
+
+		public List<EventTypeSnapshot> getEvents()
+		{
+			return events;
+		}
+
+		public List<ListenerSnapshot> getListeners()
+		{
+			return listeners;
+		}
+
+		public long getTaken()
+		{
+			return taken;
+		}
+	}
+
+	/**
+	 * Lock-free latency accumulator, latencies are bucketed by power of two nanoseconds to estimate percentiles.
+	 */
+	static class Timings
+	{
+		private static final int BUCKETS = 64;
+
+		private final LongAdder count = new LongAdder();
+		private final AtomicLongArray histogram = new AtomicLongArray( BUCKETS );
+		private final AtomicLong max = new AtomicLong();
+		private final LongAdder total = new LongAdder();
+		private volatile long since = System.currentTimeMillis();
+
+		long getCount()
+		{
+			return count.sum();
+		}
+
+		long getMax()
+		{
+			return max.get();
+		}
+
+		/**
+		 * Estimates the latency at the requested percentile, the result is the upper bound of the matching bucket capped to the max.
+		 */
+		long getPercentile( double percentile )
+		{
+			long[] buckets = new long[BUCKETS];
+			long sum = 0;
+			for ( int i = 0; i < BUCKETS; i++ )
+				sum += buckets[i] = histogram.get( i );
+			if ( sum == 0 )
+				return 0;
+
+			long rank = ( long ) Math.ceil( sum * percentile );
+			long seen = 0;
+			for ( int i = 0; i < BUCKETS; i++ )
+			{
+				seen += buckets[i];
+				if ( seen >= rank )
+					return Math.min( i == BUCKETS - 1 ? Long.MAX_VALUE : ( 1L << i + 1 ) - 1, getMax() );
+			}
+			return getMax();
+		}
+
+		long getSince()
+		{
+			return since;
+		}
+
+		long getTotal()
+		{
+			return total.sum();
+		}
+
+		void record( long nanos )
+		{
+			if ( nanos < 0 )
+				nanos = 0;
+
+			count.increment();
+			total.add( nanos );
+			histogram.incrementAndGet( Math.min( BUCKETS - 1, 63 - Long.numberOfLeadingZeros( nanos | 1 ) ) );
+
+			long current;
+			while ( nanos > ( current = max.get() ) )
+				if ( max.compareAndSet( current, nanos ) )
+					break;
+		}
+
+		void reset()
+		{
+			count.reset();
+			total.reset();
+			max.set( 0 );
+			for ( int i = 0; i < BUCKETS; i++ )
+				histogram.set( i, 0 );
+			since = System.currentTimeMillis();
+		}
+	}
+
+	public static class TimingsSnapshot
+	{
+		private final long count;
+		private final long max;
+		private final long p99;
+		private final long since;
+		private final long total;
+
+		private TimingsSnapshot( Timings timings )
+		{
+			count = timings.getCount();
+			total = timings.getTotal();
+			max = timings.getMax();
+			p99 = timings.getPercentile( 0.99 );
+			since = timings.getSince();
+		}
+
+		public long getAverageNanos()
+		{
+			return count == 0 ? 0 : total / count;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public long getMaxNanos()
+		{
+			return max;
+		}
+
+		public long getP99Nanos()
+		{
+			return p99;
+		}
+
+		/**
+		 * Gets the epoch millis these timings were started or last reset.
+		 */
+		public long getSince()
+		{
+			return since;
+		}
+
+		public long getTotalNanos()
+		{
+			return total;
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.events;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import io.amelia.engine.log.L;
+import io.amelia.support.ConsumerWithException;
+import io.amelia.support.RegistrarContext;
+
+/**
+ * Queues events for a single asynchronous listener and delivers them on the listener's own {@link EventDeliveryTarget}.
+ * <p>
+ * Events are delivered in the order they were dispatched. When a coalescing key is set, an event whose key is already waiting
+ * in the mailbox replaces the waiting event, so a burst such as repeated {@link io.amelia.engine.permissions.event.PermissibleEntityEvent.Action#PERMISSIONS_CHANGED}
+ * for one entity is delivered once per batch window.
+ * <p>
+ * Since delivery happens after the dispatcher has returned, these listeners can't cancel or otherwise influence the event.
+ */
+public final class ListenerMailbox<E extends AbstractEvent>
+{
+	private final long batchWindow;
+	private final ConsumerWithException<List<E>, EventException.Error> batchListener;
+	private final int capacity;
+	private final Function<E, Object> coalesceKey;
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Class<E> eventClass;
+	private final ConsumerWithException<E, EventException.Error> listener;
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final AtomicLong offered = new AtomicLong();
+	private final Map<Object, E> pending = new LinkedHashMap<>();
+	private final RegistrarContext registrar;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final EventDeliveryTarget target;
+	private int maxQueued;
+	private long scheduledAt;
+
+	private ListenerMailbox( Builder<E> builder )
+	{
+		this.registrar = builder.registrar;
+		this.eventClass = builder.eventClass;
+		this.target = builder.target;
+		this.listener = builder.listener;
+		this.batchListener = builder.batchListener;
+		this.coalesceKey = builder.coalesceKey;
+		this.batchWindow = builder.batchWindow;
+		this.capacity = builder.capacity;
+	}
+
+	private void deliver( List<E> batch )
+	{
+		if ( batchListener != null )
+		{
+			try
+			{
+				batchListener.accept( batch );
+			}
+			catch ( Throwable ex )
+			{
+				L.severe( "Could not pass a batch of " + batch.size() + " " + eventClass.getSimpleName() + " events to " + registrar.getName(), ex );
+			}
+			delivered.addAndGet( batch.size() );
+		}
+		else
+			for ( E event : batch )
+			{
+				try
+				{
+					listener.accept( event );
+				}
+				catch ( Throwable ex )
+				{
+					L.severe( "Could not pass event " + event.getEventName() + " to " + registrar.getName(), ex );
+				}
+				delivered.incrementAndGet();
+			}
+	}
+
+	private void drain()
+	{
+		List<E> batch;
+		synchronized ( pending )
+		{
+			long latency = System.currentTimeMillis() - scheduledAt;
+			if ( latency > maxLatency.get() )
+				maxLatency.set( latency );
+
+			batch = new ArrayList<>( pending.values() );
+			pending.clear();
+			scheduled.set( false );
+		}
+
+		if ( batch.size() > 0 )
+			deliver( batch );
+	}
+
+	public long getBatchWindow()
+	{
+		return batchWindow;
+	}
+
+	/**
+	 * Gets the number of events that were replaced by a newer event with the same coalescing key before being delivered.
+	 */
+	public long getCoalescedCount()
+	{
+		return coalesced.get();
+	}
+
+	public long getDeliveredCount()
+	{
+		return delivered.get();
+	}
+
+	/**
+	 * Gets the number of events discarded because the mailbox was at capacity, i.e., the listener isn't keeping up.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public Class<E> getEventClass()
+	{
+		return eventClass;
+	}
+
+	/**
+	 * Gets the longest time in milliseconds a batch waited between being scheduled and being delivered, including the batch window.
+	 */
+	public long getMaxLatencyMillis()
+	{
+		return maxLatency.get();
+	}
+
+	/**
+	 * Gets the highest number of events that were waiting in this mailbox at once.
+	 */
+	public int getMaxQueued()
+	{
+		synchronized ( pending )
+		{
+			return maxQueued;
+		}
+	}
+
+	public long getOfferedCount()
+	{
+		return offered.get();
+	}
+
+	/**
+	 * Gets the number of events currently waiting for delivery.
+	 */
+	public int getQueued()
+	{
+		synchronized ( pending )
+		{
+			return pending.size();
+		}
+	}
+
+	public RegistrarContext getRegistrar()
+	{
+		return registrar;
+	}
+
+	/**
+	 * Called by the dispatcher on the dispatching thread, queues the event and schedules a delivery if one isn't already pending.
+	 *
+	 * @param event The event
+	 */
+	void offer( @Nonnull E event )
+	{
+		offered.incrementAndGet();
+
+		synchronized ( pending )
+		{
+			Object key = coalesceKey == null ? event : coalesceKey.apply( event );
+			if ( pending.containsKey( key ) )
+			{
+				pending.put( key, event );
+				coalesced.incrementAndGet();
+				return;
+			}
+
+			if ( capacity > 0 && pending.size() >= capacity )
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+
+			pending.put( key, event );
+			if ( pending.size() > maxQueued )
+				maxQueued = pending.size();
+
+			if ( !scheduled.compareAndSet( false, true ) )
+				return;
+			scheduledAt = System.currentTimeMillis();
+		}
+
+		if ( batchWindow > 0 )
+			target.executeLater( this::drain, batchWindow );
+		else
+			target.execute( this::drain );
+	}
+
+	/**
+	 * Resets the delivery metrics of this mailbox
+	 */
+	public void reset()
+	{
+		offered.set( 0 );
+		delivered.set( 0 );
+		coalesced.set( 0 );
+		dropped.set( 0 );
+		maxLatency.set( 0 );
+		synchronized ( pending )
+		{
+			maxQueued = pending.size();
+		}
+	}
+
+	public static class Builder<E extends AbstractEvent>
+	{
+		private final Class<E> eventClass;
+		private final RegistrarContext registrar;
+		private final EventDeliveryTarget target;
+		private ConsumerWithException<List<E>, EventException.Error> batchListener;
+		private long batchWindow = 0;
+		private int capacity = 0;
+		private Function<E, Object> coalesceKey;
+		private ConsumerWithException<E, EventException.Error> listener;
+		private Priority priority = Priority.NORMAL;
+
+		public Builder( @Nonnull RegistrarContext registrar, @Nonnull Class<E> eventClass, @Nonnull EventDeliveryTarget target )
+		{
+			this.registrar = registrar;
+			this.eventClass = eventClass;
+			this.target = target;
+		}
+
+		/**
+		 * Sets how long the first queued event waits for more events before the batch is delivered.
+		 * Zero, the default, delivers as soon as the target gets to it.
+		 */
+		public Builder<E> batchWindow( @Nonnegative long batchWindow )
+		{
+			this.batchWindow = batchWindow;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of events that may wait in the mailbox, newer events are dropped once reached.
+		 * Zero, the default, is unbounded.
+		 */
+		public Builder<E> capacity( @Nonnegative int capacity )
+		{
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * Sets the key used to coalesce waiting events, an event replaces a waiting event with an equal key.
+		 */
+		public Builder<E> coalesceBy( @Nonnull Function<E, Object> coalesceKey )
+		{
+			this.coalesceKey = coalesceKey;
+			return this;
+		}
+
+		public Builder<E> priority( @Nonnull Priority priority )
+		{
+			this.priority = priority;
+			return this;
+		}
+
+		/**
+		 * Registers the mailbox with a listener receiving each event individually.
+		 */
+		public ListenerMailbox<E> listen( @Nonnull ConsumerWithException<E, EventException.Error> listener )
+		{
+			this.listener = listener;
+			return register();
+		}
+
+		/**
+		 * Registers the mailbox with a listener receiving every event of a batch at once.
+		 */
+		public ListenerMailbox<E> listenBatch( @Nonnull ConsumerWithException<List<E>, EventException.Error> batchListener )
+		{
+			this.batchListener = batchListener;
+			return register();
+		}
+
+		private ListenerMailbox<E> register()
+		{
+			ListenerMailbox<E> mailbox = new ListenerMailbox<>( this );
+			EventDispatcher.listen( registrar, priority, eventClass, mailbox );
+			return mailbox;
+		}
+	}
+}
@@ -21,20 +21,25 @@ public final class RegisteredListener<E extends AbstractEvent>
 		return class1;
 	}
 
+	private final String handlerName;
 	private final ConsumerWithException<E, EventException.Error> listener;
 	private final Priority priority;
 	private final RegistrarContext registrar;
-	private int count;
-	private Class<? extends AbstractEvent> eventClass;
-	private boolean multiple = false;
-	private long totalTime;
-	private boolean useTimings;
+	private final EventProfiler.Timings timings = new EventProfiler.Timings();
+	private volatile Class<? extends AbstractEvent> eventClass;
+	private volatile boolean multiple = false;
 
 	public RegisteredListener( final RegistrarContext registrar, final Priority priority, final ConsumerWithException<E, EventException.Error> listener )
+	{
+		this( registrar, priority, listener, listener.getClass().getName() );
+	}
+
+	public RegisteredListener( final RegistrarContext registrar, final Priority priority, final ConsumerWithException<E, EventException.Error> listener, final String handlerName )
 	{
 		this.registrar = registrar;
 		this.priority = priority;
 		this.listener = listener;
+		this.handlerName = handlerName;
 	}
 
 	/**
@@ -45,32 +50,6 @@ public final class RegisteredListener<E extends AbstractEvent>
 	 * @throws io.amelia.engine.events.EventException.Error If an event handler throws an exception.
 	 */
 	public void callEvent( final E event ) throws EventException.Error
-	{
-		if ( useTimings )
-		{
-			if ( event.isAsynchronous() )
-			{
-				callEvent0( event );
-				return;
-			}
-			count++;
-			Class<? extends AbstractEvent> newEventClass = event.getClass();
-			if ( eventClass == null )
-				eventClass = newEventClass;
-			else if ( !eventClass.equals( newEventClass ) )
-			{
-				multiple = true;
-				eventClass = getCommonSuperclass( newEventClass, eventClass ).asSubclass( AbstractEvent.class );
-			}
-			long start = System.nanoTime();
-			// super.callEvent( event );
-			totalTime += System.nanoTime() - start;
-		}
-		else
-			callEvent0( event );
-	}
-
-	private void callEvent0( final E event ) throws EventException.Error
 	{
 		if ( priority != Priority.MONITOR )
 		{
@@ -84,7 +63,7 @@ public final class RegisteredListener<E extends AbstractEvent>
 	}
 
 	/**
-	 * Gets the total times this listener has been called
+	 * Gets the total times this listener has been called while the {@link EventProfiler} was enabled
 	 *
 	 * Moved from TimedRegisteredListener
 	 *
@@ -92,7 +71,7 @@ public final class RegisteredListener<E extends AbstractEvent>
 	 */
 	public int getCount()
 	{
-		return count;
+		return ( int ) timings.getCount();
 	}
 
 	/**
@@ -110,6 +89,16 @@ public final class RegisteredListener<E extends AbstractEvent>
 		return eventClass;
 	}
 
+	/**
+	 * Gets a description of the handler, e.g., the annotated method signature
+	 *
+	 * @return The handler description
+	 */
+	public String getHandlerName()
+	{
+		return handlerName;
+	}
+
 	/**
 	 * Gets the priority for this registration
 	 *
@@ -130,8 +119,13 @@ public final class RegisteredListener<E extends AbstractEvent>
 		return registrar;
 	}
 
+	EventProfiler.Timings getTimings()
+	{
+		return timings;
+	}
+
 	/**
-	 * Gets the total time calls to this listener have taken
+	 * Gets the total time in nanoseconds calls to this listener have taken while the {@link EventProfiler} was enabled
 	 *
 	 * Moved from TimedRegisteredListener
 	 *
@@ -139,7 +133,7 @@ public final class RegisteredListener<E extends AbstractEvent>
 	 */
 	public long getTotalTime()
 	{
-		return totalTime;
+		return timings.getTotal();
 	}
 
 	/**
@@ -154,6 +148,18 @@ public final class RegisteredListener<E extends AbstractEvent>
 		return multiple;
 	}
 
+	void recordEventClass( Class<? extends AbstractEvent> newEventClass )
+	{
+		Class<? extends AbstractEvent> eventClass = this.eventClass;
+		if ( eventClass == null )
+			this.eventClass = newEventClass;
+		else if ( !eventClass.equals( newEventClass ) )
+		{
+			multiple = true;
+			this.eventClass = getCommonSuperclass( newEventClass, eventClass ).asSubclass( AbstractEvent.class );
+		}
+	}
+
 	/**
 	 * Resets the call count and total time for this listener
 	 *
@@ -161,12 +167,6 @@ public final class RegisteredListener<E extends AbstractEvent>
 	 */
 	public void reset()
 	{
-		count = 0;
-		totalTime = 0;
-	}
-
-	public void setUseTimings( boolean useTimings )
-	{
-		this.useTimings = useTimings;
+		timings.reset();
 	}
 }
@@ -12,12 +12,10 @@ package io.amelia.engine.looper;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
-import io.amelia.engine.EngineCore;
 import io.amelia.engine.looper.queue.DefaultQueue;
 import io.amelia.engine.looper.queue.EntryAbstract;
 import io.amelia.engine.looper.queue.EntryRunnable;
 import io.amelia.lang.ApplicationException;
-import io.amelia.extra.UtilityExceptions;
 import io.amelia.extra.UtilityObjects;
 
 public interface LooperTaskTrait
@@ -39,16 +37,12 @@ public interface LooperTaskTrait
 	 */
 	default TaskEntry postTask( LooperTask task )
 	{
-		EngineCore.L.info( "Task entry created!\n" + UtilityExceptions.getStackTrace() );
-
 		DefaultQueue queue = getQueue();
 		return queue.postEntry( new TaskEntry( queue, task, false ) );
 	}
 
 	default TaskEntry postTaskAsync( LooperTask task )
 	{
-		EngineCore.L.info( "Task entry created!\n" + UtilityExceptions.getStackTrace() );
-
 		DefaultQueue queue = getQueue();
 		return queue.postEntry( new TaskEntry( queue, task, true ) );
 	}
@@ -62,6 +62,22 @@ public abstract class Permissible
 		return checkPermission( perm, References.format( "" ) );
 	}
 
+	/**
+	 * Checks many permissions at once, see {@link PermissibleEntity#checkPermissions(PermissionNamespace[], References)}.
+	 */
+	public final PermissionBatch checkPermissions( References refs, String... perms )
+	{
+		PermissionNamespace[] namespaces = new PermissionNamespace[perms.length];
+		for ( int i = 0; i < perms.length; i++ )
+			namespaces[i] = PermissionNamespace.of( perms[i] );
+		return getPermissibleEntity().checkPermissions( namespaces, refs );
+	}
+
+	public final PermissionBatch checkPermissions( String... perms )
+	{
+		return checkPermissions( References.format( "" ), perms );
+	}
+
 	public final void destroyEntity()
 	{
 		entity = Foundation.getNullEntity().getPermissibleEntity();
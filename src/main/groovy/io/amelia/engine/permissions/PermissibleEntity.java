@@ -9,6 +9,8 @@
  */
 package io.amelia.engine.permissions;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,11 +21,13 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
 
+import io.amelia.engine.events.EventDispatcher;
 import io.amelia.events.Events;
 import io.amelia.foundation.EntityPrincipal;
 import io.amelia.foundation.Foundation;
@@ -38,14 +42,27 @@ import io.amelia.support.VoluntaryBoolean;
 
 public abstract class PermissibleEntity implements EntityPrincipal
 {
-	private final Map<String, PermissionResult> cachedResults = new ConcurrentHashMap<>();
+	private final PermissionResultCache cachedResults = new PermissionResultCache( PermissionRegistry.getResultCacheSize() );
 	private final Map<PermissibleGroup, References> groups = new ConcurrentHashMap<>();
+	private final Set<PermissibleGroup> indexedGroups = new HashSet<>();
+	private final Set<Permission> indexedPermissions = new HashSet<>();
 	private final String name;
+	/**
+	 * Counts the changes to the permissions and groups, the entity has unsaved changes while it differs from {@link #savedModifications}.
+	 */
+	private final AtomicLong modifications = new AtomicLong();
 	private final Map<ChildPermission, References> permissions = new ConcurrentHashMap<>();
 	private final Map<PermissibleGroup, TimedReferences> timedGroups = new ConcurrentHashMap<>();
 	private final Map<ChildPermission, TimedReferences> timedPermissions = new ConcurrentHashMap<>();
 	private final UUID uuid;
 	protected boolean debugMode = false;
+	/**
+	 * Index of the granted permission expressions, rebuilt on first use after the permissions changed.
+	 */
+	private volatile ExpressionIndex expressionIndex = null;
+	private volatile long lastAccessed = System.currentTimeMillis();
+	private volatile ResolvedPermissions resolvedPermissions = null;
+	private volatile long savedModifications = 0;
 	private boolean virtual = false;
 
 	public PermissibleEntity( UUID uuid, String name )
@@ -61,7 +78,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	public void addGroup( PermissibleGroup group, References refs )
 	{
 		addGroup0( group, refs );
-		recalculatePermissions();
+		modified();
 	}
 
 	protected void addGroup0( PermissibleGroup group, References refs )
@@ -100,7 +117,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		if ( isDebug() )
 			PermissionRegistry.L.info( String.format( "%sThe permission `%s` with reference `%s` was attached to entity `%s`.", EnumColor.YELLOW, perm.getPermission().getNamespace(), refs.join(), uuid() ) );
 
-		recalculatePermissions();
+		modified();
 	}
 
 	public void addPermission( Permission permission, VoluntaryBoolean value, References references )
@@ -120,15 +137,19 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	{
 		if ( refs == null )
 			refs = References.format();
-		timedGroups.put( group, new TimedReferences( lifetime ).add( refs ) );
+		TimedReferences timedRefs = new TimedReferences( lifetime ).add( refs );
+		timedGroups.put( group, timedRefs );
+		PermissionExpiryScheduler.schedule( this, timedRefs );
+		modified();
 	}
 
 	protected final void addTimedPermission( ChildPermission perm, TimedReferences refs )
 	{
-		permissions.put( perm, refs );
+		timedPermissions.put( perm, refs );
+		PermissionExpiryScheduler.schedule( this, refs );
 		if ( isDebug() )
 			PermissionRegistry.L.info( String.format( "%sThe permission `%s` with reference `%s` was attached to entity `%s`.", EnumColor.YELLOW, perm.getPermission().getNamespace(), refs.toString(), uuid() ) );
-		recalculatePermissions();
+		modified();
 	}
 
 	/**
@@ -160,19 +181,17 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		UtilityObjects.notNull( refs );
 
 		/*
-		 * We execute the results to reduce lag when a permission is checked multiple times over.
+		 * We cache the results to reduce lag when a permission is checked multiple times over.
+		 * Cached results are kept current by recalculatePermissions() and invalidateCachedResults().
 		 */
-		PermissionResult result = cachedResults.get( perm.getNamespace() + "-" + refs.hash() );
+		PermissionResult result = cachedResults.get( perm, refs );
 
 		if ( result != null )
-			if ( result.epoch > DateAndTime.epoch() - 600 ) // 600 Seconds = 10 Minutes
-				return result;
-			else
-				cachedResults.remove( perm.getNamespace() + "-" + refs.hash() );
+			return result;
 
 		result = new PermissionResult( this, perm, refs );
 
-		cachedResults.put( perm.getNamespace() + "-" + refs.hash(), result );
+		cachedResults.put( perm, refs, result );
 
 		if ( isDebug() && !perm.getNamespace().equals( PermissionDefault.OP.getPermissionNamespace() ) )
 			PermissionRegistry.L.info( EnumColor.YELLOW + "Entity `" + uuid() + "` checked for permission `" + perm.getNamespace() + "`" + ( refs.isEmpty() ? "" : " with reference `" + refs.toString() + "`" ) + " with result `" + result + "`" );
@@ -180,6 +199,62 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		return result;
 	}
 
+	/**
+	 * Checks many permissions at once, e.g., every guarded element of a page, against a single snapshot of the resolved permissions.
+	 * Unlike {@link #checkPermission(Permission, References)}, no {@link PermissionResult} is created or cached per permission and the operator
+	 * state is only resolved once.
+	 *
+	 * @param perms The permissions to check
+	 * @param refs  The references to check them with
+	 *
+	 * @return The results indexed in the order of the provided permissions
+	 */
+	public PermissionBatch checkPermissions( @Nonnull Permission[] perms, @Nonnull References refs )
+	{
+		UtilityObjects.notNull( refs );
+
+		ResolvedPermissions resolved = getResolvedPermissions();
+		BitSet assigned = new BitSet( perms.length );
+		BitSet values = new BitSet( perms.length );
+		Boolean op = null;
+
+		for ( int i = 0; i < perms.length; i++ )
+		{
+			Permission perm = perms[i];
+			UtilityObjects.notNull( perm );
+			ChildPermission child = resolved.find( perm, refs );
+			if ( child != null )
+				assigned.set( i );
+
+			boolean value;
+			if ( Foundation.getPermissions().allowOps && !perm.getPermissionNamespace().matches( PermissionDefault.OP.getPermissionNamespace() ) && ( op == null ? op = isOp() : op ) )
+				value = perm.getPermissionMeta().getValue().get();
+			else
+				value = PermissionResult.getValue( perm, child ).get();
+
+			if ( value )
+				values.set( i );
+		}
+
+		return new PermissionBatch( perms, assigned, values );
+	}
+
+	public PermissionBatch checkPermissions( @Nonnull PermissionNamespace[] namespaces, @Nonnull References refs )
+	{
+		Permission[] perms = new Permission[namespaces.length];
+		for ( int i = 0; i < namespaces.length; i++ )
+			perms[i] = Foundation.getPermissions().createNode( namespaces[i] );
+		return checkPermissions( perms, refs );
+	}
+
+	public PermissionBatch checkPermissions( @Nonnull String... namespaces )
+	{
+		PermissionNamespace[] result = new PermissionNamespace[namespaces.length];
+		for ( int i = 0; i < namespaces.length; i++ )
+			result[i] = PermissionNamespace.of( namespaces[i] );
+		return checkPermissions( result, References.format( "" ) );
+	}
+
 	public PermissionResult checkPermission( PermissionNamespace namespace )
 	{
 		return checkPermission( namespace, References.format( "" ) );
@@ -194,25 +269,25 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	protected void clearGroups()
 	{
 		groups.clear();
-		recalculatePermissions();
+		modified();
 	}
 
 	protected void clearPermissions()
 	{
 		permissions.clear();
-		recalculatePermissions();
+		modified();
 	}
 
 	protected void clearTimedGroups()
 	{
 		timedGroups.clear();
-		recalculatePermissions();
+		modified();
 	}
 
 	protected void clearTimedPermissions()
 	{
 		timedPermissions.clear();
-		recalculatePermissions();
+		modified();
 	}
 
 	public PermissibleGroup demote( PermissibleEntity demoter, String str )
@@ -260,27 +335,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	 */
 	protected Optional<ChildPermission> getChildPermissionRecursive( Permission perm, References refs )
 	{
-		/**
-		 * Used as a constant tracker for already checked groups, prevents infinite looping. e.g., User -> Group1 -> Group2 -> Group3 -> Group1
-		 */
-		return getChildPermissionRecursive( new HashSet<>(), perm, refs );
-	}
-
-	protected Optional<ChildPermission> getChildPermissionRecursive( Set<PermissibleGroup> stacker, Permission perm, References refs )
-	{
-		// First we try checking this PermissibleEntity
-		Optional<ChildPermission> result = getChildPermission( perm, refs );
-
-		if ( result.isPresent() )
-			return result;
-
-		// Next we check each group recursively
-		return getGroups( refs ).filter( group -> {
-			if ( stacker.contains( group ) )
-				return false;
-			stacker.add( group );
-			return true;
-		} ).map( group -> group.getChildPermissionRecursive( stacker, perm, refs ).orElse( null ) ).findFirst();
+		return Optional.ofNullable( getResolvedPermissions().find( perm, refs ) );
 	}
 
 	protected Stream<ChildPermission> getChildPermissions( References refs )
@@ -298,6 +353,58 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		return getGroups( refs ).map( PermissibleGroup::getName );
 	}
 
+	/**
+	 * Gets the resolved permission view of this entity, building it if this entity or one of its inherited groups has changed since it was last used.
+	 *
+	 * @return The resolved permissions
+	 */
+	ResolvedPermissions getResolvedPermissions()
+	{
+		ResolvedPermissions resolved = resolvedPermissions;
+		if ( resolved == null )
+		{
+			resolved = ResolvedPermissions.build( this );
+			resolvedPermissions = resolved;
+		}
+		return resolved;
+	}
+
+	/**
+	 * Gets the epoch millis of when this entity was last retrieved from the {@link PermissionRegistry}, used by backends to evict idle entities.
+	 */
+	public long getLastAccessed()
+	{
+		return lastAccessed;
+	}
+
+	/**
+	 * Gets the change count to pass to {@link #markSaved(long)} once the state read after this call has been written to the backend.
+	 */
+	protected final long getModifications()
+	{
+		return modifications.get();
+	}
+
+	Set<Entry<PermissibleGroup, References>> groupEntries()
+	{
+		return groups.entrySet();
+	}
+
+	Set<Entry<ChildPermission, References>> permissionEntries()
+	{
+		return permissions.entrySet();
+	}
+
+	Set<Entry<PermissibleGroup, TimedReferences>> timedGroupEntries()
+	{
+		return timedGroups.entrySet();
+	}
+
+	Set<Entry<ChildPermission, TimedReferences>> timedPermissionEntries()
+	{
+		return timedPermissions.entrySet();
+	}
+
 	public References getGroupReferences()
 	{
 		References refs = new References();
@@ -325,17 +432,27 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		return Stream.concat( groups.entrySet().stream().filter( e -> e.getValue().match( refs ) ), timedGroups.entrySet().stream().filter( e -> e.getValue().match( refs ) && !e.getValue().isExpired() ) ).map( Entry::getKey );
 	}
 
-	private String getMatchingExpression( Collection<Permission> permissions, String permission )
+	private PermissionTrie<ChildPermission> getExpressionIndex()
 	{
-		for ( Permission exp : permissions )
-			if ( Foundation.getPermissions().getMatcher().isMatches( exp, permission ) )
-				return exp.getNamespace().toString();
-		return null;
+		long modifications = this.modifications.get();
+		ExpressionIndex index = expressionIndex;
+		if ( index == null || index.modifications != modifications )
+		{
+			PermissionTrie<ChildPermission> trie = new PermissionTrie<>();
+			for ( ChildPermission child : permissions.keySet() )
+				trie.put( child.getPermission().getPermissionNamespace().getString(), child );
+			expressionIndex = index = new ExpressionIndex( modifications, trie );
+		}
+		return index.trie;
 	}
 
 	public String getMatchingExpression( String permission, References refs )
 	{
-		return getMatchingExpression( getPermissions( refs ).keySet(), permission );
+		ChildPermission match = getExpressionIndex().findFirst( permission, child -> {
+			References childRefs = permissions.get( child );
+			return childRefs != null && childRefs.match( refs );
+		} );
+		return match == null ? null : match.getPermission().getNamespace().toString();
 	}
 
 	public String getName()
@@ -456,6 +573,57 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		return groups.containsKey( group );
 	}
 
+	/**
+	 * Checks if this entity inherits from the provided group, either directly or through any of its groups.
+	 *
+	 * @param group The group to look for
+	 *
+	 * @return True if the group is inherited
+	 */
+	public boolean inheritsFrom( PermissibleGroup group )
+	{
+		return inheritsFrom( new HashSet<>(), group );
+	}
+
+	private boolean inheritsFrom( Set<PermissibleGroup> stacker, PermissibleGroup group )
+	{
+		if ( groups.containsKey( group ) || timedGroups.containsKey( group ) )
+			return true;
+		for ( PermissibleGroup parent : groups.keySet() )
+			if ( stacker.add( parent ) && parent.inheritsFrom( stacker, group ) )
+				return true;
+		for ( PermissibleGroup parent : timedGroups.keySet() )
+			if ( stacker.add( parent ) && parent.inheritsFrom( stacker, group ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Discards every cached {@link PermissionResult}, called when a group this entity inherits from has changed.
+	 */
+	public void invalidateCachedResults()
+	{
+		invalidateResolvedPermissions();
+		cachedResults.clear();
+	}
+
+	/**
+	 * Discards the cached {@link PermissionResult}s for a single permission, called when a grant of that permission on an inherited group has changed.
+	 *
+	 * @param perm The changed permission
+	 */
+	public void invalidateCachedResults( Permission perm )
+	{
+		invalidateResolvedPermissions();
+		cachedResults.invalidate( perm );
+	}
+
+	private void invalidateResolvedPermissions()
+	{
+		resolvedPermissions = null;
+		updateIndex();
+	}
+
 	public boolean hasTimedGroup( PermissibleGroup group )
 	{
 		return timedGroups.containsKey( group );
@@ -531,22 +699,67 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		return null;
 	}
 
-	public void recalculatePermissions()
+	/**
+	 * Removes the timed group or timed permission holding the provided references, called by the {@link PermissionExpiryScheduler} once its lifetime ends.
+	 * Only the cached results the expired grant could have decided are invalidated.
+	 *
+	 * @param refs The expired references
+	 */
+	void expireTimedReferences( TimedReferences refs )
 	{
+		boolean groupExpired = false;
+		List<Permission> expiredPermissions = new ArrayList<>();
+
 		for ( Entry<PermissibleGroup, TimedReferences> entry : timedGroups.entrySet() )
-			if ( entry.getValue().isExpired() )
-			{
-				timedGroups.remove( entry.getKey() );
-				Events.getInstance().callEvent( new PermissibleEntityEvent( this, PermissibleEntityEvent.Action.TIMEDGROUP_EXPIRED ) );
-			}
+			if ( entry.getValue() == refs && timedGroups.remove( entry.getKey(), refs ) )
+				groupExpired = true;
 		for ( Entry<ChildPermission, TimedReferences> entry : timedPermissions.entrySet() )
-			if ( entry.getValue().isExpired() )
+			if ( entry.getValue() == refs && timedPermissions.remove( entry.getKey(), refs ) )
+				expiredPermissions.add( entry.getKey().getPermission() );
+
+		if ( !groupExpired && expiredPermissions.isEmpty() )
+			return;
+
+		modifications.incrementAndGet();
+		invalidateResolvedPermissions();
+
+		if ( groupExpired )
+		{
+			for ( PermissionResult cache : cachedResults.values() )
+				cache.recalculatePermissions();
+			if ( isGroup() )
+				PermissionRegistry.invalidateInheritedResults( ( PermissibleGroup ) this );
+			EventDispatcher.callEvent( new PermissibleEntityEvent( this, PermissibleEntityEvent.Action.TIMEDGROUP_EXPIRED ) );
+		}
+
+		if ( !expiredPermissions.isEmpty() )
+		{
+			for ( Permission perm : expiredPermissions )
 			{
-				timedPermissions.remove( entry.getKey() );
-				Events.getInstance().callEvent( new PermissibleEntityEvent( this, PermissibleEntityEvent.Action.TIMEDPERMISSION_EXPIRED ) );
+				cachedResults.invalidate( perm );
+				if ( isGroup() )
+					PermissionRegistry.invalidateInheritedResults( ( PermissibleGroup ) this, perm );
 			}
+			EventDispatcher.callEvent( new PermissibleEntityEvent( this, PermissibleEntityEvent.Action.TIMEDPERMISSION_EXPIRED ) );
+		}
+	}
+
+	/**
+	 * Counts a change to this entity's own permissions or groups and recalculates, unlike a change inherited from a group this leaves the entity dirty.
+	 */
+	private void modified()
+	{
+		modifications.incrementAndGet();
+		recalculatePermissions();
+	}
+
+	public void recalculatePermissions()
+	{
+		invalidateResolvedPermissions();
 		for ( PermissionResult cache : cachedResults.values() )
 			cache.recalculatePermissions();
+		if ( isGroup() )
+			PermissionRegistry.invalidateInheritedResults( ( PermissibleGroup ) this );
 		Events.getInstance().callEvent( new PermissibleEntityEvent( this, PermissibleEntityEvent.Action.PERMISSIONS_CHANGED ) );
 	}
 
@@ -560,7 +773,8 @@ public abstract class PermissibleEntity implements EntityPrincipal
 
 		reloadGroups();
 		reloadPermissions();
-		recalculatePermissions();
+		modified();
+		savedModifications = modifications.get();
 	}
 
 	/**
@@ -581,7 +795,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	public final void removeAllPermissions()
 	{
 		permissions.clear();
-		recalculatePermissions();
+		modified();
 	}
 
 	public void removeGroup( PermissibleGroup group, References refs )
@@ -600,7 +814,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		for ( Entry<ChildPermission, References> entry : permissions.entrySet() )
 			if ( entry.getKey().getPermission() == perm && entry.getValue().match( refs ) )
 				permissions.remove( perm );
-		recalculatePermissions();
+		modified();
 	}
 
 	public void removePermission( String permission, References refs )
@@ -613,7 +827,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		if ( current == null )
 			return false;
 		current.remove( refs );
-		recalculatePermissions();
+		modified();
 		return current.isEmpty();
 	}
 
@@ -628,6 +842,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	{
 		if ( removeRefs( timedGroups.get( group ), refs ) )
 			timedGroups.remove( group );
+		modified();
 	}
 
 	public void removeTimedPermission( Permission perm, References refs )
@@ -635,6 +850,10 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		for ( Entry<ChildPermission, TimedReferences> entry : timedPermissions.entrySet() )
 			if ( entry.getKey().getPermission() == perm && entry.getValue().match( refs ) )
 				timedPermissions.remove( entry.getKey() );
+		modifications.incrementAndGet();
+		invalidateCachedResults( perm );
+		if ( isGroup() )
+			PermissionRegistry.invalidateInheritedResults( ( PermissibleGroup ) this, perm );
 	}
 
 	public void removeTimedPermission( String perm, References refs )
@@ -642,6 +861,82 @@ public abstract class PermissibleEntity implements EntityPrincipal
 		removeTimedPermission( Foundation.getPermissions().createNode( perm ), refs );
 	}
 
+	/**
+	 * Indicates the permissions or groups changed since the entity was last loaded or saved.
+	 */
+	public boolean isDirty()
+	{
+		return modifications.get() != savedModifications;
+	}
+
+	/**
+	 * Marks the changes counted up to the provided {@link #getModifications()} as saved, later changes keep the entity dirty.
+	 */
+	protected final void markSaved( long modifications )
+	{
+		savedModifications = modifications;
+	}
+
+	/**
+	 * Adds this entity back to the {@link PermissionIndex}, called when the registry takes back an evicted entity.
+	 */
+	void reindex()
+	{
+		updateIndex();
+	}
+
+	void touch()
+	{
+		lastAccessed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes this entity from the {@link PermissionIndex}, called once the registry forgets it.
+	 */
+	synchronized void unindex()
+	{
+		for ( Permission perm : indexedPermissions )
+			PermissionIndex.removeHolder( perm, this );
+		for ( PermissibleGroup group : indexedGroups )
+			PermissionIndex.removeMember( group, this );
+		indexedPermissions.clear();
+		indexedGroups.clear();
+	}
+
+	/**
+	 * Brings the {@link PermissionIndex} in line with the permissions and groups currently granted to this entity, only the difference is applied.
+	 */
+	private synchronized void updateIndex()
+	{
+		Set<Permission> currentPermissions = new HashSet<>();
+		for ( ChildPermission child : permissions.keySet() )
+			currentPermissions.add( child.getPermission() );
+		for ( ChildPermission child : timedPermissions.keySet() )
+			currentPermissions.add( child.getPermission() );
+
+		Set<PermissibleGroup> currentGroups = new HashSet<>( groups.keySet() );
+		currentGroups.addAll( timedGroups.keySet() );
+
+		for ( Permission perm : indexedPermissions )
+			if ( !currentPermissions.contains( perm ) )
+				PermissionIndex.removeHolder( perm, this );
+		for ( Permission perm : currentPermissions )
+			if ( !indexedPermissions.contains( perm ) )
+				PermissionIndex.addHolder( perm, this );
+
+		for ( PermissibleGroup group : indexedGroups )
+			if ( !currentGroups.contains( group ) )
+				PermissionIndex.removeMember( group, this );
+		for ( PermissibleGroup group : currentGroups )
+			if ( !indexedGroups.contains( group ) )
+				PermissionIndex.addMember( group, this );
+
+		indexedPermissions.clear();
+		indexedPermissions.addAll( currentPermissions );
+		indexedGroups.clear();
+		indexedGroups.addAll( currentGroups );
+	}
+
 	/**
 	 * Save entity data to backend
 	 */
@@ -664,7 +959,7 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	public void setGroups( Collection<PermissibleGroup> groups, References refs )
 	{
 		setGroups0( groups, refs );
-		recalculatePermissions();
+		modified();
 	}
 
 	protected void setGroups0( Collection<PermissibleGroup> groups, References refs )
@@ -719,4 +1014,16 @@ public abstract class PermissibleEntity implements EntityPrincipal
 	{
 		return null;
 	}
+
+	private static final class ExpressionIndex
+	{
+		final long modifications;
+		final PermissionTrie<ChildPermission> trie;
+
+		ExpressionIndex( long modifications, PermissionTrie<ChildPermission> trie )
+		{
+			this.modifications = modifications;
+			this.trie = trie;
+		}
+	}
 }
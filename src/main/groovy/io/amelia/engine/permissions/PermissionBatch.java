@@ -0,0 +1,108 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.BitSet;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Holds the results of checking many permissions against one {@link PermissibleEntity} and {@link References}, see {@link PermissibleEntity#checkPermissions(Permission[], References)}.
+ * <p>
+ * Results are kept as two bitsets indexed in the order the permissions were checked, bit {@code i} of {@link #getTrue()} is set when the
+ * permission at index {@code i} resolved true and bit {@code i} of {@link #getAssigned()} when it was assigned to the entity at all.
+ */
+public final class PermissionBatch
+{
+	private final BitSet assigned;
+	private final Permission[] permissions;
+	private final BitSet values;
+
+	PermissionBatch( @Nonnull Permission[] permissions, @Nonnull BitSet assigned, @Nonnull BitSet values )
+	{
+		this.permissions = permissions;
+		this.assigned = assigned;
+		this.values = values;
+	}
+
+	/**
+	 * @return were all the checked permissions true
+	 */
+	public boolean allTrue()
+	{
+		return values.cardinality() == permissions.length;
+	}
+
+	/**
+	 * @return was any of the checked permissions true
+	 */
+	public boolean anyTrue()
+	{
+		return !values.isEmpty();
+	}
+
+	public BitSet getAssigned()
+	{
+		return ( BitSet ) assigned.clone();
+	}
+
+	public Permission getPermission( int index )
+	{
+		return permissions[index];
+	}
+
+	public BitSet getTrue()
+	{
+		return ( BitSet ) values.clone();
+	}
+
+	private int indexOf( String namespace )
+	{
+		for ( int i = 0; i < permissions.length; i++ )
+			if ( permissions[i].getNamespace().equalsIgnoreCase( namespace ) )
+				return i;
+		return -1;
+	}
+
+	public boolean isAssigned( int index )
+	{
+		return assigned.get( index );
+	}
+
+	public boolean isTrue( int index )
+	{
+		return values.get( index );
+	}
+
+	/**
+	 * @param namespace One of the checked namespaces, e.g., {@code io.amelia.admin}
+	 *
+	 * @return is the permission true, false if it was not part of this batch
+	 */
+	public boolean isTrue( String namespace )
+	{
+		int index = indexOf( namespace );
+		return index >= 0 && values.get( index );
+	}
+
+	public int size()
+	{
+		return permissions.length;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder( "PermissionBatch{" );
+		for ( int i = 0; i < permissions.length; i++ )
+			result.append( i == 0 ? "" : "," ).append( permissions[i].getNamespace() ).append( "=" ).append( values.get( i ) );
+		return result.append( "}" ).toString();
+	}
+}
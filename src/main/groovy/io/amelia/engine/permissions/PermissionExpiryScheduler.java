@@ -0,0 +1,120 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nonnull;
+
+import io.amelia.engine.looper.LooperRouter;
+import io.amelia.engine.looper.LooperTaskTrait;
+
+/**
+ * Expires timed groups and timed permissions exactly when their lifetime ends.
+ * <p>
+ * Every {@link TimedReferences} with a lifetime is queued by deadline and a single task is posted to the main looper for the earliest one,
+ * so nothing runs while no grant is due. When the task fires, each due entity removes only the expired grant and invalidates the results it
+ * affected. Entities are weakly referenced, so an entity unloaded from the registry is never kept alive by a pending expiry.
+ */
+final class PermissionExpiryScheduler
+{
+	private static final PriorityQueue<Expiry> queue = new PriorityQueue<>( ( left, right ) -> Long.compare( left.when, right.when ) );
+	private static LooperTaskTrait.TaskEntry pending = null;
+	private static long pendingWhen = Long.MAX_VALUE;
+
+	private static void expire()
+	{
+		List<Expiry> due = new ArrayList<>();
+
+		synchronized ( queue )
+		{
+			pending = null;
+			pendingWhen = Long.MAX_VALUE;
+
+			long now = System.currentTimeMillis();
+			while ( !queue.isEmpty() && queue.peek().when <= now )
+				due.add( queue.poll() );
+
+			postNext();
+		}
+
+		for ( Expiry expiry : due )
+		{
+			PermissibleEntity entity = expiry.entity.get();
+			if ( entity != null )
+				entity.expireTimedReferences( expiry.refs );
+		}
+	}
+
+	/**
+	 * Gets the number of queued expiries, including those for entities that have since been unloaded.
+	 */
+	static int getQueuedCount()
+	{
+		synchronized ( queue )
+		{
+			return queue.size();
+		}
+	}
+
+	private static void postNext()
+	{
+		Expiry next = queue.peek();
+		if ( next == null || next.when >= pendingWhen )
+			return;
+
+		if ( pending != null )
+			pending.cancel();
+
+		pendingWhen = next.when;
+		pending = LooperRouter.getMainLooper().postTaskAt( entry -> expire(), next.when );
+	}
+
+	/**
+	 * Queues the timed references of the entity to expire at the end of its lifetime, transient references are ignored.
+	 *
+	 * @param entity The entity holding the references
+	 * @param refs   The timed references
+	 */
+	static void schedule( @Nonnull PermissibleEntity entity, @Nonnull TimedReferences refs )
+	{
+		if ( refs.lifeTime <= 0 )
+			return;
+
+		synchronized ( queue )
+		{
+			queue.add( new Expiry( entity, refs ) );
+			postNext();
+		}
+	}
+
+	private PermissionExpiryScheduler()
+	{
+		// Static Access
+	}
+
+	private static final class Expiry
+	{
+		final WeakReference<PermissibleEntity> entity;
+		final TimedReferences refs;
+		final long when;
+
+		Expiry( PermissibleEntity entity, TimedReferences refs )
+		{
+			this.entity = new WeakReference<>( entity );
+			this.refs = refs;
+			// TimedReferences keep their lifetime in epoch seconds
+			this.when = refs.lifeTime * 1000L;
+		}
+	}
+}
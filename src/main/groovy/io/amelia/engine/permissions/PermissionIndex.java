@@ -0,0 +1,218 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Indexes the registered permission nodes and who holds them.
+ * <p>
+ * Nodes are kept in a concurrent namespace trie keyed by lower-cased node name, so exact, prefix and wildcard lookups only walk the branches
+ * the query can match. Two reverse indexes, permission to the entities granting it and group to its direct members, let
+ * {@link PermissionRegistry#getEntitiesWithPermission(Permission)} and inheritance invalidation visit only the affected entities.
+ * Reads never lock.
+ */
+final class PermissionIndex
+{
+	private static final Map<Permission, Set<PermissibleEntity>> holders = new ConcurrentHashMap<>();
+	private static final Map<PermissibleGroup, Set<PermissibleEntity>> members = new ConcurrentHashMap<>();
+	private static final Node root = new Node();
+
+	static void addHolder( @Nonnull Permission perm, @Nonnull PermissibleEntity entity )
+	{
+		holders.computeIfAbsent( perm, key -> ConcurrentHashMap.newKeySet() ).add( entity );
+	}
+
+	static void addMember( @Nonnull PermissibleGroup group, @Nonnull PermissibleEntity entity )
+	{
+		members.computeIfAbsent( group, key -> ConcurrentHashMap.newKeySet() ).add( entity );
+	}
+
+	/**
+	 * Forgets every holder and member, the permission nodes themselves are kept.
+	 */
+	static void clearEntities()
+	{
+		holders.clear();
+		members.clear();
+	}
+
+	private static void collect( Node node, Consumer<Permission> consumer )
+	{
+		Permission perm = node.permission;
+		if ( perm != null )
+			consumer.accept( perm );
+		for ( Node child : node.children.values() )
+			collect( child, consumer );
+	}
+
+	static void forEach( @Nonnull Consumer<Permission> consumer )
+	{
+		collect( root, consumer );
+	}
+
+	/**
+	 * Visits every node at or below the provided namespace, e.g., {@code io.amelia} visits {@code io.amelia} and {@code io.amelia.user.*}.
+	 */
+	static void forEachDescendant( @Nonnull PermissionNamespace namespace, @Nonnull Consumer<Permission> consumer )
+	{
+		Node node = nodeFor( namespace.getNames(), false );
+		if ( node != null )
+			collect( node, consumer );
+	}
+
+	/**
+	 * Visits every node matching the provided namespace, each node of the namespace may be an expression understood by {@link PermissionMatcher}.
+	 */
+	static void forEachMatch( @Nonnull PermissionNamespace namespace, @Nonnull Consumer<Permission> consumer )
+	{
+		String[] names = namespace.getNames();
+		if ( names.length > 0 )
+			forEachMatch( root, names, 0, consumer );
+	}
+
+	private static void forEachMatch( Node node, String[] names, int depth, Consumer<Permission> consumer )
+	{
+		if ( depth == names.length )
+		{
+			Permission perm = node.permission;
+			if ( perm != null )
+				consumer.accept( perm );
+			return;
+		}
+
+		PermissionMatcher.Expression expression = PermissionMatcher.compile( names[depth] );
+		if ( expression.isLiteral() )
+		{
+			Node child = node.children.get( names[depth].toLowerCase() );
+			if ( child != null )
+				forEachMatch( child, names, depth + 1, consumer );
+		}
+		else
+			for ( Map.Entry<String, Node> entry : node.children.entrySet() )
+				if ( expression.matches( entry.getKey() ) )
+					forEachMatch( entry.getValue(), names, depth + 1, consumer );
+	}
+
+	static void forEachRoot( @Nonnull Consumer<Permission> consumer )
+	{
+		for ( Node child : root.children.values() )
+			if ( child.permission != null )
+				consumer.accept( child.permission );
+	}
+
+	@Nullable
+	static Permission get( @Nonnull String[] names )
+	{
+		Node node = nodeFor( names, false );
+		return node == null ? null : node.permission;
+	}
+
+	/**
+	 * Gets the entities granting the provided permission directly, i.e., not through a group.
+	 */
+	static Set<PermissibleEntity> getHolders( @Nonnull Permission perm )
+	{
+		Set<PermissibleEntity> result = holders.get( perm );
+		return result == null ? Collections.emptySet() : Collections.unmodifiableSet( result );
+	}
+
+	/**
+	 * Gets every entity and group inheriting from the provided group, through any depth of group inheritance.
+	 */
+	static List<PermissibleEntity> getInheritors( @Nonnull PermissibleGroup group )
+	{
+		List<PermissibleEntity> result = new ArrayList<>();
+		Set<PermissibleEntity> visited = Collections.newSetFromMap( new IdentityHashMap<>() );
+		Deque<PermissibleGroup> pending = new ArrayDeque<>();
+
+		visited.add( group );
+		pending.add( group );
+
+		while ( !pending.isEmpty() )
+		{
+			Set<PermissibleEntity> direct = members.get( pending.poll() );
+			if ( direct != null )
+				for ( PermissibleEntity entity : direct )
+					if ( visited.add( entity ) )
+					{
+						result.add( entity );
+						if ( entity.isGroup() )
+							pending.add( ( PermissibleGroup ) entity );
+					}
+		}
+
+		return result;
+	}
+
+	private static Node nodeFor( String[] names, boolean create )
+	{
+		if ( names.length == 0 )
+			return null;
+
+		Node node = root;
+		for ( String name : names )
+		{
+			String key = name.toLowerCase();
+			Node child = create ? node.children.computeIfAbsent( key, k -> new Node() ) : node.children.get( key );
+			if ( child == null )
+				return null;
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Registers the permission and all of its parents, which are registered by their own namespace.
+	 */
+	static void put( @Nonnull Permission perm )
+	{
+		Node node = nodeFor( perm.getPermissionNamespace().getNames(), true );
+		if ( node != null && node.permission == null )
+		{
+			node.permission = perm;
+			if ( perm.hasParent() )
+				put( perm.getParent() );
+		}
+	}
+
+	static void removeHolder( @Nonnull Permission perm, @Nonnull PermissibleEntity entity )
+	{
+		holders.computeIfPresent( perm, ( key, set ) -> set.remove( entity ) && set.isEmpty() ? null : set );
+	}
+
+	static void removeMember( @Nonnull PermissibleGroup group, @Nonnull PermissibleEntity entity )
+	{
+		members.computeIfPresent( group, ( key, set ) -> set.remove( entity ) && set.isEmpty() ? null : set );
+	}
+
+	private PermissionIndex()
+	{
+		// Static Access
+	}
+
+	private static final class Node
+	{
+		final Map<String, Node> children = new ConcurrentHashMap<>();
+		volatile Permission permission;
+	}
+}
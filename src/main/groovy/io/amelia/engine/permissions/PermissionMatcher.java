@@ -0,0 +1,341 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Matches permissions against permission expressions, e.g., {@code site.*.edit} or {@code level.1-5}.
+ * <p>
+ * Expressions are compiled once into a token list of literals, wildcards and numeric ranges, matching is case-insensitive, thread-safe
+ * and does not allocate. A {@code *} matches any sequence of characters, including the namespace separator, and {@code 1-5} matches any
+ * number from one to five. Expressions prefixed with {@code $} are raw regular expressions, in which numeric ranges are still expanded, and the
+ * {@code -} and {@code #} prefixes are ignored.
+ * <p>
+ * Expressions using other regular expression syntax, e.g., {@code site.(foo|bar).edit}, are still translated to a regular expression the same as
+ * the former {@code RegExpMatcher} did, with {@code .} taken literally, so they keep working but aren't allocation-free.
+ */
+public class PermissionMatcher
+{
+	public static final String RAW_REGEX_CHAR = "$";
+	private static final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+	private static final Pattern RANGE_EXPRESSION = Pattern.compile( "(\\d+)-(\\d+)" );
+	private static final String REGEX_CHARS = "()[]{}|+?^$\\";
+
+	/**
+	 * Compiles the provided expression, compiled expressions are cached.
+	 *
+	 * @param expression The permission expression
+	 *
+	 * @return The compiled expression
+	 */
+	public static Expression compile( @Nonnull String expression )
+	{
+		return expressions.computeIfAbsent( expression, Expression::new );
+	}
+
+	private static boolean hasRegexSyntax( String expression )
+	{
+		for ( int i = 0; i < expression.length(); i++ )
+			if ( REGEX_CHARS.indexOf( expression.charAt( i ) ) >= 0 )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Checks if the expression contains wildcards or ranges, i.e., it matches more than its literal self.
+	 */
+	public static boolean isPattern( @Nonnull String expression )
+	{
+		return !compile( expression ).isLiteral();
+	}
+
+	public boolean isMatches( Permission expression, String permission )
+	{
+		return isMatches( expression.getPermissionNamespace().getString(), permission );
+	}
+
+	public boolean isMatches( String expression, String permission )
+	{
+		return compile( expression ).matches( permission );
+	}
+
+	public static final class Expression
+	{
+		private static final int LITERAL = 0;
+		private static final int RANGE = 1;
+		private static final int STAR = 2;
+
+		private final String expression;
+		private final long[] from;
+		private final String[] literals;
+		private final Pattern pattern;
+		private final long[] to;
+		private final int[] types;
+
+		private Expression( String expression )
+		{
+			this.expression = expression;
+
+			if ( expression.startsWith( "-" ) )
+				expression = expression.substring( 1 );
+			if ( expression.startsWith( "#" ) )
+				expression = expression.substring( 1 );
+
+			boolean raw = expression.startsWith( RAW_REGEX_CHAR );
+			if ( raw || hasRegexSyntax( expression ) )
+			{
+				String regex = raw ? toRegex( expression.substring( 1 ), false ) : toRegex( expression, true );
+				Pattern pattern;
+				try
+				{
+					pattern = Pattern.compile( regex, Pattern.CASE_INSENSITIVE );
+				}
+				catch ( PatternSyntaxException e )
+				{
+					pattern = Pattern.compile( Pattern.quote( regex ), Pattern.CASE_INSENSITIVE );
+				}
+				this.pattern = pattern;
+				types = new int[0];
+				literals = new String[0];
+				from = new long[0];
+				to = new long[0];
+				return;
+			}
+
+			pattern = null;
+
+			List<Integer> types = new ArrayList<>();
+			List<String> literals = new ArrayList<>();
+			List<long[]> ranges = new ArrayList<>();
+			StringBuilder literal = new StringBuilder();
+
+			int length = expression.length();
+			for ( int i = 0; i < length; )
+			{
+				char c = expression.charAt( i );
+				if ( c == '*' )
+				{
+					flushLiteral( literal, types, literals, ranges );
+					if ( types.isEmpty() || types.get( types.size() - 1 ) != STAR )
+					{
+						types.add( STAR );
+						literals.add( null );
+						ranges.add( null );
+					}
+					i++;
+					continue;
+				}
+
+				if ( Character.isDigit( c ) )
+				{
+					int digitsEnd = skipDigits( expression, i );
+					if ( digitsEnd < length - 1 && expression.charAt( digitsEnd ) == '-' && Character.isDigit( expression.charAt( digitsEnd + 1 ) ) )
+					{
+						int rangeEnd = skipDigits( expression, digitsEnd + 1 );
+						long low = parseNumber( expression, i, digitsEnd );
+						long high = parseNumber( expression, digitsEnd + 1, rangeEnd );
+						if ( low >= 0 && high >= 0 )
+						{
+							flushLiteral( literal, types, literals, ranges );
+							types.add( RANGE );
+							literals.add( null );
+							ranges.add( new long[] {Math.min( low, high ), Math.max( low, high )} );
+							i = rangeEnd;
+							continue;
+						}
+					}
+					literal.append( expression, i, digitsEnd );
+					i = digitsEnd;
+					continue;
+				}
+
+				literal.append( c );
+				i++;
+			}
+			flushLiteral( literal, types, literals, ranges );
+
+			this.types = new int[types.size()];
+			this.literals = new String[types.size()];
+			this.from = new long[types.size()];
+			this.to = new long[types.size()];
+			for ( int i = 0; i < types.size(); i++ )
+			{
+				this.types[i] = types.get( i );
+				this.literals[i] = literals.get( i );
+				if ( ranges.get( i ) != null )
+				{
+					this.from[i] = ranges.get( i )[0];
+					this.to[i] = ranges.get( i )[1];
+				}
+			}
+		}
+
+		private static void flushLiteral( StringBuilder literal, List<Integer> types, List<String> literals, List<long[]> ranges )
+		{
+			if ( literal.length() == 0 )
+				return;
+			types.add( LITERAL );
+			literals.add( literal.toString() );
+			ranges.add( null );
+			literal.setLength( 0 );
+		}
+
+		/**
+		 * Parses the digits between start and end, returns -1 if the number is too large to compare.
+		 */
+		private static long parseNumber( String str, int start, int end )
+		{
+			if ( end - start > 18 )
+				return -1;
+			long value = 0;
+			for ( int i = start; i < end; i++ )
+				value = value * 10 + ( str.charAt( i ) - '0' );
+			return value;
+		}
+
+		private static int skipDigits( String str, int index )
+		{
+			return skipDigits( str, index, str.length() );
+		}
+
+		private static int skipDigits( String str, int index, int end )
+		{
+			while ( index < end && Character.isDigit( str.charAt( index ) ) )
+				index++;
+			return index;
+		}
+
+		/**
+		 * Translates the expression to a regular expression the same way the former {@code RegExpMatcher} did. Raw expressions aren't escaped
+		 * but still have their numeric ranges, e.g., {@code 1-5}, expanded to alternatives.
+		 */
+		private static String toRegex( String expression, boolean escape )
+		{
+			String regex = escape ? expression.replace( ".", "\\." ).replace( "*", "(.*)" ) : expression;
+
+			Matcher rangeMatcher = RANGE_EXPRESSION.matcher( regex );
+			while ( rangeMatcher.find() )
+				try
+				{
+					int from = Integer.parseInt( rangeMatcher.group( 1 ) );
+					int to = Integer.parseInt( rangeMatcher.group( 2 ) );
+
+					StringBuilder range = new StringBuilder( "(" );
+					for ( int i = Math.min( from, to ); i <= Math.max( from, to ); i++ )
+						range.append( i == Math.min( from, to ) ? "" : "|" ).append( i );
+					range.append( ")" );
+
+					regex = regex.replace( rangeMatcher.group( 0 ), range.toString() );
+				}
+				catch ( NumberFormatException e )
+				{
+					// Ignore
+				}
+
+			return regex;
+		}
+
+		public String getExpression()
+		{
+			return expression;
+		}
+
+		/**
+		 * Checks if the expression is matched as a regular expression, either raw or translated, rather than by its tokens.
+		 */
+		public boolean isRegex()
+		{
+			return pattern != null;
+		}
+
+		/**
+		 * Checks if the expression has no wildcards, ranges or regular expression.
+		 */
+		public boolean isLiteral()
+		{
+			return pattern == null && ( types.length == 0 || types.length == 1 && types[0] == LITERAL );
+		}
+
+		public boolean matches( @Nonnull String permission )
+		{
+			return matches( permission, 0, permission.length() );
+		}
+
+		/**
+		 * Matches the region of the permission from start to end, e.g., a single namespace segment, without extracting it.
+		 */
+		public boolean matches( @Nonnull String permission, int start, int end )
+		{
+			if ( pattern != null )
+				return pattern.matcher( permission ).region( start, end ).matches();
+			return matches( permission, start, 0, end );
+		}
+
+		private boolean matches( String str, int index, int token, int length )
+		{
+			for ( ; token < types.length; token++ )
+			{
+				switch ( types[token] )
+				{
+					case LITERAL:
+					{
+						String literal = literals[token];
+						if ( literal.length() > length - index || !str.regionMatches( true, index, literal, 0, literal.length() ) )
+							return false;
+						index += literal.length();
+						break;
+					}
+					case STAR:
+					{
+						// A trailing wildcard matches the remainder
+						if ( token == types.length - 1 )
+							return true;
+						for ( int i = index; i <= length; i++ )
+							if ( matches( str, i, token + 1, length ) )
+								return true;
+						return false;
+					}
+					case RANGE:
+					{
+						int digitsEnd = skipDigits( str, index, length );
+						if ( digitsEnd == index )
+							return false;
+						// Numbers with a leading zero only match as zero, same as the literal alternatives a range stands for.
+						int maxEnd = str.charAt( index ) == '0' ? index + 1 : digitsEnd;
+						for ( int end = maxEnd; end > index; end-- )
+						{
+							long value = parseNumber( str, index, end );
+							if ( value >= from[token] && value <= to[token] && matches( str, end, token + 1, length ) )
+								return true;
+						}
+						return false;
+					}
+				}
+			}
+
+			return index == length;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "PermissionMatcher.Expression{" + expression + "}";
+		}
+	}
+}
@@ -129,8 +129,9 @@ public class PermissionNamespace extends NodeStack<PermissionNamespace>
 	}
 
 	/**
-	 * Attempts to regex match each node of the namespaces.
-	 * XXX Make sure a regex namespace can be created for this to work.
+	 * Matches each node of this namespace against the expression in the same node of the provided namespace, e.g., {@code *} or {@code 1-5}.
+	 *
+	 * @see PermissionMatcher
 	 */
 	public boolean matches( PermissionNamespace ns )
 	{
@@ -138,7 +139,7 @@ public class PermissionNamespace extends NodeStack<PermissionNamespace>
 			return false;
 
 		for ( int i = 0; i < nodes.length; i++ )
-			if ( !nodes[i].matches( ns.nodes[i] ) )
+			if ( !PermissionMatcher.compile( ns.nodes[i] ).matches( nodes[i] ) )
 				return false;
 		return true;
 	}
@@ -9,10 +9,13 @@
  */
 package io.amelia.engine.permissions;
 
-import java.util.Arrays;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -40,17 +43,23 @@ import io.amelia.support.VoluntaryBoolean;
 
 public abstract class PermissionRegistry
 {
-	private static final Set<Permission> permissions = new HashSet<>();
 	protected static boolean allowOps = true;
 	protected static boolean hasWhitelist = false;
 	protected static boolean isDebugEnabled = false;
 	private static PermissionBackend backend = null;
 	private static volatile Set<PermissionBackend> backends = new CopyOnWriteArraySet<>();
-	private static Map<UUID, PermissibleGroup> defaultGroups = new HashMap<>();
-	private static Map<UUID, PermissibleEntity> entities = new HashMap<>();
-	private static Map<UUID, PermissibleGroup> groups = new HashMap<>();
-	private static RegExpMatcher matcher = null;
+	private static Map<UUID, PermissibleGroup> defaultGroups = new ConcurrentHashMap<>();
+	private static Map<UUID, PermissibleEntity> entities = new ConcurrentHashMap<>();
+	/**
+	 * Entities unloaded by {@link #evictEntity(PermissibleEntity)}, only weakly held so one still referenced elsewhere is taken back instead of
+	 * being loaded again as a detached copy.
+	 */
+	private static Map<UUID, WeakReference<PermissibleEntity>> evicted = new ConcurrentHashMap<>();
+	private static final ReferenceQueue<PermissibleEntity> evictedQueue = new ReferenceQueue<>();
+	private static Map<UUID, PermissibleGroup> groups = new ConcurrentHashMap<>();
+	private static PermissionMatcher matcher = null;
 	private static Map<String, Set<String>> refInheritance = new ConcurrentHashMap<>();
+	private static int resultCacheSize = Config.RESULT_CACHE_SIZE.getDefault();
 
 	static
 	{
@@ -61,6 +70,7 @@ public abstract class PermissionRegistry
 		hasWhitelist = ConfigRegistry.config.getBoolean( ConfigKeys.WHITELIST_ENABLED );
 		isDebugEnabled = ConfigRegistry.config.getBoolean( ConfigKeys.DEBUG_MODE_ENABLED );
 		allowOps = ConfigRegistry.config.getBoolean( ConfigKeys.ALLOW_OPS );
+		resultCacheSize = ConfigRegistry.config.getInteger( Config.RESULT_CACHE_SIZE );
 
 		// WritableBinding binding = Bindings.getSystemNamespace( HoneyPermissions.class );
 		// binding.registerFacadeBinding( WhitelistService.class, FacadePriority.LOWEST, WhitelistService::new );
@@ -140,6 +150,25 @@ public abstract class PermissionRegistry
 		return checkPermission( entity.uuid(), namespace, "" );
 	}
 
+	/**
+	 * Checks many permissions against the entity at once, see {@link PermissibleEntity#checkPermissions(PermissionNamespace[], References)}.
+	 *
+	 * @param uuid       entity uuid
+	 * @param refs       References
+	 * @param namespaces permissions to check
+	 *
+	 * @return the results indexed in the order of the provided namespaces
+	 */
+	public static PermissionBatch checkPermissions( UUID uuid, References refs, PermissionNamespace... namespaces )
+	{
+		PermissibleEntity entity = getPermissibleEntity( uuid );
+
+		if ( entity == null )
+			throw new RuntimeException( "Entity returned null! This is a bug and needs to be reported to the developers." );
+
+		return entity.checkPermissions( namespaces, refs == null ? References.format( "" ) : refs );
+	}
+
 	public static Permission createNode( String namespace )
 	{
 		return createNode( namespace, VoluntaryBoolean.empty() );
@@ -194,6 +223,8 @@ public abstract class PermissionRegistry
 		if ( created )
 			current.getPermissionMeta().setValueDefault( valueDefault );
 
+		PermissionIndex.put( current );
+
 		return current;
 	}
 
@@ -242,7 +273,9 @@ public abstract class PermissionRegistry
 	}
 
 	/**
-	 * Finds entities assigned provided permission. WARNING: Will not return a complete list if permissions.preloadEntities config is false.
+	 * Finds entities assigned provided permission, either directly or through any group they inherit. WARNING: Will not return a complete list if permissions.preloadEntities config is false.
+	 * <p>
+	 * Only the entities holding the permission and the members of groups holding it are visited, see {@link PermissionIndex}.
 	 *
 	 * @param perm The permission to check for.
 	 *
@@ -250,7 +283,29 @@ public abstract class PermissionRegistry
 	 */
 	public static Stream<PermissibleEntity> getEntitiesWithPermission( Permission perm )
 	{
-		return entities.values().stream().filter( p -> p.checkPermission( perm ).isAssigned() );
+		return getEntitiesWithPermission( perm, References.format( "" ) );
+	}
+
+	/**
+	 * Finds entities assigned provided permission under the references, either directly or through any group they inherit.
+	 * <p>
+	 * The {@link PermissionIndex} holds every entity and group granted the permission under any references, so its candidates are checked
+	 * against the references the same as {@link PermissibleEntity#checkPermission(Permission, References)}.
+	 *
+	 * @param perm The permission to check for.
+	 * @param refs The references the permission must be assigned under.
+	 *
+	 * @return a list of permissibles that have that permission assigned to them.
+	 */
+	public static Stream<PermissibleEntity> getEntitiesWithPermission( @Nonnull Permission perm, @Nonnull References refs )
+	{
+		Set<PermissibleEntity> result = new HashSet<>();
+		for ( PermissibleEntity holder : PermissionIndex.getHolders( perm ) )
+			if ( holder.isGroup() )
+				result.addAll( PermissionIndex.getInheritors( ( PermissibleGroup ) holder ) );
+			else
+				result.add( holder );
+		return result.stream().filter( entity -> !entity.isGroup() && entity.checkPermission( perm, refs ).isAssigned() );
 	}
 
 	/**
@@ -264,7 +319,22 @@ public abstract class PermissionRegistry
 	 */
 	public static Stream<PermissibleEntity> getEntitiesWithPermission( @Nonnull PermissionNamespace namespace )
 	{
-		return getNode( namespace ).map( this::getEntitiesWithPermission ).orElse( Stream.empty() );
+		return getNode( namespace ).map( PermissionRegistry::getEntitiesWithPermission ).orElse( Stream.empty() );
+	}
+
+	/**
+	 * Finds entities assigned provided permission under the references.
+	 *
+	 * @param namespace The permission to check for.
+	 * @param refs      The references the permission must be assigned under.
+	 *
+	 * @return a list of permissibles that have that permission assigned to them.
+	 *
+	 * @see PermissionRegistry#getEntitiesWithPermission(Permission, References)
+	 */
+	public static Stream<PermissibleEntity> getEntitiesWithPermission( @Nonnull PermissionNamespace namespace, @Nonnull References refs )
+	{
+		return getNode( namespace ).map( perm -> getEntitiesWithPermission( perm, refs ) ).orElse( Stream.empty() );
 	}
 
 	/**
@@ -281,16 +351,13 @@ public abstract class PermissionRegistry
 
 	public static PermissibleGroup getGroup( @Nonnull UUID uuid, boolean create )
 	{
-		if ( groups.containsKey( uuid ) )
-			return groups.get( uuid );
-		else if ( create )
-		{
-			PermissibleGroup group = backend.getGroup( uuid );
-			groups.put( uuid, group );
+		PermissibleGroup group = groups.get( uuid );
+		if ( group != null || !create )
 			return group;
-		}
-		else
-			return null;
+
+		group = backend.getGroup( uuid );
+		PermissibleGroup existing = groups.putIfAbsent( uuid, group );
+		return existing == null ? group : existing;
 	}
 
 	/**
@@ -308,10 +375,18 @@ public abstract class PermissionRegistry
 		return groups.values().stream().filter( g -> g.getName().startsWith( query.toLowerCase() ) );
 	}
 
-	public static RegExpMatcher getMatcher()
+	/**
+	 * Gets the maximum number of {@link PermissionResult}s each {@link PermissibleEntity} keeps cached.
+	 */
+	public static int getResultCacheSize()
+	{
+		return resultCacheSize;
+	}
+
+	public static PermissionMatcher getMatcher()
 	{
 		if ( matcher == null )
-			matcher = new RegExpMatcher();
+			matcher = new PermissionMatcher();
 		return matcher;
 	}
 
@@ -324,34 +399,17 @@ public abstract class PermissionRegistry
 	 */
 	public static Voluntary<Permission> getNode( PermissionNamespace namespace )
 	{
-		String[] nodes = namespace.getNames();
-
-		if ( nodes.length < 1 )
-			return Voluntary.empty();
-
-		Permission curr = getRootNode( nodes[0] );
-
-		if ( curr == null )
-			return Voluntary.empty();
-
-		if ( nodes.length == 1 )
-			return Voluntary.of( curr );
-
-		for ( String node : Arrays.copyOfRange( nodes, 1, nodes.length ) )
-		{
-			Permission child = curr.getChild( node.toLowerCase() );
-			if ( child == null )
-				return null;
-			else
-				curr = child;
-		}
-
-		return Voluntary.of( curr );
+		return Voluntary.ofNullable( PermissionIndex.get( namespace.getNames() ) );
 	}
 
 	protected static Voluntary<Permission> getNodeByLocalName( @Nonnull String name )
 	{
-		return Voluntary.of( permissions.stream().filter( perm -> name.equalsIgnoreCase( perm.getLocalName() ) ).findAny() );
+		List<Permission> result = new ArrayList<>();
+		PermissionIndex.forEach( perm -> {
+			if ( name.equalsIgnoreCase( perm.getLocalName() ) )
+				result.add( perm );
+		} );
+		return Voluntary.of( result.stream().findAny() );
 	}
 
 	/**
@@ -366,7 +424,9 @@ public abstract class PermissionRegistry
 		if ( ns == null || ns.getNodeCount() < 1 )
 			return Stream.empty();
 
-		return permissions.stream().filter( perm -> perm.getPermissionNamespace().matches( ns ) );
+		List<Permission> result = new ArrayList<>();
+		PermissionIndex.forEachMatch( ns, result::add );
+		return result.stream();
 	}
 
 	public static Stream<Permission> getNodes( String ns )
@@ -374,7 +434,24 @@ public abstract class PermissionRegistry
 		if ( UtilityObjects.isEmpty( ns ) )
 			return Stream.empty();
 
-		return permissions.stream().filter( perm -> perm.getPermissionNamespace().matches( ns ) );
+		return getNodes( PermissionNamespace.of( ns ) );
+	}
+
+	/**
+	 * Finds the registered permission node of the namespace and every node below it, e.g., {@code io.amelia} returns {@code io.amelia.user.login}.
+	 *
+	 * @param ns The namespace prefix
+	 *
+	 * @return The permissions at or below the namespace
+	 */
+	public static Stream<Permission> getNodesWithPrefix( PermissionNamespace ns )
+	{
+		if ( ns == null || ns.getNodeCount() < 1 )
+			return Stream.empty();
+
+		List<Permission> result = new ArrayList<>();
+		PermissionIndex.forEachDescendant( ns, result::add );
+		return result.stream();
 	}
 
 	public static PermissibleEntity getPermissibleEntity( @Nonnull UUID uuid )
@@ -384,21 +461,32 @@ public abstract class PermissionRegistry
 
 	public static PermissibleEntity getPermissibleEntity( @Nonnull UUID uuid, boolean create )
 	{
-		if ( entities.containsKey( uuid ) )
-			return entities.get( uuid );
-		else if ( create )
+		PermissibleEntity entity = entities.get( uuid );
+		if ( entity != null )
 		{
-			PermissibleEntity entity = backend.getEntity( uuid );
-			entities.put( uuid, entity );
+			entity.touch();
 			return entity;
 		}
-		else
+		if ( !create )
 			return null;
+
+		WeakReference<PermissibleEntity> reference = evicted.remove( uuid );
+		entity = reference == null ? null : reference.get();
+		if ( entity == null )
+			entity = backend.getEntity( uuid );
+		else
+		{
+			entity.touch();
+			entity.reindex();
+		}
+
+		PermissibleEntity existing = entities.putIfAbsent( uuid, entity );
+		return existing == null ? entity : existing;
 	}
 
 	public static Voluntary<Permission> getPermission( PermissionNamespace namespace )
 	{
-		return Voluntary.of( permissions.stream().filter( perm -> namespace.equals( perm.getPermissionNamespace() ) ).findAny() );
+		return getNode( namespace );
 	}
 
 	public static Voluntary<Permission> getPermission( String path )
@@ -418,10 +506,7 @@ public abstract class PermissionRegistry
 
 	protected static Permission getRootNode( String name )
 	{
-		for ( Permission perm : permissions )
-			if ( !perm.hasParent() && perm.getLocalName().equalsIgnoreCase( name ) )
-				return perm;
-		return null;
+		return PermissionIndex.get( new String[] {name} );
 	}
 
 	public static Stream<Permission> getRootNodes()
@@ -431,7 +516,32 @@ public abstract class PermissionRegistry
 
 	public static Stream<Permission> getRootNodes( boolean ignoreSysNode )
 	{
-		return permissions.stream().filter( perm -> !perm.hasParent() && ( !perm.getPermissionNamespace().startsWith( "sys" ) || ignoreSysNode ) );
+		List<Permission> result = new ArrayList<>();
+		PermissionIndex.forEachRoot( result::add );
+		return result.stream().filter( perm -> !perm.getPermissionNamespace().startsWith( "sys" ) || ignoreSysNode );
+	}
+
+	/**
+	 * Discards the cached permission results of every entity and group inheriting from the provided group, called after the group's permissions or inheritance changed.
+	 *
+	 * @param group The changed group
+	 */
+	static void invalidateInheritedResults( @Nonnull PermissibleGroup group )
+	{
+		for ( PermissibleEntity entity : PermissionIndex.getInheritors( group ) )
+			entity.invalidateCachedResults();
+	}
+
+	/**
+	 * Discards the cached results for a single permission of every entity and group inheriting from the provided group.
+	 *
+	 * @param group The changed group
+	 * @param perm  The changed permission
+	 */
+	static void invalidateInheritedResults( @Nonnull PermissibleGroup group, @Nonnull Permission perm )
+	{
+		for ( PermissibleEntity entity : PermissionIndex.getInheritors( group ) )
+			entity.invalidateCachedResults( perm );
 	}
 
 	/**
@@ -446,6 +556,8 @@ public abstract class PermissionRegistry
 
 		groups.clear();
 		entities.clear();
+		evicted.clear();
+		PermissionIndex.clearEntities();
 
 		if ( isDebugEnabled() )
 			L.info( EnumColor.YELLOW + "Loading permissions from backend!" );
@@ -512,9 +624,13 @@ public abstract class PermissionRegistry
 	 */
 	public static void reset() throws PermissionBackendException
 	{
+		commitBackends();
+
 		defaultGroups.clear();
 		entities.clear();
+		evicted.clear();
 		groups.clear();
+		PermissionIndex.clearEntities();
 
 		callEvent( PermissibleSystemEvent.Action.RELOADED );
 	}
@@ -526,7 +642,43 @@ public abstract class PermissionRegistry
 	 */
 	public static void resetEntity( Permissible entity )
 	{
-		entities.remove( entity.uuid() );
+		PermissibleEntity removed = entities.remove( entity.uuid() );
+		if ( removed != null )
+			removed.unindex();
+	}
+
+	/**
+	 * Unloads the entity if it's still the registered instance and has no unsaved changes. It remains weakly held, so while something else
+	 * references it, {@link #getPermissibleEntity(UUID)} returns the same instance rather than loading a copy.
+	 * Must be called holding the entity lock.
+	 *
+	 * @param entity the entity
+	 *
+	 * @return True if the entity was unloaded
+	 */
+	public static boolean evictEntity( PermissibleEntity entity )
+	{
+		if ( entity.isDirty() || !entities.remove( entity.uuid(), entity ) )
+			return false;
+		entity.unindex();
+		evicted.put( entity.uuid(), new EvictedReference( entity ) );
+
+		// Forgets the evicted entities that have since been collected
+		Reference<? extends PermissibleEntity> collected;
+		while ( ( collected = evictedQueue.poll() ) != null )
+			evicted.remove( ( ( EvictedReference ) collected ).uuid, collected );
+		return true;
+	}
+
+	/**
+	 * Reset in-memory object of specified entity, only if it is still the registered instance
+	 *
+	 * @param entity the entity
+	 */
+	public static void resetEntity( PermissibleEntity entity )
+	{
+		if ( entities.remove( entity.uuid(), entity ) )
+			entity.unindex();
 	}
 
 	/**
@@ -536,7 +688,12 @@ public abstract class PermissionRegistry
 	 */
 	public static void resetGroup( String groupName )
 	{
-		groups.remove( groupName );
+		groups.values().removeIf( group -> {
+			if ( !group.getName().equalsIgnoreCase( groupName ) )
+				return false;
+			group.unindex();
+			return true;
+		} );
 	}
 
 	/**
@@ -544,13 +701,32 @@ public abstract class PermissionRegistry
 	 */
 	public static void saveData() throws PermissionBackendException
 	{
-		permissions.forEach( Permission::commitToBackend );
+		PermissionIndex.forEach( Permission::commitToBackend );
 
 		for ( PermissibleGroup entity : groups.values() )
 			entity.save();
 
 		for ( PermissibleEntity entity : entities.values() )
 			entity.save();
+
+		// Evicted entities changed by someone still holding them
+		for ( WeakReference<PermissibleEntity> reference : evicted.values() )
+		{
+			PermissibleEntity entity = reference.get();
+			if ( entity != null && entity.isDirty() )
+				entity.save();
+		}
+
+		commitBackends();
+	}
+
+	/**
+	 * Writes the saves each backend may still be holding, e.g., those queued by the SQL backend.
+	 */
+	private static void commitBackends()
+	{
+		for ( PermissionBackend backend : backends )
+			backend.commit();
 	}
 
 	public static void setAllowOp( boolean allowOp ) throws ConfigException.Error
@@ -622,6 +798,7 @@ public abstract class PermissionRegistry
 	{
 		try
 		{
+			// Resetting commits the saves still queued on each backend
 			reset();
 		}
 		catch ( PermissionBackendException ignore )
@@ -649,6 +826,10 @@ public abstract class PermissionRegistry
 	{
 		synchronized ( this )
 		{
+			// Don't lose the saves still queued on the replaced backend
+			if ( backend != null )
+				backend.commit();
+
 			backend = backends.stream().filter( backend -> backend.getAliasName().equals( backendName ) ).findFirst().orElseThrow( () -> new IllegalArgumentException( "Backend " + backendName + " not found!" ) );
 			reset();
 			backend.initialize();
@@ -677,4 +858,29 @@ public abstract class PermissionRegistry
 	}
 
 	public static void setDefaultGroup( PermissibleGroup group );
+
+	public static class Config
+	{
+		public static final TypeBase PERMISSIONS_BASE = new TypeBase( "permissions" );
+		/**
+		 * Specifies the maximum number of permission results cached per entity.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   resultCacheSize: 512
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger RESULT_CACHE_SIZE = new TypeBase.TypeInteger( PERMISSIONS_BASE, "resultCacheSize", 512 );
+	}
+
+	private static final class EvictedReference extends WeakReference<PermissibleEntity>
+	{
+		final UUID uuid;
+
+		EvictedReference( PermissibleEntity entity )
+		{
+			super( entity, evictedQueue );
+			uuid = entity.uuid();
+		}
+	}
 }
@@ -98,6 +98,14 @@ public class PermissionResult
 	 * @return Unassigned will return the default value.
 	 */
 	public VoluntaryBoolean getValue()
+	{
+		return getValue( perm, childPerm );
+	}
+
+	/**
+	 * Resolves the final value of a permission from the child permission assigning it, shared with {@link PermissibleEntity#checkPermissions(Permission[], References)}.
+	 */
+	static VoluntaryBoolean getValue( Permission perm, ChildPermission childPerm )
 	{
 		if ( childPerm == null )
 			return perm.getPermissionMeta().getDefault();
@@ -0,0 +1,143 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Bounded, least recently used cache of the {@link PermissionResult}s computed for a single {@link PermissibleEntity}.
+ * <p>
+ * Results are keyed by the identity of the {@link Permission} node, which is unique per namespace, and the {@link References#getId()},
+ * so a lookup neither builds nor hashes strings. Entries never expire by time, they're recalculated or invalidated when the entity or
+ * one of the groups it inherits from changes.
+ */
+final class PermissionResultCache
+{
+	private final int maximumSize;
+	private final LinkedHashMap<Key, PermissionResult> results;
+	private long evictions = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	PermissionResultCache( int maximumSize )
+	{
+		this.maximumSize = maximumSize;
+		this.results = new LinkedHashMap<Key, PermissionResult>( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Key, PermissionResult> eldest )
+			{
+				if ( size() > PermissionResultCache.this.maximumSize )
+				{
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	synchronized void clear()
+	{
+		results.clear();
+	}
+
+	synchronized PermissionResult get( @Nonnull Permission perm, @Nonnull References refs )
+	{
+		PermissionResult result = results.get( new Key( perm, refs.getId() ) );
+		if ( result == null )
+			misses++;
+		else
+			hits++;
+		return result;
+	}
+
+	synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	synchronized long getHits()
+	{
+		return hits;
+	}
+
+	int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Removes every cached result for the provided permission, regardless of references.
+	 */
+	synchronized void invalidate( @Nonnull Permission perm )
+	{
+		results.keySet().removeIf( key -> key.perm == perm );
+	}
+
+	synchronized void put( @Nonnull Permission perm, @Nonnull References refs, @Nonnull PermissionResult result )
+	{
+		results.put( new Key( perm, refs.getId() ), result );
+	}
+
+	synchronized int size()
+	{
+		return results.size();
+	}
+
+	/**
+	 * Returns a copy of the cached results, so they can be recalculated without holding the cache lock.
+	 */
+	synchronized List<PermissionResult> values()
+	{
+		return new ArrayList<>( results.values() );
+	}
+
+	private static final class Key
+	{
+		private final int hashCode;
+		private final Permission perm;
+		private final int refsId;
+
+		Key( Permission perm, int refsId )
+		{
+			this.perm = perm;
+			this.refsId = refsId;
+			hashCode = System.identityHashCode( perm ) * 31 + refsId;
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			Key other = ( Key ) obj;
+			return perm == other.perm && refsId == other.refsId;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+}
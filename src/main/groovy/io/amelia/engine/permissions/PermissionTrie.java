@@ -0,0 +1,336 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Matches a single permission against any number of permission expressions at once.
+ * <p>
+ * Expressions are split on the namespace separator into a shared trie. Literal segments are looked up by a case-insensitive hash of the
+ * segment region, segments with ranges are tested with their compiled {@link PermissionMatcher.Expression} over the same region, and a
+ * segment consisting of only {@code *} spans one or more segments, the same as {@code *} does in {@link PermissionMatcher}. Lookups
+ * don't copy or lowercase the permission. Expressions that can't be split without changing their meaning, i.e., regular expressions and
+ * wildcards inside a segment such as {@code edit*}, are tested against the whole permission.
+ * <p>
+ * Reads are lock-free and may run concurrently with modifications.
+ *
+ * @param <V> The value associated with each expression, e.g., the grant or the entity
+ */
+public final class PermissionTrie<V>
+{
+	private final List<Entry<V>> raw = new CopyOnWriteArrayList<>();
+	private final Node<V> root = new Node<>( "" );
+
+	private static int segmentEnd( String permission, int start )
+	{
+		int end = permission.indexOf( '.', start );
+		return end < 0 ? permission.length() : end;
+	}
+
+	private static int hash( String str, int start, int end )
+	{
+		int hash = 0;
+		for ( int i = start; i < end; i++ )
+			hash = 31 * hash + Character.toLowerCase( str.charAt( i ) );
+		return hash ^ hash >>> 16;
+	}
+
+	/**
+	 * Checks if the expression has to be matched as a whole, either because it's a regular expression or because a wildcard inside
+	 * a segment may span the namespace separator.
+	 */
+	private static boolean isWhole( String expression )
+	{
+		if ( PermissionMatcher.compile( expression ).isRegex() )
+			return true;
+		for ( int start = 0; start <= expression.length(); )
+		{
+			int end = segmentEnd( expression, start );
+			if ( end - start != 1 && expression.indexOf( '*', start ) >= 0 && expression.indexOf( '*', start ) < end )
+				return true;
+			start = end + 1;
+		}
+		return false;
+	}
+
+	private static String strip( String expression )
+	{
+		if ( expression.startsWith( "-" ) )
+			expression = expression.substring( 1 );
+		if ( expression.startsWith( "#" ) )
+			expression = expression.substring( 1 );
+		return expression;
+	}
+
+	/**
+	 * Gets the first value, in no particular order, of an expression matching the permission that's accepted by the filter.
+	 * The lookup stops at the first accepted value.
+	 *
+	 * @param permission The permission, e.g., {@code site.foo.edit}
+	 * @param filter     The filter of matched values
+	 *
+	 * @return The value or null if none matched
+	 */
+	public V findFirst( @Nonnull String permission, @Nonnull Predicate<V> filter )
+	{
+		V match = find( root, permission, 0, filter );
+		if ( match != null )
+			return match;
+
+		for ( Entry<V> entry : raw )
+			if ( entry.expression.matches( permission ) && filter.test( entry.value ) )
+				return entry.value;
+		return null;
+	}
+
+	private V find( Node<V> node, String permission, int start, Predicate<V> filter )
+	{
+		if ( start > permission.length() )
+		{
+			for ( V value : node.values )
+				if ( filter.test( value ) )
+					return value;
+			return null;
+		}
+
+		int end = segmentEnd( permission, start );
+		int next = end + 1;
+		V match;
+
+		Node<V> child = node.getLiteral( permission, start, end );
+		if ( child != null && ( match = find( child, permission, next, filter ) ) != null )
+			return match;
+
+		for ( Entry<Node<V>> entry : node.patterns )
+			if ( entry.expression.matches( permission, start, end ) && ( match = find( entry.value, permission, next, filter ) ) != null )
+				return match;
+
+		Node<V> star = node.star;
+		if ( star != null )
+			// The lone wildcard consumes this segment and optionally any number of those following
+			for ( int i = next; ; i = segmentEnd( permission, i ) + 1 )
+			{
+				if ( ( match = find( star, permission, i, filter ) ) != null )
+					return match;
+				if ( i > permission.length() )
+					break;
+			}
+
+		return null;
+	}
+
+	/**
+	 * Calls the consumer for the value of every expression matching the permission.
+	 * A value registered under multiple matching expressions is passed once per expression.
+	 *
+	 * @param permission The permission, e.g., {@code site.foo.edit}
+	 * @param consumer   The consumer of matched values
+	 */
+	public void forEachMatch( @Nonnull String permission, @Nonnull Consumer<V> consumer )
+	{
+		findFirst( permission, value -> {
+			consumer.accept( value );
+			return false;
+		} );
+	}
+
+	/**
+	 * Gets the value of every expression matching the permission.
+	 *
+	 * @param permission The permission
+	 *
+	 * @return The matched values
+	 */
+	public List<V> getMatches( @Nonnull String permission )
+	{
+		List<V> matches = new ArrayList<>();
+		forEachMatch( permission, matches::add );
+		return matches;
+	}
+
+	public boolean hasMatch( @Nonnull String permission )
+	{
+		return findFirst( permission, value -> true ) != null;
+	}
+
+	private Node<V> nodeFor( String expression, boolean create )
+	{
+		Node<V> node = root;
+		for ( String segment : expression.toLowerCase().split( "\\.", -1 ) )
+		{
+			Node<V> child;
+			if ( "*".equals( segment ) )
+			{
+				child = node.star;
+				if ( child == null && create )
+					synchronized ( node )
+					{
+						if ( node.star == null )
+							node.star = new Node<>( segment );
+						child = node.star;
+					}
+			}
+			else if ( PermissionMatcher.isPattern( segment ) )
+			{
+				child = null;
+				for ( Entry<Node<V>> entry : node.patterns )
+					if ( entry.expression.getExpression().equals( segment ) )
+						child = entry.value;
+				if ( child == null && create )
+					synchronized ( node )
+					{
+						for ( Entry<Node<V>> entry : node.patterns )
+							if ( entry.expression.getExpression().equals( segment ) )
+								child = entry.value;
+						if ( child == null )
+						{
+							child = new Node<>( segment );
+							node.patterns.add( new Entry<>( PermissionMatcher.compile( segment ), child ) );
+						}
+					}
+			}
+			else
+				child = create ? node.putLiteral( segment ) : node.getLiteral( segment, 0, segment.length() );
+
+			if ( child == null )
+				return null;
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Adds the value for the provided expression
+	 *
+	 * @param expression The permission expression, e.g., {@code site.*.edit}
+	 * @param value      The value
+	 */
+	public void put( @Nonnull String expression, @Nonnull V value )
+	{
+		expression = strip( expression );
+
+		if ( isWhole( expression ) )
+			raw.add( new Entry<>( PermissionMatcher.compile( expression ), value ) );
+		else
+			nodeFor( expression, true ).values.add( value );
+	}
+
+	/**
+	 * Removes the value from the provided expression
+	 *
+	 * @param expression The permission expression
+	 * @param value      The value
+	 */
+	public void remove( @Nonnull String expression, @Nonnull V value )
+	{
+		expression = strip( expression );
+
+		if ( isWhole( expression ) )
+		{
+			String key = expression;
+			raw.removeIf( entry -> entry.expression.getExpression().equals( key ) && entry.value.equals( value ) );
+		}
+		else
+		{
+			Node<V> node = nodeFor( expression, false );
+			if ( node != null )
+				node.values.remove( value );
+		}
+	}
+
+	private static final class Entry<T>
+	{
+		final PermissionMatcher.Expression expression;
+		final T value;
+
+		Entry( PermissionMatcher.Expression expression, T value )
+		{
+			this.expression = expression;
+			this.value = value;
+		}
+	}
+
+	private static final class Node<V>
+	{
+		final List<Entry<Node<V>>> patterns = new CopyOnWriteArrayList<>();
+		final String segment;
+		final List<V> values = new CopyOnWriteArrayList<>();
+		/**
+		 * Open addressing table of the literal children, copied on write and kept at most half full so every probe ends at an empty slot.
+		 */
+		volatile Node<V>[] literals;
+		volatile Node<V> star;
+
+		@SuppressWarnings( "unchecked" )
+		Node( String segment )
+		{
+			this.segment = segment;
+			literals = new Node[0];
+		}
+
+		private static <V> void insert( Node<V>[] table, Node<V> child )
+		{
+			int mask = table.length - 1;
+			int i = hash( child.segment, 0, child.segment.length() ) & mask;
+			while ( table[i] != null )
+				i = ( i + 1 ) & mask;
+			table[i] = child;
+		}
+
+		Node<V> getLiteral( String permission, int start, int end )
+		{
+			Node<V>[] table = literals;
+			if ( table.length == 0 )
+				return null;
+
+			int length = end - start;
+			int mask = table.length - 1;
+			for ( int i = hash( permission, start, end ) & mask; ; i = ( i + 1 ) & mask )
+			{
+				Node<V> child = table[i];
+				if ( child == null )
+					return null;
+				if ( child.segment.length() == length && child.segment.regionMatches( true, 0, permission, start, length ) )
+					return child;
+			}
+		}
+
+		@SuppressWarnings( "unchecked" )
+		synchronized Node<V> putLiteral( String segment )
+		{
+			Node<V> child = getLiteral( segment, 0, segment.length() );
+			if ( child != null )
+				return child;
+
+			Node<V>[] table = literals;
+			int count = 1;
+			for ( Node<V> existing : table )
+				if ( existing != null )
+					count++;
+
+			Node<V>[] copy = new Node[Math.max( 4, Integer.highestOneBit( count * 2 - 1 ) << 1 )];
+			for ( Node<V> existing : table )
+				if ( existing != null )
+					insert( copy, existing );
+
+			child = new Node<>( segment );
+			insert( copy, child );
+			literals = copy;
+			return child;
+		}
+	}
+}
@@ -9,12 +9,18 @@
  */
 package io.amelia.engine.permissions;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
@@ -45,7 +51,43 @@ public class References implements Iterable<String>
 		return new ReferencesCollector();
 	}
 
+	/**
+	 * Maps each distinct joined reference set to a small unique id, so equal References share an id without hashing their contents on every lookup.
+	 * The ids are only weakly reachable from here and are released once no References holds them anymore, so the map doesn't grow with every
+	 * reference ever seen. Ids are never reused, a released reference set is simply given a new id the next time.
+	 */
+	private static final Map<String, IdReference> ids = new ConcurrentHashMap<>();
+	private static final ReferenceQueue<Id> idQueue = new ReferenceQueue<>();
+	private static final AtomicInteger lastId = new AtomicInteger();
+
+	private static Id intern( String key )
+	{
+		expungeIds();
+
+		for ( ; ; )
+		{
+			IdReference ref = ids.get( key );
+			Id id = ref == null ? null : ref.get();
+			if ( id != null )
+				return id;
+
+			Id newId = new Id( lastId.incrementAndGet() );
+			IdReference newRef = new IdReference( key, newId );
+			if ( ref == null ? ids.putIfAbsent( key, newRef ) == null : ids.replace( key, ref, newRef ) )
+				return newId;
+		}
+	}
+
+	private static void expungeIds()
+	{
+		Reference<? extends Id> ref;
+		while ( ( ref = idQueue.poll() ) != null )
+			ids.remove( ( ( IdReference ) ref ).key, ref );
+	}
+
 	protected final Set<String> refs = new TreeSet<>();
+	private volatile String hash = null;
+	private volatile Id id = null;
 
 	References()
 	{
@@ -60,6 +102,7 @@ public class References implements Iterable<String>
 	public References add( References refs )
 	{
 		this.refs.addAll( refs.refs );
+		changed();
 		return this;
 	}
 
@@ -77,18 +120,53 @@ public class References implements Iterable<String>
 					add( ref.split( "," ) );
 				else
 					this.refs.add( UtilityStrings.removeInvalidChars( ref.toLowerCase() ) );
+		changed();
 		return this;
 	}
 
 	public References addAll( Collection<? extends References> refs )
 	{
 		this.refs.addAll( refs.stream().flatMap( r -> r.refs.stream() ).collect( Collectors.toList() ) );
+		changed();
 		return this;
 	}
 
+	/**
+	 * Clears the cached id and hash after the references were modified
+	 */
+	protected void changed()
+	{
+		id = null;
+		hash = null;
+	}
+
+	/**
+	 * Returns an id that is equal for any two References containing the same references.
+	 * The id is computed once and kept until these References are modified. Keep the References, not just the id, for as long as the id is
+	 * used as a key, otherwise equal References created later might be given a different id.
+	 *
+	 * @return The references id
+	 */
+	public int getId()
+	{
+		Id id = this.id;
+		if ( id == null )
+		{
+			id = intern( join() );
+			this.id = id;
+		}
+		return id.value;
+	}
+
 	public String hash()
 	{
-		return UtilityEncrypt.md5Hex( join() );
+		String hash = this.hash;
+		if ( hash == null )
+		{
+			hash = UtilityEncrypt.md5Hex( join() );
+			this.hash = hash;
+		}
+		return hash;
 	}
 
 	public boolean isEmpty()
@@ -122,6 +200,7 @@ public class References implements Iterable<String>
 	public References remove( References refs )
 	{
 		this.refs.removeAll( refs.refs );
+		changed();
 		return this;
 	}
 
@@ -129,6 +208,7 @@ public class References implements Iterable<String>
 	{
 		for ( String ref : refs )
 			this.refs.remove( ref.toLowerCase() );
+		changed();
 		return this;
 	}
 
@@ -138,6 +218,27 @@ public class References implements Iterable<String>
 		return "References{" + join() + "}";
 	}
 
+	private static final class Id
+	{
+		private final int value;
+
+		private Id( int value )
+		{
+			this.value = value;
+		}
+	}
+
+	private static final class IdReference extends WeakReference<Id>
+	{
+		private final String key;
+
+		private IdReference( String key, Id id )
+		{
+			super( id, idQueue );
+			this.key = key;
+		}
+	}
+
 	private static class ReferencesCollector implements Collector<References, References, References>
 	{
 		@Override
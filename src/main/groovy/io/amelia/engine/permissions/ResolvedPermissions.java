@@ -0,0 +1,248 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The resolved permission view of a {@link PermissibleEntity}, used to answer {@link PermissibleEntity#checkPermission(Permission, References)}.
+ * <p>
+ * Permissions are stored in a trie keyed on the {@link PermissionNamespace} nodes, so finding the {@link ChildPermission} for a node is a walk
+ * of the namespace depth. For a {@link PermissibleGroup} the trie is flattened with the permissions of every group it inherits from, in the same
+ * depth-first order the groups are searched, and each grant remembers the group references of every path it was inherited through. For any other entity the
+ * trie only holds its own permissions followed by links to the flattened views of its direct groups, so a change to a group never requires
+ * rebuilding the views of its members.
+ * <p>
+ * Views are immutable once built and rebuilt lazily after the entity or one of its inherited groups changes.
+ */
+final class ResolvedPermissions
+{
+	private static final Grant[] NO_GRANTS = new Grant[0];
+
+	static ResolvedPermissions build( @Nonnull PermissibleEntity entity )
+	{
+		ResolvedPermissions resolved = new ResolvedPermissions();
+
+		if ( entity.isGroup() )
+		{
+			Set<PermissibleEntity> stacker = new HashSet<>();
+			stacker.add( entity );
+			resolved.flatten( entity, new References[0], stacker, new HashMap<>() );
+			resolved.links = new Link[0];
+		}
+		else
+		{
+			resolved.addGrants( entity, Memberships.NONE );
+
+			List<Link> links = new ArrayList<>();
+			for ( Map.Entry<PermissibleGroup, References> entry : entity.groupEntries() )
+				links.add( new Link( entry.getKey(), entry.getValue() ) );
+			for ( Map.Entry<PermissibleGroup, TimedReferences> entry : entity.timedGroupEntries() )
+				links.add( new Link( entry.getKey(), entry.getValue() ) );
+			resolved.links = links.toArray( new Link[0] );
+		}
+
+		return resolved;
+	}
+
+	private static boolean matches( References[] path, References refs )
+	{
+		for ( References membership : path )
+			if ( !matches( membership, refs ) )
+				return false;
+		return true;
+	}
+
+	private static boolean matches( References membership, References refs )
+	{
+		if ( membership instanceof TimedReferences && ( ( TimedReferences ) membership ).isExpired() )
+			return false;
+		return membership.match( refs );
+	}
+
+	private final Node root = new Node();
+	private Link[] links;
+
+	private ResolvedPermissions()
+	{
+
+	}
+
+	private void addGrant( @Nonnull ChildPermission child, @Nonnull References refs, @Nonnull Memberships memberships )
+	{
+		Node node = nodeFor( child.getPermission(), true );
+		Grant[] grants = Arrays.copyOf( node.grants, node.grants.length + 1 );
+		grants[grants.length - 1] = new Grant( child, refs, memberships );
+		node.grants = grants;
+	}
+
+	private void addGrants( @Nonnull PermissibleEntity entity, @Nonnull Memberships memberships )
+	{
+		for ( Map.Entry<ChildPermission, References> entry : entity.permissionEntries() )
+			addGrant( entry.getKey(), entry.getValue(), memberships );
+		for ( Map.Entry<ChildPermission, TimedReferences> entry : entity.timedPermissionEntries() )
+			addGrant( entry.getKey(), entry.getValue(), memberships );
+	}
+
+	/**
+	 * Finds the {@link ChildPermission} that decides the provided permission for the references, searching this entity first and then its groups depth-first.
+	 *
+	 * @param perm The permission node
+	 * @param refs The references being checked
+	 *
+	 * @return The child permission, null if the permission isn't assigned
+	 */
+	@Nullable
+	ChildPermission find( @Nonnull Permission perm, @Nonnull References refs )
+	{
+		Node node = nodeFor( perm, false );
+		if ( node != null )
+			for ( Grant grant : node.grants )
+				if ( grant.matches( refs ) )
+					return grant.child;
+
+		for ( Link link : links )
+			if ( matches( link.membership, refs ) )
+			{
+				ChildPermission child = link.group.getResolvedPermissions().find( perm, refs );
+				if ( child != null )
+					return child;
+			}
+
+		return null;
+	}
+
+	/**
+	 * Adds the permissions of the entity and, depth-first, of every group it inherits from.
+	 * A group reached again through another path, e.g., Group1 -> Group2 -> Group4 and Group1 -> Group3 -> Group4, keeps its grants where it was
+	 * first reached and gains the memberships of the new path, so its grants apply when either path matches the references.
+	 * The stacker holds the groups of the current path, preventing infinite looping, e.g., Group1 -> Group2 -> Group3 -> Group1
+	 */
+	private void flatten( @Nonnull PermissibleEntity entity, @Nonnull References[] path, @Nonnull Set<PermissibleEntity> stacker, @Nonnull Map<PermissibleEntity, Memberships> flattened )
+	{
+		Memberships memberships = flattened.get( entity );
+		if ( memberships == null )
+		{
+			memberships = new Memberships();
+			flattened.put( entity, memberships );
+			memberships.paths.add( path );
+			addGrants( entity, memberships );
+		}
+		else
+			memberships.paths.add( path );
+
+		for ( Map.Entry<PermissibleGroup, References> entry : entity.groupEntries() )
+			flatten( entry.getKey(), path, entry.getValue(), stacker, flattened );
+		for ( Map.Entry<PermissibleGroup, TimedReferences> entry : entity.timedGroupEntries() )
+			flatten( entry.getKey(), path, entry.getValue(), stacker, flattened );
+	}
+
+	private void flatten( @Nonnull PermissibleGroup group, @Nonnull References[] path, @Nonnull References membership, @Nonnull Set<PermissibleEntity> stacker, @Nonnull Map<PermissibleEntity, Memberships> flattened )
+	{
+		if ( !stacker.add( group ) )
+			return;
+		flatten( group, withMembership( path, membership ), stacker, flattened );
+		stacker.remove( group );
+	}
+
+	private Node nodeFor( @Nullable Permission perm, boolean create )
+	{
+		if ( perm == null )
+			return root;
+
+		Node parent = nodeFor( perm.getParent(), create );
+		if ( parent == null )
+			return null;
+
+		Node node = parent.children.get( perm.getLocalName() );
+		if ( node == null && create )
+		{
+			node = new Node();
+			parent.children.put( perm.getLocalName(), node );
+		}
+		return node;
+	}
+
+	private References[] withMembership( References[] path, References membership )
+	{
+		References[] result = Arrays.copyOf( path, path.length + 1 );
+		result[path.length] = membership;
+		return result;
+	}
+
+	private static final class Grant
+	{
+		final ChildPermission child;
+		final Memberships memberships;
+		final References refs;
+
+		Grant( ChildPermission child, References refs, Memberships memberships )
+		{
+			this.child = child;
+			this.refs = refs;
+			this.memberships = memberships;
+		}
+
+		boolean matches( References query )
+		{
+			return ResolvedPermissions.matches( refs, query ) && memberships.matches( query );
+		}
+	}
+
+	/**
+	 * The group references of every path an entity is inherited through, empty paths for the entity's own grants.
+	 */
+	private static final class Memberships
+	{
+		static final Memberships NONE = new Memberships();
+
+		static
+		{
+			NONE.paths.add( new References[0] );
+		}
+
+		final List<References[]> paths = new ArrayList<>();
+
+		boolean matches( References query )
+		{
+			for ( References[] path : paths )
+				if ( ResolvedPermissions.matches( path, query ) )
+					return true;
+			return false;
+		}
+	}
+
+	private static final class Link
+	{
+		final PermissibleGroup group;
+		final References membership;
+
+		Link( PermissibleGroup group, References membership )
+		{
+			this.group = group;
+			this.membership = membership;
+		}
+	}
+
+	private static final class Node
+	{
+		final Map<String, Node> children = new HashMap<>();
+		Grant[] grants = NO_GRANTS;
+	}
+}
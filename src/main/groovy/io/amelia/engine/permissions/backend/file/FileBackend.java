@@ -14,10 +14,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
@@ -25,8 +27,12 @@ import javax.annotation.Nullable;
 
 import io.amelia.data.ContainerBase;
 import io.amelia.data.ContainerWithValue;
+import io.amelia.data.TypeBase;
 import io.amelia.data.parcel.Parcel;
 import io.amelia.data.parcel.ParcelLoader;
+import io.amelia.engine.looper.LooperRouter;
+import io.amelia.engine.looper.LooperTaskTrait;
+import io.amelia.engine.permissions.PermissionRegistry;
 import io.amelia.foundation.ConfigRegistry;
 import io.amelia.foundation.Foundation;
 import io.amelia.lang.ParcelableException;
@@ -45,14 +51,20 @@ import io.amelia.support.Streams;
 
 /**
  * Provides the File Permission Backend
+ * <p>
+ * Permission nodes and groups are kept in the permissions file, while each entity is kept in its own file under the entities directory,
+ * sharded by the first two characters of its id. Entities are only read when first accessed, written individually on save, and evicted
+ * from memory once idle while more than {@link Config#MAX_RESIDENT_ENTITIES} are resident or the heap runs low.
  */
 public class FileBackend extends PermissionBackend
 {
 	// TODO Temporary
 	public static final UUID DEFUALT_UUID = UUID.randomUUID();
 
+	public Path entitiesDirectory;
 	public Parcel parcel;
 	public Path permissionsFile;
+	private LooperTaskTrait.RepeatingTaskEntry evictTask = null;
 
 	public FileBackend( Permissions permissions, boolean isDefault )
 	{
@@ -92,10 +104,118 @@ public class FileBackend extends PermissionBackend
 		return null;
 	}
 
+	/**
+	 * Writes the entity to its own file, leaving the permissions file and every other entity untouched.
+	 *
+	 * @param uuid   The entity id
+	 * @param entity The complete entity section, holding its permissions and groups
+	 *
+	 * @return True if the file was written
+	 */
+	boolean commitEntity( @Nonnull UUID uuid, @Nonnull Parcel entity )
+	{
+		Path file = getEntityFile( uuid );
+		try
+		{
+			if ( entity.hasChildren() )
+			{
+				Files.createDirectories( file.getParent() );
+				IO.writeStringToPath( ParcelLoader.encodeYaml( entity ), file );
+			}
+			else
+				Files.deleteIfExists( file );
+			return true;
+		}
+		catch ( IOException e )
+		{
+			Permissions.L.severe( "Error saving permissions entity file to " + file.toString(), e );
+			return false;
+		}
+	}
+
+	/**
+	 * Unloads the idle entities beyond {@link Config#MAX_RESIDENT_ENTITIES}, least recently accessed first.
+	 * While the heap is nearly exhausted the idle time is ignored and the resident entities are halved.
+	 * <p>
+	 * Only clean entities are unloaded, a dirty one is saved and left for the next pass, so a change made while it's being saved is never lost.
+	 * See {@link PermissionRegistry#evictEntity(PermissibleEntity)} for entities still referenced elsewhere.
+	 */
+	private void evictEntities()
+	{
+		int maxResident = ConfigRegistry.config.getInteger( Config.MAX_RESIDENT_ENTITIES );
+
+		Runtime runtime = Runtime.getRuntime();
+		boolean lowMemory = runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() * 0.9;
+		if ( lowMemory )
+			maxResident = Math.min( maxResident, ( int ) PermissionRegistry.getEntities().filter( entity -> entity instanceof FileEntity ).count() / 2 );
+
+		List<PermissibleEntity> resident = PermissionRegistry.getEntities().filter( entity -> entity instanceof FileEntity ).collect( Collectors.toList() );
+		if ( resident.size() <= maxResident )
+			return;
+
+		resident.sort( Comparator.comparingLong( PermissibleEntity::getLastAccessed ) );
+
+		long idleSince = System.currentTimeMillis() - ConfigRegistry.config.getInteger( Config.ENTITY_IDLE_TIMEOUT ) * 1000L;
+		int evicted = 0;
+
+		for ( int i = 0; i < resident.size() - maxResident; i++ )
+		{
+			PermissibleEntity entity = resident.get( i );
+			if ( !lowMemory && entity.getLastAccessed() > idleSince )
+				break;
+
+			if ( entity.isDirty() )
+			{
+				entity.save();
+				continue;
+			}
+
+			synchronized ( entity )
+			{
+				if ( PermissionRegistry.evictEntity( entity ) )
+					evicted++;
+			}
+		}
+
+		if ( evicted > 0 && PermissionRegistry.isDebugEnabled() )
+			Permissions.L.info( String.format( "Evicted %s idle entities from the File Backend, %s remain resident.", evicted, resident.size() - evicted ) );
+	}
+
 	@Override
 	public PermissibleEntity getEntity( UUID uuid )
 	{
-		return new FileEntity( this, uuid, "" );
+		FileEntity entity = new FileEntity( this, uuid, "" );
+		entity.reload();
+		return entity;
+	}
+
+	Path getEntityFile( @Nonnull UUID uuid )
+	{
+		String id = uuid.toString();
+		return entitiesDirectory.resolve( id.substring( 0, 2 ) ).resolve( id + ".yaml" );
+	}
+
+	/**
+	 * Reads the entity from its own file.
+	 *
+	 * @param uuid The entity id
+	 *
+	 * @return The entity section, empty if the entity was never saved
+	 */
+	Parcel getEntityParcel( @Nonnull UUID uuid )
+	{
+		Path file = getEntityFile( uuid );
+		if ( Files.notExists( file ) )
+			return Parcel.empty();
+
+		try
+		{
+			return ParcelLoader.decodeYaml( file );
+		}
+		catch ( IOException | ParcelableException.Error e )
+		{
+			throw new PermissionBackendException( "Error loading permissions entity file " + file.toString(), e );
+		}
 	}
 
 	@Override
@@ -107,7 +227,22 @@ public class FileBackend extends PermissionBackend
 	@Override
 	public Stream<String> getEntityNames( int type )
 	{
-		Parcel section = parcel.getChild( type == 1 ? "groups" : "entities" );
+		if ( type != 1 )
+			try
+			{
+				if ( Files.notExists( entitiesDirectory ) )
+					return Stream.empty();
+				try ( Stream<Path> files = Files.walk( entitiesDirectory, 2 ) )
+				{
+					return files.map( file -> file.getFileName().toString() ).filter( name -> name.endsWith( ".yaml" ) ).map( name -> name.substring( 0, name.length() - 5 ) ).collect( Collectors.toList() ).stream();
+				}
+			}
+			catch ( IOException e )
+			{
+				throw new PermissionBackendException( e );
+			}
+
+		Parcel section = parcel.getChild( "groups" );
 		if ( section == null )
 			return Stream.empty();
 		return section.getChildren().map( ContainerBase::getLocalName );
@@ -116,7 +251,9 @@ public class FileBackend extends PermissionBackend
 	@Override
 	public PermissibleGroup getGroup( UUID uuid )
 	{
-		return new FileGroup( this, uuid, "" );
+		FileGroup group = new FileGroup( this, uuid, "" );
+		group.reload();
+		return group;
 	}
 
 	@Override
@@ -162,8 +299,11 @@ public class FileBackend extends PermissionBackend
 		try
 		{
 			permissionsFile = ConfigRegistry.config.getStringAsPath( "permissions.file" ).orElse( Paths.get( "permissions.yaml" ) );
+			entitiesDirectory = ConfigRegistry.config.getStringAsPath( Config.ENTITIES_DIRECTORY );
 			parcel = ParcelLoader.decodeYaml( permissionsFile );
 			Permissions.L.info( "Permissions file successfully loaded." );
+
+			migrateEntities();
 		}
 		catch ( FileNotFoundException e )
 		{
@@ -177,18 +317,21 @@ public class FileBackend extends PermissionBackend
 		{
 			throw new PermissionBackendException( "Error loading permissions file!", e );
 		}
+
+		long evictInterval = ConfigRegistry.config.getInteger( Config.EVICT_INTERVAL ) * 1000L;
+		// Replace the task posted by an earlier initialize, e.g., on reload
+		if ( evictTask != null )
+			evictTask.cancel();
+		evictTask = LooperRouter.getMainLooper().postTaskRepeating( entry -> evictEntities(), evictInterval, true );
 	}
 
+	/**
+	 * Entities are loaded on first access, see {@link PermissionRegistry#getPermissibleEntity(UUID)}.
+	 */
 	@Override
 	public void loadEntities() throws PermissionBackendException
 	{
-		Parcel section = parcel.getChild( "entities" );
-		if ( section == null )
-			return;
-
-		section.getChildren().forEach( entity -> {
-			Foundation.getPermissions().getPermissibleEntity( UUID.fromString( entity.getLocalName() ), true );
-		} );
+		// Nothing to do here!
 	}
 
 	@Override
@@ -203,6 +346,36 @@ public class FileBackend extends PermissionBackend
 		} );
 	}
 
+	/**
+	 * Moves entities kept in the permissions file by earlier versions to their own files, group sections found there are merged into {@code groups}.
+	 */
+	private void migrateEntities() throws PermissionBackendException
+	{
+		Parcel section = parcel.getChild( "entities" );
+		if ( section == null )
+			return;
+
+		Parcel groups = parcel.getChildOrCreate( "groups" );
+		int migrated = 0;
+
+		for ( Parcel entity : section.getChildren().collect( Collectors.toList() ) )
+		{
+			entity.removeFromParent();
+			if ( groups.hasChild( entity.getLocalName() ) )
+				groups.getChild( entity.getLocalName() ).merge( entity );
+			else
+			{
+				commitEntity( UUID.fromString( entity.getLocalName() ), entity );
+				migrated++;
+			}
+		}
+
+		section.removeFromParent();
+		commit();
+
+		Permissions.L.info( String.format( "Moved %s entities from the permissions file to %s.", migrated, entitiesDirectory ) );
+	}
+
 	@Override
 	public void loadPermissions() throws PermissionBackendException
 	{
@@ -318,4 +491,49 @@ public class FileBackend extends PermissionBackend
 
 		commit();
 	}
+
+	public static class Config
+	{
+		public static final TypeBase FILE_BASE = new TypeBase( PermissionRegistry.Config.PERMISSIONS_BASE, "file" );
+		/**
+		 * Specifies the directory holding one file per entity.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   file:
+		 *     entitiesDirectory: permissions-entities
+		 * </pre>
+		 */
+		public static final TypeBase.TypePath ENTITIES_DIRECTORY = new TypeBase.TypePath( FILE_BASE, "entitiesDirectory", Paths.get( "permissions-entities" ) );
+		/**
+		 * Specifies how many seconds an entity must go unaccessed before it can be evicted.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   file:
+		 *     entityIdleTimeout: 600
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger ENTITY_IDLE_TIMEOUT = new TypeBase.TypeInteger( FILE_BASE, "entityIdleTimeout", 600 );
+		/**
+		 * Specifies how many seconds pass between checks for idle entities to evict.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   file:
+		 *     evictInterval: 60
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger EVICT_INTERVAL = new TypeBase.TypeInteger( FILE_BASE, "evictInterval", 60 );
+		/**
+		 * Specifies how many entities may stay resident before idle ones are evicted.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   file:
+		 *     maxResidentEntities: 10000
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger MAX_RESIDENT_ENTITIES = new TypeBase.TypeInteger( FILE_BASE, "maxResidentEntities", 10000 );
+	}
 }
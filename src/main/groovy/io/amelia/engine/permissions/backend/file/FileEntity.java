@@ -30,6 +30,7 @@ import io.amelia.support.Streams;
 public class FileEntity extends PermissibleEntity
 {
 	private final FileBackend backend;
+	private Parcel data = null;
 
 	public FileEntity( FileBackend backend, UUID uuid, String name )
 	{
@@ -37,6 +38,30 @@ public class FileEntity extends PermissibleEntity
 		this.backend = backend;
 	}
 
+	private Parcel getData()
+	{
+		return data == null ? backend.getEntityParcel( uuid() ) : data;
+	}
+
+	@Override
+	public void reload()
+	{
+		// Called by the PermissibleEntity constructor before the backend is assigned, the FileBackend reloads once constructed
+		if ( backend == null )
+			return;
+
+		// Groups and permissions are read from the same file, so it's only read once per reload
+		data = backend.getEntityParcel( uuid() );
+		try
+		{
+			super.reload();
+		}
+		finally
+		{
+			data = null;
+		}
+	}
+
 	@Override
 	public void reloadGroups()
 	{
@@ -46,7 +71,7 @@ public class FileEntity extends PermissibleEntity
 		clearGroups();
 		clearTimedGroups();
 
-		Parcel groups = backend.getParcel().getChildOrCreate( "entities." + uuid().toString() + ".groups" );
+		Parcel groups = getData().getChildOrCreate( "groups" );
 		groups.getChildren().forEach( child -> addGroup0( backend.getPermissions().getGroup( UUID.fromString( child.getLocalName() ) ), References.format( child.getString( "refs" ).orElse( "" ) ) ) );
 	}
 
@@ -56,7 +81,7 @@ public class FileEntity extends PermissibleEntity
 		if ( isDebug() )
 			Permissions.L.info( EnumColor.YELLOW + "Permissions being loaded for entity " + uuid() );
 
-		Parcel permissions = backend.getParcel().getChildOrCreate( "entities." + uuid().toString() + ".permissions" );
+		Parcel permissions = getData().getChildOrCreate( "permissions" );
 
 		clearPermissions();
 		clearTimedPermissions();
@@ -73,7 +98,7 @@ public class FileEntity extends PermissibleEntity
 	@Override
 	public void remove()
 	{
-		backend.getParcel().getChildOrCreate( "entities" ).childDestroy( uuid().toString() );
+		backend.commitEntity( uuid(), Parcel.empty() );
 	}
 
 	@Override
@@ -87,7 +112,8 @@ public class FileEntity extends PermissibleEntity
 			if ( isDebug() )
 				Permissions.L.info( EnumColor.YELLOW + "Entity " + getStringId() + " being saved to backend" );
 
-			Parcel root = backend.getParcel().getChildOrCreate( "entities." + uuid().toString() );
+			long modifications = getModifications();
+			Parcel root = Parcel.empty();
 
 			Streams.forEachWithException( getChildPermissions( null ), child -> {
 				Permission perm = child.getPermission();
@@ -98,6 +124,9 @@ public class FileEntity extends PermissibleEntity
 
 			for ( Map.Entry<PermissibleGroup, References> entry : getGroupEntries( null ).entrySet() )
 				root.setValue( "groups." + entry.getKey().uuid().toString(), entry.getValue().join() );
+
+			if ( backend.commitEntity( uuid(), root ) )
+				markSaved( modifications );
 		}
 		catch ( ParcelableException.Error e )
 		{
@@ -37,6 +37,14 @@ public class FileGroup extends PermissibleGroup
 		this.backend = backend;
 	}
 
+	@Override
+	public void reload()
+	{
+		// Called by the PermissibleEntity constructor before the backend is assigned, the FileBackend reloads once constructed
+		if ( backend != null )
+			super.reload();
+	}
+
 	@Override
 	public void reloadGroups()
 	{
@@ -46,8 +54,8 @@ public class FileGroup extends PermissibleGroup
 		clearGroups();
 		clearTimedGroups();
 
-		Parcel groups = backend.getParcel().getChildOrCreate( "entities." + uuid() + ".groups" );
-		groups.getChildren().forEach( group -> addGroup0( Foundation.getPermissions().getGroup( UUID.fromString( group.getLocalName() ), true ), References.format( groups.getString().orElse( "" ) ) ) );
+		Parcel groups = backend.getParcel().getChildOrCreate( "groups." + uuid() + ".groups" );
+		groups.getChildren().forEach( group -> addGroup0( Foundation.getPermissions().getGroup( UUID.fromString( group.getLocalName() ), true ), References.format( group.getString().orElse( "" ) ) ) );
 	}
 
 	@Override
@@ -56,7 +64,7 @@ public class FileGroup extends PermissibleGroup
 		if ( isDebug() )
 			Permissions.L.info( EnumColor.YELLOW + "Permissions being loaded for entity " + getStringId() );
 
-		Parcel permissions = backend.getParcel().getChildOrCreate( "entities." + uuid() + ".permissions" );
+		Parcel permissions = backend.getParcel().getChildOrCreate( "groups." + uuid() + ".permissions" );
 
 		clearPermissions();
 		clearTimedPermissions();
@@ -89,7 +97,7 @@ public class FileGroup extends PermissibleGroup
 			if ( isDebug() )
 				Permissions.L.info( EnumColor.YELLOW + "Group " + getStringId() + " being saved to backend" );
 
-			Parcel root = backend.getParcel().getChildOrCreate( "entities." + uuid().toString() );
+			Parcel root = backend.getParcel().getChildOrCreate( "groups." + uuid().toString() );
 
 			Streams.forEachWithException( getChildPermissions( null ), child -> {
 				Permission perm = child.getPermission();
@@ -9,17 +9,26 @@
  */
 package io.amelia.engine.permissions.backend.sql;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
+import io.amelia.data.TypeBase;
 import io.amelia.database.Database;
 import io.amelia.database.DatabaseManager;
 import io.amelia.database.elegant.ElegantQuerySelect;
+import io.amelia.engine.config.ConfigRegistry;
+import io.amelia.engine.permissions.PermissionRegistry;
+import io.amelia.foundation.Foundation;
 import io.amelia.lang.DatabaseException;
 import io.amelia.permissions.PermissibleEntity;
 import io.amelia.permissions.PermissibleGroup;
@@ -41,55 +50,92 @@ import io.amelia.support.VoluntaryBoolean;
  */
 public class SQLBackend extends PermissionBackend
 {
+	private static Map<String, List<Map<String, String>>> groupRowsByOwner( Database db, int type ) throws DatabaseException
+	{
+		Map<String, List<Map<String, String>>> result = new HashMap<>();
+		ElegantQuerySelect select = db.table( "permissions_groups" ).select().where( "type" ).matches( type ).executeWithException();
+		for ( Map<String, String> row : select.set().castMapValue( String.class ) )
+			result.computeIfAbsent( row.get( "parent" ), key -> new ArrayList<>() ).add( row );
+		select.close();
+		return result;
+	}
+
+	private static Map<String, List<Map<String, String>>> permissionRowsByOwner( Database db, int type ) throws DatabaseException
+	{
+		Map<String, List<Map<String, String>>> result = new HashMap<>();
+		ElegantQuerySelect select = db.table( "permissions_entity" ).select().where( "type" ).matches( type ).executeWithException();
+		for ( Map<String, String> row : select.set().castMapValue( String.class ) )
+			result.computeIfAbsent( row.get( "owner" ), key -> new ArrayList<>() ).add( row );
+		select.close();
+		return result;
+	}
+
+	private static UUID toUuid( String owner )
+	{
+		if ( owner == null )
+			return null;
+		try
+		{
+			return UUID.fromString( owner );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Default group ids keyed by {@link References#getId()}, loaded with one query on first use.
+	 */
+	private final Map<Integer, UUID> defaultGroups = new ConcurrentHashMap<>();
+	/**
+	 * The References the default group ids were taken from, kept so their ids aren't released while they're used as keys.
+	 */
+	private final List<References> defaultGroupRefs = new CopyOnWriteArrayList<>();
+	private volatile boolean defaultGroupsLoaded = false;
+	/**
+	 * The rows fetched by {@link #load(int)}, only visible to the loading thread so lookups on other threads still query the database.
+	 */
+	private final ThreadLocal<Prefetched> prefetched = new ThreadLocal<>();
+	private final SQLWriteBehind writeBehind;
+
 	public SQLBackend( Permissions permissions, boolean isDefault )
 	{
 		super( permissions, "sql", isDefault );
+
+		writeBehind = new SQLWriteBehind( this, ConfigRegistry.config.getInteger( Config.WRITE_DELAY ), ConfigRegistry.config.getInteger( Config.BATCH_SIZE ) );
 	}
 
+	/**
+	 * Writes every queued entity and group save to the database now.
+	 */
 	@Override
 	public void commit()
 	{
-		// Nothing to do here!
+		writeBehind.flush();
 	}
 
 	@Override
 	public PermissibleGroup getDefaultGroup( References refs )
 	{
-		try
-		{
-			Map<References, String> defaults = new HashMap<>();
+		if ( !defaultGroupsLoaded )
+			loadDefaultGroups();
 
-			ElegantQuerySelect result = getSQL().table( "permissions_groups" ).select().where( "parent" ).matches( "default" ).and().where( "type" ).matches( 1 ).executeWithException();
-			// ResultSet result = getSQL().query( "SELECT * FROM `permissions_groups` WHERE `parent` = 'default' AND `type` = '1';" );
-
-			if ( result.count() < 1 )
-				throw new RuntimeException( "There is no default group set. New entities will not have any groups." );
+		UUID uuid = refs == null || refs.isEmpty() ? null : defaultGroups.get( refs.getId() );
+		if ( uuid == null )
+			uuid = defaultGroups.get( References.format( "" ).getId() );
+		if ( uuid == null )
+			throw new RuntimeException( "There is no default group set. New entities will not have any groups." );
 
-			do
-			{
-				References ref = References.format( result.getString( "ref" ) );
-				if ( ref.isEmpty() )
-					defaults.put( References.format( "" ), result.getString( "child" ) );
-				else
-					defaults.put( ref, result.getString( "child" ) );
-			}
-			while ( result.next() );
-
-			if ( defaults.isEmpty() )
-				throw new RuntimeException( "There is no default group set. New entities will not have any groups." );
-
-			return getGroup( UUID.fromString( refs == null || refs.isEmpty() ? defaults.get( "" ) : defaults.get( refs ) ) );
-		}
-		catch ( DatabaseException e )
-		{
-			throw new RuntimeException( e );
-		}
+		return Foundation.getPermissions().getGroup( uuid );
 	}
 
 	@Override
 	public PermissibleEntity getEntity( UUID uuid )
 	{
-		return new SQLEntity( this, uuid, "" );
+		SQLEntity entity = new SQLEntity( this, uuid, "" );
+		entity.reload();
+		return entity;
 	}
 
 	@Override
@@ -117,7 +163,49 @@ public class SQLBackend extends PermissionBackend
 	@Override
 	public PermissibleGroup getGroup( UUID uuid )
 	{
-		return new SQLGroup( this, uuid, "" );
+		SQLGroup group = new SQLGroup( this, uuid, "" );
+		group.reload();
+		return group;
+	}
+
+	/**
+	 * Gets the {@code permissions_groups} rows of the owner, from the rows fetched by {@link #loadEntities()} or {@link #loadGroups()} when called while they run on this thread.
+	 *
+	 * @param type  0 for entities, 1 for groups
+	 * @param owner The entity or group id
+	 */
+	List<Map<String, String>> getGroupRows( int type, String owner ) throws DatabaseException
+	{
+		Prefetched prefetched = this.prefetched.get();
+		if ( prefetched != null && prefetched.type == type )
+			return prefetched.groupRows.getOrDefault( owner, Collections.emptyList() );
+
+		ElegantQuerySelect select = getSQL().table( "permissions_groups" ).select().where( "parent" ).matches( owner ).and().where( "type" ).matches( type ).executeWithException();
+		List<Map<String, String>> result = new ArrayList<>();
+		for ( Map<String, String> row : select.set().castMapValue( String.class ) )
+			result.add( row );
+		select.close();
+		return result;
+	}
+
+	/**
+	 * Gets the {@code permissions_entity} rows of the owner, from the rows fetched by {@link #loadEntities()} or {@link #loadGroups()} when called while they run on this thread.
+	 *
+	 * @param type  0 for entities, 1 for groups
+	 * @param owner The entity or group id
+	 */
+	List<Map<String, String>> getPermissionRows( int type, String owner ) throws DatabaseException
+	{
+		Prefetched prefetched = this.prefetched.get();
+		if ( prefetched != null && prefetched.type == type )
+			return prefetched.permissionRows.getOrDefault( owner, Collections.emptyList() );
+
+		ElegantQuerySelect select = getSQL().table( "permissions_entity" ).select().where( "owner" ).matches( owner ).and().where( "type" ).matches( type ).executeWithException();
+		List<Map<String, String>> result = new ArrayList<>();
+		for ( Map<String, String> row : select.set().castMapValue( String.class ) )
+			result.add( row );
+		select.close();
+		return result;
 	}
 
 	@Override
@@ -165,16 +253,101 @@ public class SQLBackend extends PermissionBackend
 		Permissions.L.info( "Successfully initialized SQL Backend!" );
 	}
 
+	/**
+	 * Loads every entity or group of the type with two set-based queries, the rows are handed to each new {@link SQLEntity} or {@link SQLGroup} instead of being queried per owner.
+	 */
+	private void load( int type ) throws PermissionBackendException
+	{
+		try
+		{
+			Database db = getSQL();
+			Prefetched prefetched = new Prefetched( type, permissionRowsByOwner( db, type ), groupRowsByOwner( db, type ) );
+
+			Set<String> owners = new HashSet<>( prefetched.permissionRows.keySet() );
+			owners.addAll( prefetched.groupRows.keySet() );
+
+			this.prefetched.set( prefetched );
+			try
+			{
+				for ( String owner : owners )
+				{
+					UUID uuid = toUuid( owner );
+					// Rows with other owners, e.g., the "default" group rows, aren't entities and are loaded by getDefaultGroup()
+					if ( uuid == null )
+						continue;
+					if ( type == 1 )
+						PermissionRegistry.getGroup( uuid );
+					else
+						PermissionRegistry.getPermissibleEntity( uuid );
+				}
+			}
+			finally
+			{
+				this.prefetched.remove();
+			}
+
+			if ( PermissionRegistry.isDebugEnabled() )
+				Permissions.L.info( String.format( "Bulk loaded %s %s from the SQL Backend.", owners.size(), type == 1 ? "groups" : "entities" ) );
+		}
+		catch ( DatabaseException | IllegalArgumentException e )
+		{
+			throw new PermissionBackendException( e );
+		}
+	}
+
+	private void putDefaultGroup( References refs, UUID uuid, boolean replace )
+	{
+		if ( replace )
+			defaultGroups.put( refs.getId(), uuid );
+		else if ( defaultGroups.putIfAbsent( refs.getId(), uuid ) != null )
+			return;
+		defaultGroupRefs.add( refs );
+	}
+
+	private synchronized void loadDefaultGroups()
+	{
+		if ( defaultGroupsLoaded )
+			return;
+
+		try
+		{
+			ElegantQuerySelect result = getSQL().table( "permissions_groups" ).select().where( "parent" ).matches( "default" ).and().where( "type" ).matches( 1 ).executeWithException();
+			// ResultSet result = getSQL().query( "SELECT * FROM `permissions_groups` WHERE `parent` = 'default' AND `type` = '1';" );
+
+			for ( Map<String, String> row : result.set().castMapValue( String.class ) )
+			{
+				UUID uuid = UUID.fromString( row.get( "child" ) );
+				References refs = References.format( row.get( "ref" ) );
+				if ( refs.isEmpty() )
+					putDefaultGroup( References.format( "" ), uuid, true );
+				else
+				{
+					// Each reference of the row also selects the group on its own
+					putDefaultGroup( refs, uuid, true );
+					for ( String ref : refs )
+						putDefaultGroup( References.format( ref ), uuid, false );
+				}
+			}
+
+			result.close();
+			defaultGroupsLoaded = true;
+		}
+		catch ( DatabaseException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
 	@Override
-	public void loadEntities()
+	public void loadEntities() throws PermissionBackendException
 	{
-		// TODO
+		load( 0 );
 	}
 
 	@Override
-	public void loadGroups()
+	public void loadGroups() throws PermissionBackendException
 	{
-		// TODO
+		load( 1 );
 	}
 
 	@Override
@@ -305,7 +478,19 @@ public class SQLBackend extends PermissionBackend
 	@Override
 	public void reloadBackend() throws PermissionBackendException
 	{
-		// TODO Auto-generated method stub
+		writeBehind.flush();
+
+		defaultGroupsLoaded = false;
+		defaultGroups.clear();
+		defaultGroupRefs.clear();
+	}
+
+	/**
+	 * Queues the rows replacing everything stored for the entity or group, they are written in a batch by the {@link SQLWriteBehind}.
+	 */
+	void save( int type, String owner, List<Object[]> permissionRows, List<Object[]> groupRows )
+	{
+		writeBehind.enqueue( type, owner, permissionRows, groupRows );
 	}
 
 	@Override
@@ -359,6 +544,10 @@ public class SQLBackend extends PermissionBackend
 				getSQL().table( "permissions_group" ).insert().values( new String[] {"child", "parent", "type", "ref"}, new String[] {c, "default", "1", refs} ).execute();
 				// getSQL().queryUpdate( "INSERT INTO `permissions_group` (`child`, `parent`, `type`, `ref`) VALUES ('" + c + "', 'default', '1', '" + refs + "');" );
 			}
+
+			defaultGroupsLoaded = false;
+			defaultGroups.clear();
+			defaultGroupRefs.clear();
 		}
 		catch ( DatabaseException e )
 		{
@@ -391,4 +580,43 @@ public class SQLBackend extends PermissionBackend
 		return db.table( "permissions" ).update().value( key, val ).where( "permission" ).matches( ns.getString() ).executeWithException().count();
 		// return db.queryUpdate( "UPDATE `permissions` SET `" + key + "` = ? WHERE `permission` = ?;", val, ns.getPermissionNamespace() );
 	}
+
+	public static class Config
+	{
+		public static final TypeBase SQL_BASE = new TypeBase( PermissionRegistry.Config.PERMISSIONS_BASE, "sql" );
+		/**
+		 * Specifies the maximum number of rows written by each batched SQL statement.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   sql:
+		 *     batchSize: 500
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger BATCH_SIZE = new TypeBase.TypeInteger( SQL_BASE, "batchSize", 500 );
+		/**
+		 * Specifies how many milliseconds entity and group saves are held before being written in a batch.
+		 *
+		 * <pre>
+		 * permissions:
+		 *   sql:
+		 *     writeDelay: 2000
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger WRITE_DELAY = new TypeBase.TypeInteger( SQL_BASE, "writeDelay", 2000 );
+	}
+
+	private static final class Prefetched
+	{
+		final Map<String, List<Map<String, String>>> groupRows;
+		final Map<String, List<Map<String, String>>> permissionRows;
+		final int type;
+
+		Prefetched( int type, Map<String, List<Map<String, String>>> permissionRows, Map<String, List<Map<String, String>>> groupRows )
+		{
+			this.type = type;
+			this.permissionRows = permissionRows;
+			this.groupRows = groupRows;
+		}
+	}
 }
@@ -9,13 +9,14 @@
  */
 package io.amelia.engine.permissions.backend.sql;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.stream.Stream;
 
-import io.amelia.database.Database;
-import io.amelia.database.elegant.ElegantQuerySelect;
 import io.amelia.foundation.Foundation;
 import io.amelia.lang.DatabaseException;
 import io.amelia.permissions.ChildPermission;
@@ -27,7 +28,6 @@ import io.amelia.permissions.Permissions;
 import io.amelia.permissions.References;
 import io.amelia.support.EnumColor;
 import io.amelia.support.UtilityObjects;
-import io.amelia.support.Streams;
 import io.amelia.support.VoluntaryBoolean;
 
 public class SQLEntity extends PermissibleEntity
@@ -43,22 +43,18 @@ public class SQLEntity extends PermissibleEntity
 	@Override
 	public void reloadGroups()
 	{
-		Database db = backend.getSQL();
+		// Called by the PermissibleEntity constructor before the backend is assigned, the SQLBackend reloads once constructed
+		if ( backend == null )
+			return;
 
 		clearGroups();
 		try
 		{
-			ElegantQuerySelect rs = db.table( "permissions_groups" ).select().where( "parent" ).matches( uuid() ).and().where( "type" ).matches( "0" ).executeWithException();
-
-			if ( rs.count() > 0 )
-				do
-				{
-					PermissibleGroup grp = Foundation.getPermissions().getGroup( UUID.fromString( rs.getString( "child" ) ) );
-					addGroup( grp, References.format( rs.getString( "refs" ) ) );
-				}
-				while ( rs.next() );
-
-			rs.close();
+			for ( Map<String, String> row : backend.getGroupRows( 0, uuid().toString() ) )
+			{
+				PermissibleGroup grp = Foundation.getPermissions().getGroup( UUID.fromString( row.get( "child" ) ) );
+				addGroup( grp, References.format( row.get( "refs" ) ) );
+			}
 		}
 		catch ( DatabaseException e )
 		{
@@ -69,25 +65,20 @@ public class SQLEntity extends PermissibleEntity
 	@Override
 	public void reloadPermissions()
 	{
-		Database db = backend.getSQL();
+		if ( backend == null )
+			return;
 
 		clearPermissions();
 		clearTimedPermissions();
 		try
 		{
-			ElegantQuerySelect select = db.table( "permissions_entity" ).select().where( "owner" ).matches( uuid() ).and().where( "type" ).matches( "0" ).executeWithException();
-
-			if ( select.count() > 0 )
-				for ( Map<String, String> row : select.set().castMapValue( String.class ) )
-				{
-					PermissionNamespace ns = PermissionNamespace.of( row.get( "permission" ) );
-
-					Stream<Permission> perms = ns.containsRegex() ? Foundation.getPermissions().getNodes( ns ) : Stream.of( ns.createPermission() );
+			for ( Map<String, String> row : backend.getPermissionRows( 0, uuid().toString() ) )
+			{
+				PermissionNamespace ns = PermissionNamespace.of( row.get( "permission" ) );
 
-					perms.forEach( perm -> addPermission( new ChildPermission( this, perm, VoluntaryBoolean.ofNullable( UtilityObjects.castToBoolean( row.get( "value" ) ) ), -1 ), References.format( row.get( "refs" ) ) ) );
-				}
-
-			select.close();
+				Stream<Permission> perms = ns.containsRegex() ? Foundation.getPermissions().getNodes( ns ) : Stream.of( ns.createPermission() );
+				perms.forEach( perm -> addPermission( new ChildPermission( this, perm, VoluntaryBoolean.ofNullable( UtilityObjects.castToBoolean( row.get( "value" ) ) ), -1 ), References.format( row.get( "refs" ) ) ) );
+			}
 		}
 		catch ( DatabaseException e )
 		{
@@ -95,22 +86,13 @@ public class SQLEntity extends PermissibleEntity
 		}
 	}
 
+	/**
+	 * Queues the removal with the pending saves, so it can't be overwritten by an earlier save that is yet to be written.
+	 */
 	@Override
 	public void remove()
 	{
-		Database db = backend.getSQL();
-		try
-		{
-			// db.queryUpdate( String.format( "DELETE FROM `permissions_entity` WHERE `owner` = '%s' AND `type` = '0';", uuid() ) );
-			// db.queryUpdate( String.format( "DELETE FROM `permissions_groups` WHERE `parent` = '%s' AND `type` = '0';", uuid() ) );
-
-			db.table( "permissions_entity" ).delete().where( "owner" ).matches( uuid() ).and().where( "type" ).matches( "0" ).executeWithException();
-			db.table( "permissions_groups" ).delete().where( "parent" ).matches( uuid() ).and().where( "type" ).matches( "0" ).executeWithException();
-		}
-		catch ( DatabaseException e )
-		{
-			throw new RuntimeException( e );
-		}
+		backend.save( 0, uuid().toString(), Collections.emptyList(), Collections.emptyList() );
 	}
 
 	@Override
@@ -122,25 +104,13 @@ public class SQLEntity extends PermissibleEntity
 		if ( isDebug() )
 			Permissions.L.info( EnumColor.YELLOW + "Entity " + getStringId() + " being saved to backend" );
 
-		try
-		{
-			Database db = backend.getSQL();
-			remove();
+		List<Object[]> permissionRows = new ArrayList<>();
+		getChildPermissions( null ).forEach( child -> permissionRows.add( new Object[] {uuid().toString(), 0, child.getReferences().map( References::join ).orElse( "" ), child.getPermission().getNamespace(), child.getValue().orElse( null )} ) );
 
-			Streams.forEachWithException( getChildPermissions( null ), child -> {
-				Permission perm = child.getPermission();
-				// db.queryUpdate( String.format( "INSERT INTO `permissions_entity` (`owner`,`type`,`refs`,`permission`,`value`) VALUES ('%s','0','%s','%s','%s');", uuid(), child.getReferences().join(), perm.getPermissionNamespace(),
-				// child.getObject() ) );
-				db.table( "permissions_entity" ).insert().value( "owner", uuid() ).value( "type", 0 ).value( "refs", child.getReferences().map( References::join ).orElse( "" ) ).value( "permission", perm.getNamespace() ).value( "value", child.getValue().orElse( null ) ).executeWithException();
-			} );
+		List<Object[]> groupRows = new ArrayList<>();
+		for ( Entry<PermissibleGroup, References> entry : getGroupEntries( null ).entrySet() )
+			groupRows.add( new Object[] {entry.getKey().uuid().toString(), uuid().toString(), 0, entry.getValue().join()} );
 
-			for ( Entry<PermissibleGroup, References> entry : getGroupEntries( null ).entrySet() )
-				db.table( "permissions_groups" ).insert().value( "child", entry.getKey().uuid() ).value( "parent", uuid() ).value( "type", 0 ).value( "refs", entry.getValue().join() ).executeWithException();
-			// db.queryUpdate( String.format( "INSERT INTO `permissions_groups` (`child`, `parent`, `type`, `refs`) VALUES ('%s', '%s', '0', '%s');", entry.getKey().uuid(), uuid(), entry.getValue().join() ) );
-		}
-		catch ( DatabaseException e )
-		{
-			throw new RuntimeException( e );
-		}
+		backend.save( 0, uuid().toString(), permissionRows, groupRows );
 	}
 }
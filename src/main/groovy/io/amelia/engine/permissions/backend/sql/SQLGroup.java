@@ -9,13 +9,14 @@
  */
 package io.amelia.engine.permissions.backend.sql;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.stream.Stream;
 
-import io.amelia.database.Database;
-import io.amelia.database.elegant.ElegantQuerySelect;
 import io.amelia.foundation.Foundation;
 import io.amelia.lang.DatabaseException;
 import io.amelia.permissions.ChildPermission;
@@ -25,7 +26,6 @@ import io.amelia.permissions.PermissionNamespace;
 import io.amelia.permissions.Permissions;
 import io.amelia.permissions.References;
 import io.amelia.support.EnumColor;
-import io.amelia.support.Streams;
 import io.amelia.support.VoluntaryBoolean;
 
 public class SQLGroup extends PermissibleGroup
@@ -41,23 +41,18 @@ public class SQLGroup extends PermissibleGroup
 	@Override
 	public void reloadGroups()
 	{
-		Database db = backend.getSQL();
+		// Called by the PermissibleEntity constructor before the backend is assigned, the SQLBackend reloads once constructed
+		if ( backend == null )
+			return;
 
 		clearGroups();
 		try
 		{
-			ElegantQuerySelect rs = db.table( "permissions_groups" ).select().where( "parent" ).matches( uuid().toString() ).and().where( "type" ).matches( "1" ).executeWithException();
-			// ResultSet rs = db.query( "SELECT * FROM `permissions_groups` WHERE `parent` = '" + uuid() + "' AND `type` = '1';" );
-
-			if ( rs.count() > 0 )
-				do
-				{
-					PermissibleGroup grp = Foundation.getPermissions().getGroup( UUID.fromString( rs.getString( "child" ) ) );
-					addGroup( grp, References.format( rs.getString( "refs" ) ) );
-				}
-				while ( rs.next() );
-
-			rs.close();
+			for ( Map<String, String> row : backend.getGroupRows( 1, getStringId() ) )
+			{
+				PermissibleGroup grp = Foundation.getPermissions().getGroup( UUID.fromString( row.get( "child" ) ) );
+				addGroup( grp, References.format( row.get( "refs" ) ) );
+			}
 		}
 		catch ( DatabaseException e )
 		{
@@ -68,19 +63,16 @@ public class SQLGroup extends PermissibleGroup
 	@Override
 	public void reloadPermissions()
 	{
-		Database db = backend.getSQL();
+		if ( backend == null )
+			return;
 
 		clearPermissions();
 		clearTimedPermissions();
 		try
 		{
-			ElegantQuerySelect rs = db.table( "permissions_entity" ).select().where( "owner" ).matches( getStringId() ).and().where( "type" ).matches( "1" ).executeWithException();
-			// ResultSet rs = db.query( "SELECT * FROM `permissions_entity` WHERE `owner` = ? AND `type` = '1';", uuid() );
-
-			if ( rs.count() > 0 )
-				do
-				{
-					PermissionNamespace ns = PermissionNamespace.of( rs.getString( "permission" ) );
+			for ( Map<String, String> row : backend.getPermissionRows( 1, getStringId() ) )
+			{
+				PermissionNamespace ns = PermissionNamespace.of( row.get( "permission" ) );
 
 					if ( !ns.containsOnlyValidChars() )
 					{
@@ -88,12 +80,9 @@ public class SQLGroup extends PermissibleGroup
 						continue;
 					}
 
-					Stream<Permission> perms = ns.containsRegex() ? Foundation.getPermissions().getNodes( ns ) : Stream.of( ns.createPermission() );
-					perms.forEach( perm -> addPermission( new ChildPermission( this, perm, VoluntaryBoolean.ofNullable( Boolean.valueOf( rs.getString( "value" ) ) ), getWeight() ), References.format( rs.getString( "refs" ) ) ) );
-				}
-				while ( rs.next() );
-
-			rs.close();
+				Stream<Permission> perms = ns.containsRegex() ? Foundation.getPermissions().getNodes( ns ) : Stream.of( ns.createPermission() );
+				perms.forEach( perm -> addPermission( new ChildPermission( this, perm, VoluntaryBoolean.ofNullable( Boolean.valueOf( row.get( "value" ) ) ), getWeight() ), References.format( row.get( "refs" ) ) ) );
+			}
 		}
 		catch ( DatabaseException e )
 		{
@@ -101,22 +90,13 @@ public class SQLGroup extends PermissibleGroup
 		}
 	}
 
+	/**
+	 * Queues the removal with the pending saves, so it can't be overwritten by an earlier save that is yet to be written.
+	 */
 	@Override
 	public void remove()
 	{
-		Database db = backend.getSQL();
-		try
-		{
-			// db.queryUpdate( String.format( "DELETE FROM `permissions_entity` WHERE `owner` = '%s' AND `type` = '1';", uuid() ) );
-			// db.queryUpdate( String.format( "DELETE FROM `permissions_groups` WHERE `parent` = '%s' AND `type` = '1';", uuid() ) );
-
-			db.table( "permissions_entity" ).delete().where( "owner" ).matches( getStringId() ).and().where( "type" ).matches( "1" ).executeWithException();
-			db.table( "permissions_groups" ).delete().where( "parent" ).matches( getStringId() ).and().where( "type" ).matches( "1" ).executeWithException();
-		}
-		catch ( DatabaseException e )
-		{
-			throw new RuntimeException( e );
-		}
+		backend.save( 1, getStringId(), Collections.emptyList(), Collections.emptyList() );
 	}
 
 	@Override
@@ -128,26 +108,13 @@ public class SQLGroup extends PermissibleGroup
 		if ( isDebug() )
 			Permissions.L.info( EnumColor.YELLOW + "Group " + getStringId() + " saved to backend" );
 
-		try
-		{
-			Database db = backend.getSQL();
-			remove();
-
-			Streams.forEachWithException( getChildPermissions( null ), child -> {
-				Permission perm = child.getPermission();
-				// db.queryUpdate( String.format( "INSERT INTO `permissions_entity` (`owner`,`type`,`refs`,`permission`,`value`) VALUES ('%s','1','%s','%s','%s');", uuid(), child.getReferences().join(), perm.getPermissionNamespace(),
-				// child.getObject() ) );
-				db.table( "permissions_entity" ).insert().value( "owner", uuid() ).value( "type", 1 ).value( "refs", child.getReferences().map( References::join ).orElse( "" ) ).value( "permission", perm.getNamespace() ).value( "value", child.getValue().getString() ).executeWithException();
-			} );
-
-			Map<PermissibleGroup, References> groups = getGroupEntries( null );
-			for ( Entry<PermissibleGroup, References> entry : groups.entrySet() )
-				db.table( "permissions_groups" ).insert().value( "child", entry.getKey().uuid().toString() ).value( "parent", uuid().toString() ).value( "type", 1 ).value( "refs", entry.getValue().join() ).executeWithException();
-			// db.queryUpdate( String.format( "INSERT INTO `permissions_groups` (`child`, `parent`, `type`, `refs`) VALUES ('%s', '%s', '1', '%s');", entry.getKey().uuid(), uuid(), entry.getValue().join() ) );
-		}
-		catch ( DatabaseException e )
-		{
-			throw new RuntimeException( e );
-		}
+		List<Object[]> permissionRows = new ArrayList<>();
+		getChildPermissions( null ).forEach( child -> permissionRows.add( new Object[] {getStringId(), 1, child.getReferences().map( References::join ).orElse( "" ), child.getPermission().getNamespace(), child.getValue().getString()} ) );
+
+		List<Object[]> groupRows = new ArrayList<>();
+		for ( Entry<PermissibleGroup, References> entry : getGroupEntries( null ).entrySet() )
+			groupRows.add( new Object[] {entry.getKey().uuid().toString(), getStringId(), 1, entry.getValue().join()} );
+
+		backend.save( 1, getStringId(), permissionRows, groupRows );
 	}
 }
@@ -0,0 +1,238 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.permissions.backend.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.amelia.database.Database;
+import io.amelia.engine.looper.LooperRouter;
+import io.amelia.engine.looper.LooperTaskTrait;
+import io.amelia.lang.DatabaseException;
+import io.amelia.permissions.Permissions;
+
+/**
+ * Queues entity and group saves for the {@link SQLBackend} and writes them in batches from the main looper.
+ * <p>
+ * Each save replaces the pending rows of the same owner, so an entity changed many times between flushes is written once. A flush deletes the
+ * rows of every pending owner with one statement per table and type, then inserts the new rows with multi-row statements of up to
+ * {@link SQLBackend.Config#BATCH_SIZE} rows, all within one transaction. Flushes run one at a time.
+ */
+final class SQLWriteBehind
+{
+	private static final String[] GROUP_COLUMNS = new String[] {"child", "parent", "type", "refs"};
+	private static final String[] PERMISSION_COLUMNS = new String[] {"owner", "type", "refs", "permission", "value"};
+
+	private static String placeholders( int columns, int rows )
+	{
+		StringBuilder row = new StringBuilder( "(" );
+		for ( int i = 0; i < columns; i++ )
+			row.append( i == 0 ? "?" : ",?" );
+		row.append( ")" );
+
+		StringBuilder result = new StringBuilder();
+		for ( int i = 0; i < rows; i++ )
+			result.append( i == 0 ? "" : "," ).append( row );
+		return result.toString();
+	}
+
+	private final SQLBackend backend;
+	private final int batchSize;
+	private final long delay;
+	private final Map<String, Pending> pending = new LinkedHashMap<>();
+	/**
+	 * Held for the whole of a flush, so the looper, {@link SQLBackend#commit()} and a backend reload never interleave their writes.
+	 */
+	private final Object writeLock = new Object();
+	private LooperTaskTrait.TaskEntry scheduled = null;
+
+	SQLWriteBehind( SQLBackend backend, long delay, int batchSize )
+	{
+		this.backend = backend;
+		this.delay = delay;
+		this.batchSize = Math.max( 1, batchSize );
+	}
+
+	private static void execute( Connection connection, String sql, List<Object> args ) throws SQLException
+	{
+		try ( PreparedStatement statement = connection.prepareStatement( sql ) )
+		{
+			for ( int i = 0; i < args.size(); i++ )
+				statement.setObject( i + 1, args.get( i ) );
+			statement.executeUpdate();
+		}
+	}
+
+	private void delete( Connection connection, String table, String column, int type, List<String> owners ) throws SQLException
+	{
+		for ( int i = 0; i < owners.size(); i += batchSize )
+		{
+			List<String> chunk = owners.subList( i, Math.min( owners.size(), i + batchSize ) );
+			List<Object> args = new ArrayList<>( chunk.size() + 1 );
+			args.add( type );
+			args.addAll( chunk );
+			execute( connection, String.format( "DELETE FROM `%s` WHERE `type` = ? AND `%s` IN %s;", table, column, placeholders( chunk.size(), 1 ) ), args );
+		}
+	}
+
+	/**
+	 * Queues the rows replacing everything stored for the owner.
+	 *
+	 * @param type           0 for entities, 1 for groups
+	 * @param owner          The entity or group id
+	 * @param permissionRows The rows for the {@code permissions_entity} table, ordered as owner, type, refs, permission and value
+	 * @param groupRows      The rows for the {@code permissions_groups} table, ordered as child, parent, type and refs
+	 */
+	synchronized void enqueue( int type, String owner, List<Object[]> permissionRows, List<Object[]> groupRows )
+	{
+		String key = type + ":" + owner;
+		pending.remove( key );
+		pending.put( key, new Pending( type, owner, permissionRows, groupRows ) );
+
+		if ( scheduled == null )
+			scheduled = LooperRouter.getMainLooper().postTaskLater( entry -> flush(), delay, true );
+	}
+
+	/**
+	 * Writes every pending save now. Saves that fail to write are queued again unless a newer save of the same owner arrived in the meantime.
+	 */
+	void flush()
+	{
+		synchronized ( writeLock )
+		{
+			List<Pending> batch;
+			synchronized ( this )
+			{
+				if ( scheduled != null )
+				{
+					scheduled.cancel();
+					scheduled = null;
+				}
+				if ( pending.isEmpty() )
+					return;
+				batch = new ArrayList<>( pending.values() );
+				pending.clear();
+			}
+
+			try
+			{
+				write( batch );
+			}
+			catch ( DatabaseException | SQLException e )
+			{
+				Permissions.L.severe( "The SQLBackend failed to write " + batch.size() + " pending entities and groups, they will be retried.", e );
+
+				synchronized ( this )
+				{
+					for ( Pending save : batch )
+						pending.putIfAbsent( save.type + ":" + save.owner, save );
+					if ( scheduled == null )
+						scheduled = LooperRouter.getMainLooper().postTaskLater( entry -> flush(), delay, true );
+				}
+			}
+		}
+	}
+
+	synchronized int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	private void insert( Connection connection, String table, String[] columns, List<Object[]> rows ) throws SQLException
+	{
+		String prefix = String.format( "INSERT INTO `%s` (`%s`) VALUES ", table, String.join( "`,`", columns ) );
+
+		for ( int i = 0; i < rows.size(); i += batchSize )
+		{
+			List<Object[]> chunk = rows.subList( i, Math.min( rows.size(), i + batchSize ) );
+			List<Object> args = new ArrayList<>( chunk.size() * columns.length );
+			for ( Object[] row : chunk )
+				Collections.addAll( args, row );
+			execute( connection, prefix + placeholders( columns.length, chunk.size() ) + ";", args );
+		}
+	}
+
+	/**
+	 * Writes the batch in one transaction on a single connection, so a failure partway through rolls back instead of leaving owners with their
+	 * rows deleted. The connection belongs to the {@link Database}, it's left open with its auto-commit mode restored.
+	 */
+	private void write( List<Pending> batch ) throws DatabaseException, SQLException
+	{
+		Connection connection = backend.getSQL().getConnection();
+		boolean autoCommit = connection.getAutoCommit();
+
+		connection.setAutoCommit( false );
+		try
+		{
+			for ( int type = 0; type <= 1; type++ )
+			{
+				List<String> owners = new ArrayList<>();
+				List<Object[]> permissionRows = new ArrayList<>();
+				List<Object[]> groupRows = new ArrayList<>();
+
+				for ( Pending save : batch )
+					if ( save.type == type )
+					{
+						owners.add( save.owner );
+						permissionRows.addAll( save.permissionRows );
+						groupRows.addAll( save.groupRows );
+					}
+
+				if ( owners.isEmpty() )
+					continue;
+
+				delete( connection, "permissions_entity", "owner", type, owners );
+				delete( connection, "permissions_groups", "parent", type, owners );
+				insert( connection, "permissions_entity", PERMISSION_COLUMNS, permissionRows );
+				insert( connection, "permissions_groups", GROUP_COLUMNS, groupRows );
+			}
+
+			connection.commit();
+		}
+		catch ( SQLException | RuntimeException e )
+		{
+			try
+			{
+				connection.rollback();
+			}
+			catch ( SQLException rollback )
+			{
+				e.addSuppressed( rollback );
+			}
+			throw e;
+		}
+		finally
+		{
+			connection.setAutoCommit( autoCommit );
+		}
+	}
+
+	private static final class Pending
+	{
+		final List<Object[]> groupRows;
+		final String owner;
+		final List<Object[]> permissionRows;
+		final int type;
+
+		Pending( int type, String owner, List<Object[]> permissionRows, List<Object[]> groupRows )
+		{
+			this.type = type;
+			this.owner = owner;
+			this.permissionRows = permissionRows;
+			this.groupRows = groupRows;
+		}
+	}
+}
@@ -12,14 +12,15 @@ package io.amelia.engine.scripting;
 import com.chiorichan.ContentTypes;
 import com.chiorichan.ShellOverrides;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.net.util.Charsets;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -29,7 +30,6 @@ import io.amelia.foundation.ConfigRegistry;
 import io.amelia.logging.LogBuilder;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import joptsimple.internal.Strings;
 
 public class FileInterpreter
 {
@@ -78,6 +78,10 @@ public class FileInterpreter
 		// Shell Options (groovy,text,html)
 		annotations.put( "shell", null );
 		annotations.put( "encoding", encoding.name() );
+
+		// Fragment Caching, e.g., "@cache true" and "@varyBy locale, user"
+		annotations.put( "cache", null );
+		annotations.put( "varyby", null );
 	}
 
 	public FileInterpreter( File file ) throws IOException
@@ -154,110 +158,78 @@ public class FileInterpreter
 		return cachedFile.getAbsolutePath();
 	}
 
+	/**
+	 * Gets the binding variables the output of a cacheable fragment depends on, from the {@code @varyBy} annotation.
+	 *
+	 * @return The variable names, empty if the output only depends on the source
+	 */
+	public List<String> getVaryBy()
+	{
+		String varyBy = get( "varyby" );
+		if ( varyBy == null || varyBy.trim().isEmpty() )
+			return Collections.emptyList();
+
+		List<String> names = new ArrayList<>();
+		for ( String name : varyBy.split( "," ) )
+			if ( !name.trim().isEmpty() )
+				names.add( name.trim() );
+		return names;
+	}
+
 	public boolean hasFile()
 	{
 		return cachedFile != null;
 	}
 
+	/**
+	 * Indicates the file is a cacheable fragment, i.e., annotated with {@code @cache} or {@code @cache true}, so its output is reused by includes
+	 * until it, one of its includes, or a {@code @varyBy} binding changes.
+	 */
+	public boolean isCacheable()
+	{
+		String cache = get( "cache" );
+		return cache != null && ( cache.isEmpty() || "true".equalsIgnoreCase( cache ) || "yes".equalsIgnoreCase( cache ) );
+	}
+
 	public final void interpretParamsFromFile( File file ) throws IOException
 	{
 		if ( file == null )
 			throw new FileNotFoundException( "File path was null" );
 
-		FileInputStream is = null;
-		try
+		cachedFile = file;
+
+		annotations.put( "file", file.getAbsolutePath() );
+
+		if ( file.isDirectory() )
+			annotations.put( "shell", "embedded" );
+		else
 		{
-			cachedFile = file;
+			if ( !annotations.containsKey( "shell" ) || annotations.get( "shell" ) == null )
+			{
+				String shell = determineShellFromName( file.getName() );
+				if ( shell != null && !shell.isEmpty() )
+					annotations.put( "shell", shell );
+			}
 
-			annotations.put( "file", file.getAbsolutePath() );
+			// The header is parsed once per file modification and the body is shared read-only, see ScriptSourceCache.
+			ScriptSourceCache.Source source = ScriptSourceCache.get( file.toPath() );
 
-			if ( file.isDirectory() )
-				annotations.put( "shell", "embedded" );
-			else
+			for ( Entry<String, String> annotation : source.getAnnotations().entrySet() )
 			{
-				if ( !annotations.containsKey( "shell" ) || annotations.get( "shell" ) == null )
-				{
-					String shell = determineShellFromName( file.getName() );
-					if ( shell != null && !shell.isEmpty() )
-						annotations.put( "shell", shell );
-				}
-
-				is = new FileInputStream( file );
-
-				ByteBuf buf = Unpooled.wrappedBuffer( IOUtils.toByteArray( is ) );
-				boolean beginContent = false;
-				int lastInx;
-				int lineCnt = 0;
-
-				data = Unpooled.buffer();
-
-				do
-				{
-					lastInx = buf.readerIndex();
-					String l = readLine( buf );
-					if ( l == null )
-						break;
-
-					if ( l.trim().startsWith( "@" ) )
-						try
-						{
-							lineCnt++;
-
-							/* Only solution I could think of for CSS files since they use @annotations too, so we share them. */
-							if ( "text/css".equalsIgnoreCase( ContentTypes.getContentType( file ) ) )
-								data.writeBytes( ( l + "\n" ).getBytes() );
-
-							String key;
-							String val = Strings.EMPTY;
-
-							if ( l.contains( " " ) )
-							{
-								key = l.trim().substring( 1, l.trim().indexOf( " " ) );
-								val = l.trim().substring( l.trim().indexOf( " " ) + 1 );
-							}
-							else
-								key = l;
-
-							if ( val.endsWith( ";" ) )
-								val = val.substring( 0, val.length() - 1 );
-
-							if ( val.startsWith( "'" ) && val.endsWith( "'" ) )
-								val = val.substring( 1, val.length() - 1 );
-
-							annotations.put( key.toLowerCase(), val );
-							L.finer( "Setting param '" + key + "' to '" + val + "'" );
-
-							if ( key.equals( "encoding" ) )
-								if ( Charset.isSupported( val ) )
-									setEncoding( Charsets.toCharset( val ) );
-								else
-									L.severe( "The file '" + file.getAbsolutePath() + "' requested encoding '" + val + "' but it's not supported by the JVM!" );
-						}
-						catch ( NullPointerException | ArrayIndexOutOfBoundsException e )
-						{
-							// Ignore
-						}
-					else if ( l.trim().isEmpty() )
-						lineCnt++;
-						// Continue reading, this line is empty.
-					else
-					{
-						// We encountered the beginning of the file content.
-						beginContent = true;
-						buf.readerIndex( lastInx ); // This rewinds the buffer to the last reader index
-					}
-				}
-				while ( !beginContent );
+				String key = annotation.getKey();
+				String val = annotation.getValue();
 
-				data.writeBytes( Strings.repeat( '\n', lineCnt ).getBytes() );
+				annotations.put( key, val );
+				L.finer( "Setting param '" + key + "' to '" + val + "'" );
 
-				data.writeBytes( buf );
+				if ( key.equals( "encoding" ) )
+					if ( Charset.isSupported( val ) )
+						setEncoding( Charsets.toCharset( val ) );
+					else
+						L.severe( "The file '" + file.getAbsolutePath() + "' requested encoding '" + val + "' but it's not supported by the JVM!" );
 			}
-		}
-		finally
-		{
-			if ( is != null )
-				is.close();
+
+			data = source.getBody();
 		}
 	}
 
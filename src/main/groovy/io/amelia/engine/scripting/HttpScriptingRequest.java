@@ -39,6 +39,21 @@ public interface HttpScriptingRequest
 		references.put( Thread.currentThread(), new WeakReference<>( httpScriptingRequest ) );
 	}
 
+	/**
+	 * Tears down the request on the calling thread once its response is written, unlinking the thread and returning its {@link ScriptingFactory}
+	 * to the thread's pool for the next request.
+	 */
+	static void finishHttpScriptingRequest( HttpScriptingRequest httpScriptingRequest )
+	{
+		WeakReference<HttpScriptingRequest> reference = references.get( Thread.currentThread() );
+		if ( reference != null && reference.get() == httpScriptingRequest )
+			references.remove( Thread.currentThread() );
+
+		ScriptingFactory scriptingFactory = httpScriptingRequest.getScriptingFactory();
+		if ( scriptingFactory != null )
+			scriptingFactory.recycle();
+	}
+
 	void enforceTrailingSlash( boolean enforce );
 
 	String getArgument( String key );
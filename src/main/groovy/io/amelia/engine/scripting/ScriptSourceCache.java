@@ -0,0 +1,224 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import io.amelia.support.ContentTypes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Loads script files once per modification, sharing the parsed {@code @annotation} header and a read-only view of the body across requests.
+ * <p>
+ * The file is read onto the heap once. The body is a slice of the file bytes, preceded by a newline for each header line so line numbers still
+ * match the file, and is never copied again; each caller gets an independent duplicate of the same memory.
+ * <p>
+ * A file is read again when its modified time, size or file key changes. A file modified within {@link #TIMESTAMP_GRANULARITY} of being read
+ * could change again without its modified time changing, so it's read again on every lookup until that window has passed.
+ */
+public final class ScriptSourceCache
+{
+	private static final int MAX_ENTRIES = 4096;
+	/**
+	 * The coarsest modified time resolution of common file systems, e.g., FAT.
+	 */
+	private static final long TIMESTAMP_GRANULARITY = 2000;
+
+	private static final Map<Path, Source> sources = Collections.synchronizedMap( new LinkedHashMap<Path, Source>( 16, 0.75f, true )
+	{
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Path, Source> eldest )
+		{
+			return size() > MAX_ENTRIES;
+		}
+	} );
+
+	public static void clear()
+	{
+		sources.clear();
+	}
+
+	/**
+	 * Gets the parsed source file, only reading it again if it may have changed since it was last read.
+	 *
+	 * @param path The script file
+	 */
+	public static Source get( @Nonnull Path path ) throws IOException
+	{
+		path = path.toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+
+		Source source = sources.get( path );
+		if ( source == null || source.racy || !source.matches( attributes ) )
+		{
+			source = load( path, attributes );
+			sources.put( path, source );
+		}
+
+		return source;
+	}
+
+	public static void invalidate( @Nonnull Path path )
+	{
+		sources.remove( path.toAbsolutePath().normalize() );
+	}
+
+	private static Source load( Path path, BasicFileAttributes attributes ) throws IOException
+	{
+		if ( attributes.size() > Integer.MAX_VALUE )
+			throw new IOException( "The script file " + path + " is too large to load." );
+
+		long loaded = System.currentTimeMillis();
+		ByteBuf bytes = Unpooled.wrappedBuffer( Files.readAllBytes( path ) );
+
+		Map<String, String> annotations = new LinkedHashMap<>();
+		int contentStart = bytes.writerIndex();
+		int lineCnt = 0;
+		int index = 0;
+
+		while ( index < bytes.writerIndex() )
+		{
+			int lineEnd = bytes.indexOf( index, bytes.writerIndex(), ( byte ) '\n' );
+			int next = lineEnd == -1 ? bytes.writerIndex() : lineEnd + 1;
+			String l = bytes.toString( index, ( lineEnd == -1 ? bytes.writerIndex() : lineEnd ) - index, StandardCharsets.ISO_8859_1 ).trim();
+
+			if ( l.startsWith( "@" ) )
+			{
+				lineCnt++;
+				parseAnnotation( l, annotations );
+			}
+			else if ( l.isEmpty() )
+				lineCnt++;
+				// Continue reading, this line is empty.
+			else
+			{
+				// We encountered the beginning of the file content.
+				contentStart = index;
+				break;
+			}
+
+			index = next;
+		}
+
+		ByteBuf body;
+		/* Only solution I could think of for CSS files since they use @annotations too, so we share them. */
+		if ( ContentTypes.getContentTypes( path ).anyMatch( "text/css"::equalsIgnoreCase ) )
+			body = bytes;
+		else
+		{
+			ByteBuf content = bytes.slice( contentStart, bytes.writerIndex() - contentStart );
+			if ( lineCnt == 0 )
+				body = content;
+			else
+			{
+				byte[] newlines = new byte[lineCnt];
+				Arrays.fill( newlines, ( byte ) '\n' );
+				body = Unpooled.wrappedBuffer( Unpooled.wrappedBuffer( newlines ), content );
+			}
+		}
+
+		return new Source( attributes, loaded, Collections.unmodifiableMap( annotations ), body.asReadOnly() );
+	}
+
+	private static void parseAnnotation( String l, Map<String, String> annotations )
+	{
+		try
+		{
+			String key;
+			String val = "";
+
+			if ( l.contains( " " ) )
+			{
+				key = l.substring( 1, l.indexOf( " " ) );
+				val = l.substring( l.indexOf( " " ) + 1 );
+			}
+			else
+				key = l.substring( 1 );
+
+			if ( val.endsWith( ";" ) )
+				val = val.substring( 0, val.length() - 1 );
+
+			if ( val.startsWith( "'" ) && val.endsWith( "'" ) && val.length() > 1 )
+				val = val.substring( 1, val.length() - 1 );
+
+			annotations.put( key.toLowerCase(), val );
+		}
+		catch ( IndexOutOfBoundsException e )
+		{
+			// Ignore
+		}
+	}
+
+	private ScriptSourceCache()
+	{
+		// Static Access
+	}
+
+	public static final class Source
+	{
+		private final Map<String, String> annotations;
+		private final ByteBuf body;
+		private final Object fileKey;
+		private final long lastModified;
+		/**
+		 * Whether the file was read within the timestamp granularity of its last modification.
+		 */
+		private final boolean racy;
+		private final long size;
+
+		private Source( BasicFileAttributes attributes, long loaded, Map<String, String> annotations, ByteBuf body )
+		{
+			fileKey = attributes.fileKey();
+			lastModified = attributes.lastModifiedTime().toMillis();
+			size = attributes.size();
+			racy = Math.abs( loaded - lastModified ) < TIMESTAMP_GRANULARITY;
+			this.annotations = annotations;
+			this.body = body;
+		}
+
+		/**
+		 * @return The header annotations by lower cased key
+		 */
+		public Map<String, String> getAnnotations()
+		{
+			return annotations;
+		}
+
+		/**
+		 * @return A read-only view of the body with its own reader index, the content is shared and never copied
+		 */
+		public ByteBuf getBody()
+		{
+			return body.duplicate();
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		private boolean matches( BasicFileAttributes attributes )
+		{
+			return lastModified == attributes.lastModifiedTime().toMillis() && size == attributes.size() && Objects.equals( fileKey, attributes.fileKey() );
+		}
+	}
+}
@@ -36,7 +36,7 @@ public class ScriptTraceElement
 		this.context = context;
 		fileName = context.getScriptName();
 
-		this.lineNum = lineNum;
+		this.lineNum = context.getSourceLine( lineNum );
 		this.colNum = colNum;
 
 		if ( ( className == null || className.isEmpty() ) && context.getScriptName() != null )
@@ -52,7 +52,7 @@ public class ScriptTraceElement
 		fileName = ste.getFileName();
 		methodName = ste.getMethodName();
 		className = ste.getClassName();
-		lineNum = ste.getLineNumber();
+		lineNum = context.getSourceLine( ste.getLineNumber() );
 		colNum = -1;
 	}
 
@@ -84,7 +84,7 @@ public class ScriptTraceElement
 
 		if ( m1.find() )
 		{
-			lineNum = Integer.parseInt( m1.group( 1 ) );
+			lineNum = context.getSourceLine( Integer.parseInt( m1.group( 1 ) ) );
 			colNum = Integer.parseInt( m1.group( 2 ) );
 		}
 
@@ -19,6 +19,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,6 +65,8 @@ public abstract class ScriptingContext<Subclass extends ScriptingContext>
 	private ScriptingFactory scriptingFactory = null;
 	private String shell = "embedded";
 	private String source = null;
+	private IntUnaryOperator sourceLineMapper = null;
+	private long writeCount = 0;
 
 	public HttpScriptingRequest HttpScriptingRequest()
 	{
@@ -114,6 +117,16 @@ public abstract class ScriptingContext<Subclass extends ScriptingContext>
 		return UtilityEncrypt.md5Hex( readBytes() );
 	}
 
+	/**
+	 * Counts the writes and resets of the content, cheaply telling whether anything was written since it was last checked.
+	 *
+	 * @return The number of content modifications
+	 */
+	public long getWriteCount()
+	{
+		return writeCount;
+	}
+
 	private Path getCacheFile()
 	{
 		if ( getScriptClassName() == null )
@@ -313,6 +326,29 @@ public abstract class ScriptingContext<Subclass extends ScriptingContext>
 		return ( Subclass ) this;
 	}
 
+	/**
+	 * Maps a line of the compiled script back to the source, e.g., when the source was transformed before compiling.
+	 *
+	 * @param scriptLine The compiled script line
+	 *
+	 * @return The source line
+	 */
+	public int getSourceLine( int scriptLine )
+	{
+		return sourceLineMapper == null || scriptLine < 1 ? scriptLine : sourceLineMapper.applyAsInt( scriptLine );
+	}
+
+	public boolean hasSourceLineMapper()
+	{
+		return sourceLineMapper != null;
+	}
+
+	public Subclass setSourceLineMapper( IntUnaryOperator sourceLineMapper )
+	{
+		this.sourceLineMapper = sourceLineMapper;
+		return ( Subclass ) this;
+	}
+
 	public Path getSourceDirectory()
 	{
 		return Paths.get( "/" );
@@ -404,6 +440,7 @@ public abstract class ScriptingContext<Subclass extends ScriptingContext>
 	 */
 	public void reset()
 	{
+		writeCount++;
 		int size = content.writerIndex();
 		content.clear();
 		content.writeBytes( new byte[size] );
@@ -480,11 +517,13 @@ public abstract class ScriptingContext<Subclass extends ScriptingContext>
 
 	public void write( byte... bytes )
 	{
+		writeCount++;
 		content.writeBytes( bytes );
 	}
 
 	public void write( ByteBuf source )
 	{
+		writeCount++;
 		content.writeBytes( source );
 	}
 
@@ -9,10 +9,12 @@
  */
 package io.amelia.engine.scripting;
 
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 
 /**
  * ScriptingEngines are commonly used to process commands and create dynamic content, most notably the groovy scripts.
@@ -46,7 +48,18 @@ public interface ScriptingEngine
 	 * @param buffer  The ByteBuf output stream
 	 * @param charset The current EvalFactory character set
 	 */
-	void setOutput( ByteBuf buffer, Charset charset );
+	default void setOutput( ByteBuf buffer, Charset charset )
+	{
+		setOutput( new ByteBufOutputStream( buffer ), charset );
+	}
+
+	/**
+	 * Called to provide output stream to ScriptingEngine, written output might be streamed to the client right away.
+	 *
+	 * @param stream  The output stream
+	 * @param charset The current EvalFactory character set
+	 */
+	void setOutput( OutputStream stream, Charset charset );
 
 	/**
 	 * Called to provide the EvalFactory bindings
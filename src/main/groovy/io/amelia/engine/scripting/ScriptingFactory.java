@@ -9,16 +9,22 @@
  */
 package io.amelia.engine.scripting;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.annotation.Nonnull;
+
 import io.amelia.data.TypeBase;
 import io.amelia.engine.config.ConfigRegistry;
 import io.amelia.engine.events.EventDispatcher;
@@ -37,12 +43,18 @@ import io.amelia.extra.UtilityIO;
 import io.amelia.extra.UtilityObjects;
 import io.amelia.support.Pair;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 import io.amelia.engine.events.EventException;
 
-public class ScriptingFactory
+public class ScriptingFactory implements AutoCloseable
 {
+	/**
+	 * Output buffers grown past this capacity are shrunk when the factory is recycled, so one large page doesn't pin its memory in the pool.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+	private static final ThreadLocal<Deque<ScriptingFactory>> pool = ThreadLocal.withInitial( ArrayDeque::new );
 	private static List<ScriptingProcessor> processors = new ArrayList<>();
 	private static volatile List<ScriptingRegistry> scripting = new ArrayList<>();
 
@@ -73,19 +85,59 @@ public class ScriptingFactory
 	// For Web Use
 	public static ScriptingFactory create( BindingProvider provider )
 	{
-		return new ScriptingFactory( provider.getBinding() );
+		return create( provider.getBinding() );
 	}
 
 	// For General Use
 	public static ScriptingFactory create( Map<String, Object> rawBinding )
 	{
-		return new ScriptingFactory( new ScriptBinding( rawBinding ) );
+		return create( new ScriptBinding( rawBinding ) );
 	}
 
 	// For General Use
+
+	/**
+	 * Creates a factory for the binding, reusing one {@link #recycle() recycled} by the calling thread when available, so its engines and buffers
+	 * aren't allocated again.
+	 */
 	public static ScriptingFactory create( ScriptBinding binding )
 	{
-		return new ScriptingFactory( binding );
+		ScriptingFactory factory = pool.get().poll();
+		if ( factory == null )
+			return new ScriptingFactory( binding );
+
+		factory.recycled = false;
+		factory.setBinding( binding );
+		return factory;
+	}
+
+	static List<ScriptingProcessor> getProcessors()
+	{
+		return processors;
+	}
+
+	static List<ScriptingRegistry> getRegistries()
+	{
+		return scripting;
+	}
+
+	/**
+	 * Names the script and its package after its path relative to the source directory, compiled scripts are cached under this name.
+	 */
+	static void nameScript( ScriptingContext context )
+	{
+		String name;
+		if ( context.isVirtual() )
+			name = "EvalScript" + UtilityEncrypt.rand( 8 ) + ".hps";
+		else
+		{
+			String rel = UtilityIO.relPath( context.getPath().getParent(), context.getSourceDirectory() ).replace( '\\', '.' ).replace( '/', '.' );
+			context.setCachePath( Paths.get( rel.contains( "." ) ? rel.substring( 0, rel.indexOf( "." ) ) : rel ).resolve( context.getCachePath() ) );
+			context.setScriptPackage( rel.contains( "." ) ? rel.substring( rel.indexOf( "." ) + 1 ) : "" );
+			name = context.getPath().getFileName().toString();
+		}
+
+		context.setScriptName( name );
 	}
 
 	public static void register( ScriptingProcessor scriptingProcessor )
@@ -105,12 +157,31 @@ public class ScriptingFactory
 			scripting.add( registry );
 	}
 
-	private final ScriptBinding binding;
 	private final List<Pair<ByteBuf, StackType>> bufferStack = new LinkedList<>();
 	private final Map<ScriptingEngine, List<String>> engines = new LinkedHashMap<>();
 	private final ByteBuf output = Unpooled.buffer();
+	private final OutputStream outputStream = new OutputStream()
+	{
+		@Override
+		public void write( int b )
+		{
+			output.writeByte( b );
+			streamIfReady();
+		}
+
+		@Override
+		public void write( @Nonnull byte[] bytes, int off, int len )
+		{
+			output.writeBytes( bytes, off, len );
+			streamIfReady();
+		}
+	};
 	private final StackFactory stackFactory = new StackFactory();
 	private Charset charset = Charset.forName( ConfigRegistry.config.getString( "server.defaultEncoding" ).orElse( "UTF-8" ) );
+	private ScriptBinding binding;
+	private ScriptingOutputSink outputSink = null;
+	private boolean recycled = false;
+	private int streamChunkSize = ConfigRegistry.config.getValue( Config.STREAM_CHUNK_SIZE );
 	private YieldBuffer yieldBuffer = null;
 
 	private ScriptingFactory( ScriptBinding binding )
@@ -143,8 +214,10 @@ public class ScriptingFactory
 		if ( bufferStack.size() - 1 > level )
 			throw new IllegalStateException( "Buffer stack size was too high." );
 
+		ByteBuf saved = bufferStack.remove( level ).getKey();
 		output.clear();
-		output.writeBytes( bufferStack.remove( level ).getKey() );
+		output.writeBytes( saved );
+		saved.release();
 	}
 
 	/**
@@ -152,7 +225,9 @@ public class ScriptingFactory
 	 */
 	private int bufferPush( StackType type )
 	{
-		bufferStack.add( new Pair<>( output.copy(), type ) );
+		ByteBuf saved = PooledByteBufAllocator.DEFAULT.heapBuffer( output.readableBytes() );
+		saved.writeBytes( output, output.readerIndex(), output.readableBytes() );
+		bufferStack.add( new Pair<>( saved, type ) );
 		output.clear();
 		return bufferStack.size() - 1;
 	}
@@ -169,7 +244,7 @@ public class ScriptingFactory
 				if ( !contains( engine ) )
 				{
 					engine.setBinding( binding );
-					engine.setOutput( output, charset );
+					engine.setOutput( outputStream, charset );
 					engines.put( engine, engine.getTypes() );
 				}
 	}
@@ -188,7 +263,7 @@ public class ScriptingFactory
 
 		context.setScriptingFactory( this );
 		context.setCharset( charset );
-		context.setBaseSource( new String( context.readBytes(), charset ) );
+		context.setBaseSource( context.getBuffer().toString( charset ) );
 		binding.setVariable( "__FILE__", context.getFileName() == null ? "<no file>" : context.getFileName() );
 
 		if ( result.getExceptionReport().hasSevereExceptions() )
@@ -196,19 +271,8 @@ public class ScriptingFactory
 
 		try
 		{
-			String name;
-			if ( context.isVirtual() )
-				name = "EvalScript" + UtilityEncrypt.rand( 8 ) + ".hps";
-			else
-			{
-				String rel = UtilityIO.relPath( context.getPath().getParent(), context.getSourceDirectory() ).replace( '\\', '.' ).replace( '/', '.' );
-				context.setCachePath( Paths.get( rel.contains( "." ) ? rel.substring( 0, rel.indexOf( "." ) ) : rel ).resolve( context.getCachePath() ) );
-				context.setScriptPackage( rel.contains( "." ) ? rel.substring( rel.indexOf( "." ) + 1 ) : "" );
-				name = context.getPath().getFileName().toString();
-			}
-
-			context.setScriptName( name );
-			stackFactory.stack( name, context );
+			nameScript( context );
+			stackFactory.stack( context.getScriptName(), context );
 
 			processors.forEach( scriptingProcessor -> scriptingProcessor.transformScriptingContext( context ) );
 			processors.forEach( scriptingProcessor -> scriptingProcessor.preEvaluate( context ) );
@@ -238,9 +302,11 @@ public class ScriptingFactory
 						try
 						{
 							// Determine if data was written to the context during the eval(). Indicating data was either written directly or a sub-eval was called.
-							String hash = context.getBufferHash();
+							long writeCount = context.getWriteCount();
 							entry.getKey().eval( context );
-							if ( context.getBufferHash().equals( hash ) )
+							if ( isStreaming() )
+								streamOutput();
+							else if ( context.getWriteCount() == writeCount )
 								context.resetAndWrite( output );
 							else
 								context.write( output );
@@ -316,6 +382,14 @@ public class ScriptingFactory
 		return scriptTrace.get( scriptTrace.size() - 1 ).getLineNumber();
 	}
 
+	/**
+	 * Gets the output stream scripts print to, output written here is streamed to the {@link ScriptingOutputSink} when set.
+	 */
+	public OutputStream getOutput()
+	{
+		return outputStream;
+	}
+
 	public ByteBuf getOutputStream()
 	{
 		return output;
@@ -370,6 +444,7 @@ public class ScriptingFactory
 	public void print( String text )
 	{
 		output.writeBytes( text.getBytes( charset ) );
+		streamIfReady();
 	}
 
 	/**
@@ -380,6 +455,117 @@ public class ScriptingFactory
 	public void println( String text )
 	{
 		output.writeBytes( ( text + "\n" ).getBytes( charset ) );
+		streamIfReady();
+	}
+
+	/**
+	 * Checks if output is presently streamed, i.e., a sink is set and the top-level script is running without an output buffer started.
+	 * Output of included scripts and output buffers is captured as usual, and only streamed once it's printed at the top level.
+	 */
+	public boolean isStreaming()
+	{
+		return outputSink != null && bufferStack.size() == 1 && bufferStack.get( 0 ).getValue() == StackType.SCRIPT;
+	}
+
+	/**
+	 * Streams the top-level script output to the sink in chunks as it's written, instead of buffering it into the {@link ScriptingResult}.
+	 * The result content then only holds what was written to the context directly, so post-processors never see streamed output, only stream
+	 * content that doesn't need post-processing, e.g., HTML pages.
+	 *
+	 * @param outputSink The sink receiving the output, null to buffer the output
+	 */
+	public ScriptingFactory setOutputSink( ScriptingOutputSink outputSink )
+	{
+		this.outputSink = outputSink;
+		return this;
+	}
+
+	public ScriptingFactory setStreamChunkSize( int streamChunkSize )
+	{
+		this.streamChunkSize = Math.max( 1, streamChunkSize );
+		return this;
+	}
+
+	private void streamIfReady()
+	{
+		if ( output.readableBytes() >= streamChunkSize && isStreaming() )
+			streamOutput();
+	}
+
+	private void streamOutput()
+	{
+		if ( !output.isReadable() )
+			return;
+
+		try
+		{
+			outputSink.write( output.readBytes( output.readableBytes() ) );
+		}
+		catch ( IOException e )
+		{
+			throw new ScriptingException.Runtime( "Failed to stream the script output.", e );
+		}
+		finally
+		{
+			output.clear();
+		}
+	}
+
+	/**
+	 * Resets the factory and returns it to the calling thread's pool, so the next {@link #create(ScriptBinding)} reuses its engines and buffers.
+	 * Neither the factory nor its output may be used afterwards, and a factory that's still evaluating can't be recycled.
+	 */
+	public void recycle()
+	{
+		if ( recycled )
+			return;
+		if ( stackFactory.getScriptTrace().size() > 0 )
+			throw new IllegalStateException( "The ScriptingFactory can't be recycled while evaluating." );
+
+		for ( Pair<ByteBuf, StackType> entry : bufferStack )
+			entry.getKey().release();
+		bufferStack.clear();
+
+		output.clear();
+		if ( output.capacity() > MAX_RETAINED_CAPACITY )
+			output.capacity( 256 );
+
+		stackFactory.clear();
+		charset = Charset.forName( ConfigRegistry.config.getString( "server.defaultEncoding" ).orElse( "UTF-8" ) );
+		outputSink = null;
+		streamChunkSize = ConfigRegistry.config.getValue( Config.STREAM_CHUNK_SIZE );
+		yieldBuffer = null;
+		binding = null;
+		recycled = true;
+
+		// Drops the engines' reference to the previous request's variables, the next create() binds them again
+		ScriptBinding empty = new ScriptBinding();
+		for ( ScriptingEngine engine : engines.keySet() )
+			engine.setBinding( empty );
+
+		Deque<ScriptingFactory> factories = pool.get();
+		if ( factories.size() < ConfigRegistry.config.getValue( Config.FACTORY_POOL_SIZE ) )
+			factories.push( this );
+	}
+
+	/**
+	 * Recycles the factory, so a factory made with {@link #create(ScriptBinding)} for a single evaluation can be used with try-with-resources.
+	 */
+	@Override
+	public void close()
+	{
+		recycle();
+	}
+
+	private void setBinding( ScriptBinding binding )
+	{
+		UtilityObjects.notNull( binding, "The ScriptBinding can't be null" );
+		this.binding = binding;
+		for ( ScriptingEngine engine : engines.keySet() )
+		{
+			engine.setBinding( binding );
+			engine.setOutput( outputStream, charset );
+		}
 	}
 
 	public void setEncoding( Charset charset )
@@ -402,12 +588,105 @@ public class ScriptingFactory
 	public static class Config
 	{
 		public static final TypeBase SCRIPTING_BASE = new TypeBase( "scripting" );
+		/**
+		 * Specifies the maximum number of compiled script classes kept in memory.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   classCacheSize: 1024
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger CLASS_CACHE_SIZE = new TypeBase.TypeInteger( SCRIPTING_BASE, "classCacheSize", 1024 );
+		/**
+		 * Specifies whether compiled script bytecode is persisted to the cache directory, so scripts aren't recompiled after a restart.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   bytecodeCache: true
+		 * </pre>
+		 */
+		public static final TypeBase.TypeBoolean BYTECODE_CACHE = new TypeBase.TypeBoolean( SCRIPTING_BASE, "bytecodeCache", true );
+		/**
+		 * Specifies the number of bytes buffered before streamed script output is written to the sink.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   streamChunkSize: 8192
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger STREAM_CHUNK_SIZE = new TypeBase.TypeInteger( SCRIPTING_BASE, "streamChunkSize", 8192 );
+		/**
+		 * Specifies how many recycled factories each thread keeps for reuse, zero disables pooling.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   factoryPoolSize: 4
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger FACTORY_POOL_SIZE = new TypeBase.TypeInteger( SCRIPTING_BASE, "factoryPoolSize", 4 );
 		public static final TypeBase PROCESSORS_BASE = new TypeBase( SCRIPTING_BASE, "processors" );
 		public static final TypeBase.TypeBoolean PROCESSORS_COFFEE = new TypeBase.TypeBoolean( PROCESSORS_BASE, "coffeeEnabled", true );
 		public static final TypeBase.TypeBoolean PROCESSORS_LESS = new TypeBase.TypeBoolean( PROCESSORS_BASE, "lessEnabled", true );
 		public static final TypeBase.TypeBoolean PROCESSORS_MINIFY_JS = new TypeBase.TypeBoolean( PROCESSORS_BASE, "minifyJSEnabled", true );
 		public static final TypeBase.TypeBoolean PROCESSORS_IMAGES = new TypeBase.TypeBoolean( PROCESSORS_BASE, "imagesEnabled", true );
 		public static final TypeBase.TypeBoolean PROCESSORS_IMAGES_CACHE = new TypeBase.TypeBoolean( PROCESSORS_BASE, "imagesCacheEnabled", true );
+		/**
+		 * Specifies how many images are processed at once and how many more may wait for a thread.
+		 * Images requested while the queue is full are served unprocessed.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   processors:
+		 *     imagesThreads: 2
+		 *     imagesQueueSize: 32
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger PROCESSORS_IMAGES_THREADS = new TypeBase.TypeInteger( PROCESSORS_BASE, "imagesThreads", 2 );
+		public static final TypeBase.TypeInteger PROCESSORS_IMAGES_QUEUE = new TypeBase.TypeInteger( PROCESSORS_BASE, "imagesQueueSize", 32 );
+		/**
+		 * Specifies the largest width or height in pixels an image is resized to, larger requests are scaled down keeping their aspect ratio.
+		 * Images are never enlarged beyond their source size unless upscaling is enabled.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   processors:
+		 *     imagesMaxDimension: 4096
+		 *     imagesUpscaleEnabled: false
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger PROCESSORS_IMAGES_MAX_DIMENSION = new TypeBase.TypeInteger( PROCESSORS_BASE, "imagesMaxDimension", 4096 );
+		public static final TypeBase.TypeBoolean PROCESSORS_IMAGES_UPSCALE = new TypeBase.TypeBoolean( PROCESSORS_BASE, "imagesUpscaleEnabled", false );
+		/**
+		 * Specifies how many megabytes of processed LESS, CoffeeScript, minified JavaScript, and image output are kept in memory and on disk, per processor.
+		 * A limit of zero disables that tier.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   processors:
+		 *     cacheMemoryMegabytes: 16
+		 *     cacheDiskMegabytes: 256
+		 * </pre>
+		 */
+		public static final TypeBase.TypeInteger PROCESSORS_CACHE_MEMORY = new TypeBase.TypeInteger( PROCESSORS_BASE, "cacheMemoryMegabytes", 16 );
+		public static final TypeBase.TypeInteger PROCESSORS_CACHE_DISK = new TypeBase.TypeInteger( PROCESSORS_BASE, "cacheDiskMegabytes", 256 );
 		public static final TypeBase.TypeStringList PREFERRED_EXTENSIONS = new TypeBase.TypeStringList( SCRIPTING_BASE, "preferredExtensions", Arrays.asList( "html", "htm", "groovy", "gsp", "jsp" ) );
+		/**
+		 * Specifies the source directories compiled once the application reaches the {@link io.amelia.support.Runlevel#MAINLOOP} runlevel, before traffic arrives.
+		 * Only files with a preferred extension are compiled.
+		 *
+		 * <pre>
+		 * scripting:
+		 *   precompile:
+		 *     enabled: true
+		 *     directories: []
+		 *     threads: 4
+		 *     timeout: 300
+		 * </pre>
+		 */
+		public static final TypeBase PRECOMPILE_BASE = new TypeBase( SCRIPTING_BASE, "precompile" );
+		public static final TypeBase.TypeBoolean PRECOMPILE_ENABLED = new TypeBase.TypeBoolean( PRECOMPILE_BASE, "enabled", true );
+		public static final TypeBase.TypeStringList PRECOMPILE_DIRECTORIES = new TypeBase.TypeStringList( PRECOMPILE_BASE, "directories", new ArrayList<>() );
+		public static final TypeBase.TypeInteger PRECOMPILE_THREADS = new TypeBase.TypeInteger( PRECOMPILE_BASE, "threads", Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+		public static final TypeBase.TypeInteger PRECOMPILE_TIMEOUT = new TypeBase.TypeInteger( PRECOMPILE_BASE, "timeout", 300 );
 	}
 }
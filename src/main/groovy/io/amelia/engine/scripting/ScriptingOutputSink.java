@@ -0,0 +1,29 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Receives script output as it's produced, e.g., an HTTP chunked writer, instead of the output being buffered into the {@link ScriptingResult}.
+ */
+public interface ScriptingOutputSink
+{
+	/**
+	 * Called with each chunk of output, in order. Ownership of the chunk passes to the sink.
+	 *
+	 * @param chunk The output chunk
+	 *
+	 * @throws IOException if the chunk could not be written, e.g., the client went away
+	 */
+	void write( ByteBuf chunk ) throws IOException;
+}
@@ -0,0 +1,202 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+
+import io.amelia.engine.config.ConfigRegistry;
+import io.amelia.engine.log.L;
+import io.amelia.engine.scripting.processing.ScriptingProcessor;
+import io.amelia.extra.UtilityIO;
+import io.amelia.support.Runlevel;
+
+/**
+ * Compiles the scripts of the configured source directories before the application accepts traffic, so the first requests don't wait on the compiler.
+ * <p>
+ * Runs once the application reaches {@link Runlevel#MAINLOOP}, blocking the progression to the networking runlevel until every script is compiled
+ * or the timeout lapses. Scripts compile in parallel on a bounded pool and compile failures are reported up front instead of on the first request.
+ */
+public final class ScriptingPrecompiler
+{
+	/**
+	 * Called by {@link io.amelia.engine.EngineApplication#onRunlevelChange(Runlevel, Runlevel)}, which runs for every application, rather than by a
+	 * listener registered when the scripting classes happen to load.
+	 */
+	public static void onRunlevelChange( Runlevel runlevel )
+	{
+		if ( runlevel == Runlevel.MAINLOOP && ConfigRegistry.config.getValue( ScriptingFactory.Config.PRECOMPILE_ENABLED ) )
+			precompile( ConfigRegistry.config.getValue( ScriptingFactory.Config.PRECOMPILE_DIRECTORIES ).stream().map( Paths::get ).collect( Collectors.toList() ) );
+	}
+
+	/**
+	 * Compiles every script with a preferred extension found within the source directories.
+	 *
+	 * @param sourceDirectories The source directories to walk
+	 *
+	 * @return The compile failures by script path
+	 */
+	public static Map<Path, Throwable> precompile( @Nonnull Collection<Path> sourceDirectories )
+	{
+		List<String> extensions = ScriptingContext.getPreferredExtensions().stream().map( String::toLowerCase ).collect( Collectors.toList() );
+		List<Path> files = new ArrayList<>();
+
+		for ( Path sourceDirectory : sourceDirectories )
+		{
+			if ( !Files.isDirectory( sourceDirectory ) )
+			{
+				L.warning( "The precompile source directory " + UtilityIO.relPath( sourceDirectory ) + " does not exist." );
+				continue;
+			}
+
+			try ( Stream<Path> stream = Files.walk( sourceDirectory ) )
+			{
+				stream.filter( Files::isRegularFile ).filter( file -> extensions.contains( UtilityIO.getFileExtension( file ).toLowerCase() ) ).forEach( files::add );
+			}
+			catch ( IOException e )
+			{
+				L.warning( "Failed to walk the precompile source directory " + UtilityIO.relPath( sourceDirectory ), e );
+			}
+		}
+
+		if ( files.isEmpty() )
+			return Collections.emptyMap();
+
+		int threads = Math.max( 1, ConfigRegistry.config.getValue( ScriptingFactory.Config.PRECOMPILE_THREADS ) );
+		int timeout = ConfigRegistry.config.getValue( ScriptingFactory.Config.PRECOMPILE_TIMEOUT );
+		AtomicInteger threadCount = new AtomicInteger( 1 );
+
+		// The bounded queue makes the caller compile scripts itself once the pool falls behind, instead of queuing the entire tree.
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>( threads * 4 ), runnable -> {
+			Thread thread = new Thread( runnable, "Script Precompiler #" + threadCount.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		}, new ThreadPoolExecutor.CallerRunsPolicy() );
+
+		Map<Path, Throwable> failures = new ConcurrentHashMap<>();
+		AtomicInteger compiled = new AtomicInteger();
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			for ( Path file : files )
+				executor.execute( () -> {
+					try
+					{
+						if ( precompile( file ) )
+							compiled.incrementAndGet();
+					}
+					catch ( Throwable t )
+					{
+						failures.put( file, t );
+					}
+				} );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		try
+		{
+			if ( !executor.awaitTermination( timeout, TimeUnit.SECONDS ) )
+			{
+				executor.shutdownNow();
+				L.warning( "Precompiling scripts timed out after %s seconds, the remaining scripts will compile on their first request.", timeout );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		failures.forEach( ( file, cause ) -> L.severe( "Failed to precompile script " + UtilityIO.relPath( file ) + ": " + cause.getMessage() ) );
+		L.info( "Precompiled %s of %s scripts in %sms, %s failed.", compiled.get(), files.size(), System.currentTimeMillis() - start, failures.size() );
+
+		return failures;
+	}
+
+	/**
+	 * Names the script, runs the cacheable pre-processors, and hands it to the first registry that handles its shell.
+	 * <p>
+	 * The source is loaded through {@link FileInterpreter}, the same as at request time, so the compiled body has its {@code @annotation}
+	 * header stripped and is decoded with the file's own encoding, otherwise its content hash would never match.
+	 *
+	 * @return True if a registry compiled the script
+	 */
+	private static boolean precompile( Path file ) throws Exception
+	{
+		FileInterpreter interpreter = new FileInterpreter( file.toFile() );
+		ScriptSourceCache.Source source = ScriptSourceCache.get( file );
+
+		// An @encoding annotation wins, otherwise the encoding follows the content type as it does when the file is served
+		boolean encodingAnnotated = source.getAnnotations().containsKey( "encoding" );
+		Charset charset = interpreter.getEncoding();
+		String contentType = interpreter.getContentType();
+		if ( !encodingAnnotated )
+			charset = interpreter.getEncoding();
+
+		PrecompileContext context = new PrecompileContext();
+		context.setVirtual( false );
+		context.setFileName( interpreter.getFilePath() );
+		context.setShell( interpreter.get( "shell" ) );
+		context.setCharset( charset );
+		context.setContentType( contentType );
+		context.write( source.getBody() );
+
+		ScriptingFactory.nameScript( context );
+
+		if ( context.getContentType() != null )
+			for ( ScriptingProcessor scriptingProcessor : ScriptingFactory.getProcessors() )
+				if ( scriptingProcessor.isCacheable() )
+				{
+					scriptingProcessor.transformScriptingContext( context );
+					scriptingProcessor.preEvaluate( context );
+				}
+
+		for ( ScriptingRegistry registry : ScriptingFactory.getRegistries() )
+			if ( registry.precompile( context ) )
+				return true;
+
+		return false;
+	}
+
+	private ScriptingPrecompiler()
+	{
+		// Static Access
+	}
+
+	private static class PrecompileContext extends ScriptingContext<PrecompileContext>
+	{
+		@Override
+		public ScriptingFactory getScriptingFactory()
+		{
+			return null;
+		}
+	}
+}
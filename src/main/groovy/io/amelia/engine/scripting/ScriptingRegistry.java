@@ -15,4 +15,18 @@ package io.amelia.engine.scripting;
 public interface ScriptingRegistry
 {
 	ScriptingEngine[] makeEngines( ScriptingContext context );
+
+	/**
+	 * Compiles and caches the script ahead of its first evaluation.
+	 *
+	 * @param context The script context, already named and pre-processed
+	 *
+	 * @return True if this registry handles the script shell
+	 *
+	 * @throws Exception if the script failed to compile
+	 */
+	default boolean precompile( ScriptingContext context ) throws Exception
+	{
+		return false;
+	}
 }
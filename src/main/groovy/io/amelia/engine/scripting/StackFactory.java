@@ -25,6 +25,15 @@ public class StackFactory
 	Map<String, ScriptingContext> scriptStack = new LinkedHashMap<>();
 	Map<String, ScriptingContext> scriptStackHistory = new LinkedHashMap<>();
 
+	/**
+	 * Forgets every stacked {@link ScriptingContext}, including the history, e.g., when a pooled {@link ScriptingFactory} is recycled.
+	 */
+	public void clear()
+	{
+		scriptStack.clear();
+		scriptStackHistory.clear();
+	}
+
 	public List<ScriptTraceElement> examineStackTrace( StackTraceElement[] stackTrace )
 	{
 		UtilityObjects.notNull( stackTrace );
@@ -52,6 +52,9 @@ import java.util.stream.Stream;
 import groovy.json.JsonSlurper;
 import groovy.lang.MissingPropertyException;
 import groovy.lang.Script;
+import io.amelia.engine.permissions.Permissible;
+import io.amelia.engine.permissions.PermissionBatch;
+import io.amelia.engine.permissions.References;
 import io.amelia.engine.scripting.TableBuilder;
 import io.amelia.engine.scripting.localization.LocalizationException;
 import io.amelia.extra.UtilityEncrypt;
@@ -135,6 +138,31 @@ public abstract class Builtin extends Script
 		return UtilityEncrypt.base64Encode( str );
 	}
 
+	/**
+	 * Resolves every permission guarding a page at once, so the page can test the result instead of checking each permission as it renders.
+	 * <p>
+	 * e.g., {@code def guards = checkPermissions( account, "site.admin", "site.edit" ); if ( guards.isTrue( 0 ) ) ...}
+	 *
+	 * @param permissible The permissible to check, e.g., the current account
+	 * @param namespaces  The permissions to check
+	 *
+	 * @return The results indexed in the order of the provided namespaces
+	 */
+	public static PermissionBatch checkPermissions( Permissible permissible, String... namespaces )
+	{
+		return permissible.checkPermissions( namespaces );
+	}
+
+	public static PermissionBatch checkPermissions( Permissible permissible, Collection<String> namespaces )
+	{
+		return permissible.checkPermissions( namespaces.toArray( new String[0] ) );
+	}
+
+	public static PermissionBatch checkPermissions( Permissible permissible, String refs, Collection<String> namespaces )
+	{
+		return permissible.checkPermissions( References.format( refs ), namespaces.toArray( new String[0] ) );
+	}
+
 	public static int count( Collection<Object> list )
 	{
 		return list == null ? 0 : list.size();
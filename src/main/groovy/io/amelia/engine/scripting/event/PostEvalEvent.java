@@ -9,8 +9,16 @@
  */
 package io.amelia.engine.scripting.event;
 
+import io.amelia.engine.events.AbstractEvent;
+import io.amelia.engine.events.Cancellable;
+import io.amelia.engine.events.Concurrency;
+import io.amelia.engine.events.EventConcurrency;
 import io.amelia.engine.scripting.ScriptingContext;
 
+/**
+ * Fired for every script evaluation, so it's dispatched concurrently across request threads.
+ */
+@EventConcurrency( Concurrency.CONCURRENT )
 public class PostEvalEvent extends AbstractEvent implements Cancellable
 {
 	private boolean cancelled;
@@ -9,10 +9,16 @@
  */
 package io.amelia.engine.scripting.event;
 
-import com.chiorichan.event.AbstractEvent;
-import com.chiorichan.event.Cancellable;
-import com.chiorichan.factory.ScriptingContext;
+import io.amelia.engine.events.AbstractEvent;
+import io.amelia.engine.events.Cancellable;
+import io.amelia.engine.events.Concurrency;
+import io.amelia.engine.events.EventConcurrency;
+import io.amelia.engine.scripting.ScriptingContext;
 
+/**
+ * Fired for every script evaluation, so it's dispatched concurrently across request threads.
+ */
+@EventConcurrency( Concurrency.CONCURRENT )
 public class PreEvalEvent extends AbstractEvent implements Cancellable
 {
 	private final ScriptingContext context;
@@ -0,0 +1,330 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.groovy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import io.amelia.lang.ReportingLevel;
+import io.amelia.lang.ScriptingException;
+
+/**
+ * The parsed form of an embedded Groovy template, i.e., the text and code nodes between markers, and the Groovy script generated from them.
+ * <p>
+ * Templates are lexed in a single pass, only positions holding a marker's first character are tested against the markers, and generated once,
+ * recording the template line each generated line came from, so script errors point at the template rather than the generated source.
+ * Parsed templates are kept by content hash.
+ */
+final class EmbeddedTemplate
+{
+	private static final String[] DO_NOT_PREPEND = new String[] {"println", "print", "echo", "def", "import", "if", "for", "do", "while", "{", "}", "else", "//", "/*", "\n", "\r"};
+	private static final int MAX_CACHED = 256;
+
+	private static final Map<String, EmbeddedTemplate> templates = Collections.synchronizedMap( new LinkedHashMap<String, EmbeddedTemplate>( 16, 0.75f, true )
+	{
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, EmbeddedTemplate> eldest )
+		{
+			return size() > MAX_CACHED;
+		}
+	} );
+
+	/**
+	 * Gets the parsed template, lexing and generating it unless a template with the same content hash was already parsed.
+	 *
+	 * @param contentHash The hash of the template source
+	 * @param source      The template source
+	 * @param markers     The recognised markers
+	 */
+	static EmbeddedTemplate compile( @Nonnull String contentHash, @Nonnull String source, @Nonnull List<Marker> markers ) throws ScriptingException
+	{
+		EmbeddedTemplate template = templates.get( contentHash );
+		if ( template == null )
+		{
+			template = parse( source, markers );
+			templates.put( contentHash, template );
+		}
+		return template;
+	}
+
+	/**
+	 * Parses the template without caching it.
+	 */
+	static EmbeddedTemplate parse( @Nonnull String source, @Nonnull List<Marker> markers ) throws ScriptingException
+	{
+		return new EmbeddedTemplate( lex( source, markers ) );
+	}
+
+	static List<Node> lex( @Nonnull String source, @Nonnull List<Marker> markers ) throws ScriptingException
+	{
+		// Longest markers first, so "<%=" is preferred over "<%" at the same position
+		Marker[] sorted = markers.toArray( new Marker[0] );
+		Arrays.sort( sorted, Comparator.comparingInt( ( Marker marker ) -> marker.start.length() ).reversed() );
+
+		boolean[] firstChars = new boolean[128];
+		for ( Marker marker : sorted )
+			if ( marker.start.charAt( 0 ) < 128 )
+				firstChars[marker.start.charAt( 0 )] = true;
+
+		List<Node> nodes = new ArrayList<>();
+		int length = source.length();
+		int textStart = 0;
+		int textLine = 1;
+		int line = 1;
+		int index = 0;
+
+		while ( index < length )
+		{
+			char c = source.charAt( index );
+			Marker activeMarker = null;
+
+			if ( c < 128 && firstChars[c] )
+				for ( Marker marker : sorted )
+					if ( source.startsWith( marker.start, index ) )
+					{
+						activeMarker = marker;
+						break;
+					}
+
+			if ( activeMarker == null )
+			{
+				if ( c == '\n' )
+					line++;
+				index++;
+				continue;
+			}
+
+			if ( index > textStart )
+				nodes.add( new Node( null, source.substring( textStart, index ), textLine ) );
+
+			int codeStart = index + activeMarker.start.length();
+			int endIndex = source.indexOf( activeMarker.end, codeStart );
+			if ( endIndex == -1 )
+				throw new ScriptingException( ReportingLevel.E_PARSE, String.format( "Found starting marker '%s' at line %s, expected close marker '%s' not found.", activeMarker.start, line, activeMarker.end ) );
+
+			// Code nodes start on the line of their first non-whitespace character, as they're trimmed
+			String code = source.substring( codeStart, endIndex );
+			int codeLine = line;
+			for ( int i = 0; i < code.length() && Character.isWhitespace( code.charAt( i ) ); i++ )
+				if ( code.charAt( i ) == '\n' )
+					codeLine++;
+
+			for ( int i = index; i < endIndex; i++ )
+				if ( source.charAt( i ) == '\n' )
+					line++;
+
+			nodes.add( new Node( activeMarker, code.trim(), codeLine ) );
+
+			index = endIndex + activeMarker.end.length();
+			textStart = index;
+			textLine = line;
+		}
+
+		if ( textStart < length )
+			nodes.add( new Node( null, source.substring( textStart ), textLine ) );
+
+		return nodes;
+	}
+
+	private final List<Node> nodes;
+	private final String script;
+	private final int[] sourceLines;
+
+	private EmbeddedTemplate( List<Node> nodes )
+	{
+		this.nodes = Collections.unmodifiableList( nodes );
+
+		Generator generator = new Generator();
+		for ( Node node : nodes )
+			generator.append( node );
+
+		script = generator.output.toString();
+		sourceLines = generator.getSourceLines();
+	}
+
+	List<Node> getNodes()
+	{
+		return nodes;
+	}
+
+	String getScript()
+	{
+		return script;
+	}
+
+	/**
+	 * Maps a line of the generated script back to the template.
+	 *
+	 * @param scriptLine The one-based generated line
+	 *
+	 * @return The one-based template line, or the line as-is if out of range
+	 */
+	int getSourceLine( int scriptLine )
+	{
+		return scriptLine > 0 && scriptLine <= sourceLines.length ? sourceLines[scriptLine - 1] : scriptLine;
+	}
+
+	/**
+	 * Emits the Groovy script, tracking the template line of every generated line and whether the current line holds a comment, without
+	 * ever rescanning the output.
+	 */
+	private static final class Generator
+	{
+		final StringBuilder output = new StringBuilder();
+		int[] sourceLines = new int[64];
+		int lines = 1;
+		boolean lineComment;
+		char lastChar;
+
+		Generator()
+		{
+			sourceLines[0] = 1;
+		}
+
+		void append( Node node )
+		{
+			if ( node.marker == null )
+				appendFragment( node.text, "print", node.line );
+			else
+			{
+				String fragment = node.text;
+
+				// TODO Implement marker content type, wrap content as string, i.e., is not code.
+				boolean prependMiddle = node.marker.middle != null && node.marker.middle.length() > 0;
+				boolean wrapMiddleAsString = "comment".equals( node.marker.middle );
+
+				for ( String s : DO_NOT_PREPEND )
+					if ( fragment.startsWith( s ) )
+						prependMiddle = false;
+
+				if ( prependMiddle && wrapMiddleAsString )
+					appendFragment( fragment, node.marker.middle, node.line );
+				else
+				{
+					if ( prependMiddle )
+					{
+						int semicolon = fragment.indexOf( ';' );
+						fragment = ( node.marker.middle + "( " + ( semicolon > -1 ? fragment.substring( 0, semicolon ) : fragment ) + " ); " + ( semicolon > -1 ? fragment.substring( semicolon + 1 ) : "" ) ).trim();
+					}
+
+					if ( fragment.length() > 0 )
+						write( fragment.endsWith( ";" ) ? fragment : fragment + ";", node.line );
+				}
+			}
+		}
+
+		void appendFragment( String fragment, String method, int line )
+		{
+			if ( fragment.length() == 0 )
+				return;
+
+			String brackets = "\"\"\"";
+
+			fragment = fragment.replace( "\\u005Cu0024", "$" );
+			fragment = fragment.replace( "\\u005Cu005C", "\\" );
+
+			fragment = fragment.replace( "\\", "\\u005Cu005C" ); // Prevent Escaping
+			fragment = fragment.replace( "$", "\\u005Cu0024" ); // Prevent GString
+
+			if ( fragment.endsWith( "\"" ) )
+				brackets = "'''";
+
+			// A line comment on the current line would swallow the statement
+			if ( lineComment )
+				newLine( line );
+
+			write( method + " " + brackets + fragment + brackets + "; ", line );
+		}
+
+		int[] getSourceLines()
+		{
+			return Arrays.copyOf( sourceLines, lines );
+		}
+
+		/**
+		 * Inserts a newline that isn't in the template, the new line maps to the same template line.
+		 */
+		void newLine( int line )
+		{
+			output.append( '\n' );
+			mapLine( line );
+		}
+
+		private void mapLine( int line )
+		{
+			if ( lines == sourceLines.length )
+				sourceLines = Arrays.copyOf( sourceLines, lines * 2 );
+			sourceLines[lines++] = line;
+			lineComment = false;
+			lastChar = '\n';
+		}
+
+		/**
+		 * Writes text copied from the template, each newline advances the template line.
+		 */
+		void write( String text, int line )
+		{
+			output.append( text );
+
+			for ( int i = 0; i < text.length(); i++ )
+			{
+				char c = text.charAt( i );
+				if ( c == '\n' )
+					mapLine( ++line );
+				else
+				{
+					if ( c == '/' && lastChar == '/' )
+						lineComment = true;
+					lastChar = c;
+				}
+			}
+		}
+	}
+
+	static final class Marker
+	{
+		final String end;
+		final String middle;
+		final String start;
+
+		Marker( String start, String middle, String end )
+		{
+			this.start = start;
+			this.middle = middle;
+			this.end = end;
+		}
+	}
+
+	static final class Node
+	{
+		final int line;
+		final Marker marker;
+		final String text;
+
+		Node( Marker marker, String text, int line )
+		{
+			this.marker = marker;
+			this.text = text;
+			this.line = line;
+		}
+
+		boolean isText()
+		{
+			return marker == null;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.groovy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import groovy.lang.Script;
+import io.amelia.engine.scripting.ScriptingFactory;
+import io.amelia.extra.UtilityEncrypt;
+import io.amelia.extra.UtilityIO;
+
+/**
+ * Persists compiled script bytecode, so scripts aren't recompiled after a restart.
+ * <p>
+ * Each script gets its own directory holding the bytes of every class it compiled to and a manifest of the source hash, engine version,
+ * compiler fingerprint (imports, timeout, and sandbox rules), base class, and encoding. The manifests are indexed when the cache is opened,
+ * discarding any written by another engine or compiler configuration, and the class bytes are only read when the script is first requested.
+ * An entry is replaced as a whole, the manifest being written last, so a crash never leaves a readable partial entry.
+ */
+final class GroovyBytecodeCache
+{
+	private static final int FORMAT_VERSION = 1;
+	private static final String MANIFEST_FILE = "manifest.properties";
+
+	private final String compilerFingerprint;
+	private final Path directory;
+	private final String engineVersion;
+	private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+
+	GroovyBytecodeCache( @Nonnull Path directory, @Nonnull String engineVersion, @Nonnull String compilerFingerprint )
+	{
+		this.directory = directory;
+		this.engineVersion = engineVersion;
+		this.compilerFingerprint = compilerFingerprint;
+	}
+
+	void clear()
+	{
+		manifests.clear();
+		try
+		{
+			UtilityIO.deleteIfExists( directory );
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to clear the script bytecode cache " + UtilityIO.relPath( directory ), e );
+		}
+	}
+
+	private void delete( Path entryDirectory )
+	{
+		try
+		{
+			UtilityIO.deleteIfExists( entryDirectory );
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to delete the stale script bytecode " + UtilityIO.relPath( entryDirectory ), e );
+		}
+	}
+
+	private Path getEntryDirectory( String identity )
+	{
+		return directory.resolve( UtilityEncrypt.md5Hex( identity ) );
+	}
+
+	int size()
+	{
+		return manifests.size();
+	}
+
+	/**
+	 * Defines the persisted script class.
+	 *
+	 * @param identity    The source directory and script class name
+	 * @param contentHash The hash of the script source
+	 * @param baseClass   The script base class
+	 * @param encoding    The source encoding
+	 * @param parent      The loader the script classes resolve everything else against
+	 *
+	 * @return The script class, null if it was never persisted or any of its inputs have since changed
+	 */
+	@Nullable
+	Class<? extends Script> load( @Nonnull String identity, @Nonnull String contentHash, @Nonnull String baseClass, @Nonnull String encoding, @Nonnull ClassLoader parent )
+	{
+		Manifest manifest = manifests.get( identity );
+		if ( manifest == null )
+			return null;
+
+		if ( !manifest.matches( contentHash, baseClass, encoding ) )
+		{
+			remove( identity );
+			return null;
+		}
+
+		try
+		{
+			Map<String, byte[]> bytecode = new HashMap<>();
+			for ( String className : manifest.classNames )
+				bytecode.put( className, Files.readAllBytes( manifest.directory.resolve( className + ".class" ) ) );
+
+			return new BytecodeLoader( parent, bytecode ).loadClass( manifest.mainClass ).asSubclass( Script.class );
+		}
+		catch ( IOException | ClassNotFoundException | LinkageError | ClassCastException e )
+		{
+			ScriptingFactory.L.warning( "Discarding the unreadable script bytecode of " + identity, e );
+			remove( identity );
+			return null;
+		}
+	}
+
+	/**
+	 * Indexes the persisted manifests, deleting entries that are incomplete or were compiled by a different engine version or compiler configuration.
+	 */
+	void open()
+	{
+		if ( !Files.isDirectory( directory ) )
+			return;
+
+		try ( Stream<Path> stream = Files.list( directory ) )
+		{
+			stream.filter( Files::isDirectory ).forEach( entryDirectory -> {
+				Manifest manifest = Manifest.read( entryDirectory );
+				if ( manifest == null || manifest.formatVersion != FORMAT_VERSION || !engineVersion.equals( manifest.engineVersion ) || !compilerFingerprint.equals( manifest.compilerFingerprint ) || !entryDirectory.equals( getEntryDirectory( manifest.identity ) ) )
+					delete( entryDirectory );
+				else
+					manifests.put( manifest.identity, manifest );
+			} );
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to read the script bytecode cache " + UtilityIO.relPath( directory ), e );
+		}
+	}
+
+	void remove( @Nonnull String identity )
+	{
+		manifests.remove( identity );
+		delete( getEntryDirectory( identity ) );
+	}
+
+	/**
+	 * Persists the bytecode of a freshly compiled script, replacing any previous entry.
+	 *
+	 * @param mainClass The script class name
+	 * @param bytecode  The class bytes by class name, including closures and inner classes
+	 */
+	void store( @Nonnull String identity, @Nonnull String contentHash, @Nonnull String baseClass, @Nonnull String encoding, @Nonnull String mainClass, @Nonnull Map<String, byte[]> bytecode )
+	{
+		if ( bytecode.isEmpty() || !bytecode.containsKey( mainClass ) )
+			return;
+
+		Path entryDirectory = getEntryDirectory( identity );
+		Path stagingDirectory = directory.resolve( entryDirectory.getFileName() + "." + Thread.currentThread().getId() + ".tmp" );
+		Manifest manifest = new Manifest( entryDirectory, identity, contentHash, engineVersion, compilerFingerprint, baseClass, encoding, mainClass, bytecode.keySet().toArray( new String[0] ) );
+
+		try
+		{
+			UtilityIO.deleteIfExists( stagingDirectory );
+			Files.createDirectories( stagingDirectory );
+
+			for ( Map.Entry<String, byte[]> entry : bytecode.entrySet() )
+				Files.write( stagingDirectory.resolve( entry.getKey() + ".class" ), entry.getValue() );
+			manifest.write( stagingDirectory );
+
+			manifests.remove( identity );
+			UtilityIO.deleteIfExists( entryDirectory );
+			Files.move( stagingDirectory, entryDirectory, StandardCopyOption.ATOMIC_MOVE );
+			manifests.put( identity, manifest );
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to persist the script bytecode of " + identity, e );
+			delete( stagingDirectory );
+		}
+	}
+
+	/**
+	 * Defines the persisted classes of one script, preferring them over its parent so a stale class of the same name is never picked up.
+	 */
+	private static final class BytecodeLoader extends ClassLoader
+	{
+		private final Map<String, byte[]> bytecode;
+
+		BytecodeLoader( ClassLoader parent, Map<String, byte[]> bytecode )
+		{
+			super( parent );
+			this.bytecode = bytecode;
+		}
+
+		@Override
+		protected Class<?> loadClass( String name, boolean resolve ) throws ClassNotFoundException
+		{
+			if ( !bytecode.containsKey( name ) )
+				return super.loadClass( name, resolve );
+
+			synchronized ( getClassLoadingLock( name ) )
+			{
+				Class<?> cls = findLoadedClass( name );
+				if ( cls == null )
+				{
+					byte[] bytes = bytecode.get( name );
+					cls = defineClass( name, bytes, 0, bytes.length );
+				}
+				if ( resolve )
+					resolveClass( cls );
+				return cls;
+			}
+		}
+	}
+
+	private static final class Manifest
+	{
+		static Manifest read( Path entryDirectory )
+		{
+			Path file = entryDirectory.resolve( MANIFEST_FILE );
+			if ( !Files.isRegularFile( file ) )
+				return null;
+
+			try ( InputStream in = Files.newInputStream( file ) )
+			{
+				Properties properties = new Properties();
+				properties.load( in );
+
+				Manifest manifest = new Manifest( entryDirectory, properties.getProperty( "identity" ), properties.getProperty( "sourceHash" ), properties.getProperty( "engineVersion" ), properties.getProperty( "compilerFingerprint" ), properties.getProperty( "baseClass" ), properties.getProperty( "encoding" ), properties.getProperty( "mainClass" ), properties.getProperty( "classes", "" ).split( "," ) );
+				manifest.formatVersion = Integer.parseInt( properties.getProperty( "format", "0" ) );
+				return manifest.identity == null || manifest.contentHash == null || manifest.mainClass == null ? null : manifest;
+			}
+			catch ( IOException | IllegalArgumentException e )
+			{
+				return null;
+			}
+		}
+
+		final String baseClass;
+		final String[] classNames;
+		final String compilerFingerprint;
+		final String contentHash;
+		final Path directory;
+		final String encoding;
+		final String engineVersion;
+		final String identity;
+		final String mainClass;
+		int formatVersion = FORMAT_VERSION;
+
+		Manifest( Path directory, String identity, String contentHash, String engineVersion, String compilerFingerprint, String baseClass, String encoding, String mainClass, String[] classNames )
+		{
+			this.directory = directory;
+			this.identity = identity;
+			this.contentHash = contentHash;
+			this.engineVersion = engineVersion;
+			this.compilerFingerprint = compilerFingerprint;
+			this.baseClass = baseClass;
+			this.encoding = encoding;
+			this.mainClass = mainClass;
+			this.classNames = classNames;
+		}
+
+		boolean matches( String contentHash, String baseClass, String encoding )
+		{
+			return this.contentHash.equals( contentHash ) && baseClass.equals( this.baseClass ) && encoding.equals( this.encoding );
+		}
+
+		void write( Path stagingDirectory ) throws IOException
+		{
+			Properties properties = new Properties();
+			properties.setProperty( "format", Integer.toString( FORMAT_VERSION ) );
+			properties.setProperty( "identity", identity );
+			properties.setProperty( "sourceHash", contentHash );
+			properties.setProperty( "engineVersion", engineVersion );
+			properties.setProperty( "compilerFingerprint", compilerFingerprint );
+			properties.setProperty( "baseClass", baseClass );
+			properties.setProperty( "encoding", encoding );
+			properties.setProperty( "mainClass", mainClass );
+			properties.setProperty( "classes", String.join( ",", classNames ) );
+
+			try ( OutputStream out = Files.newOutputStream( stagingDirectory.resolve( MANIFEST_FILE ) ) )
+			{
+				properties.store( out, "Compiled script bytecode" );
+			}
+		}
+	}
+}
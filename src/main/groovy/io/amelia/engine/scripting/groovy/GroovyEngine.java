@@ -17,14 +17,13 @@ import com.chiorichan.net.NetworkManager;
 import com.chiorichan.utils.UtilObjects;
 import com.chiorichan.utils.UtilStrings;
 
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.List;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import groovy.lang.MetaMethod;
 import groovy.lang.Script;
 import io.amelia.lang.HttpError;
@@ -32,8 +31,6 @@ import io.amelia.lang.ReportingLevel;
 import io.amelia.lang.ScriptingException;
 import io.amelia.logging.LogBuilder;
 import io.amelia.support.Versioning;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
 
 /**
@@ -42,6 +39,9 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 public class GroovyEngine implements ScriptingEngine
 {
 	private Binding binding = new Binding();
+	private PrintStream out;
+	private Charset outCharset;
+	private OutputStream outStream;
 	private GroovyRegistry registry;
 
 	public GroovyEngine( GroovyRegistry registry )
@@ -58,10 +58,7 @@ public class GroovyEngine implements ScriptingEngine
 			script = GroovyRegistry.getCachedScript( context, binding );
 
 			if ( script == null )
-			{
-				GroovyShell shell = registry.getNewShell( context, binding );
-				script = registry.makeScript( shell, context );
-			}
+				script = registry.makeScript( context, binding );
 
 			context.result().setScript( script );
 
@@ -137,7 +134,7 @@ public class GroovyEngine implements ScriptingEngine
 	@Override
 	public List<String> getTypes()
 	{
-		return Arrays.asList( "groovy" );
+		return GroovyRegistry.groovyTypes;
 	}
 
 	@Override
@@ -145,18 +142,28 @@ public class GroovyEngine implements ScriptingEngine
 	{
 		// Groovy Binding will keep the original EvalBinding map updated automatically. YAY!
 		this.binding = new Binding( binding.getVariables() );
+
+		// Keeps the output when a pooled factory rebinds the engine
+		if ( out != null )
+			this.binding.setProperty( "out", out );
 	}
 
 	@Override
-	public void setOutput( ByteBuf buffer, Charset charset )
+	public void setOutput( OutputStream stream, Charset charset )
 	{
-		try
-		{
-			binding.setProperty( "out", new PrintStream( new ByteBufOutputStream( buffer ), true, charset.name() ) );
-		}
-		catch ( UnsupportedEncodingException e )
-		{
-			e.printStackTrace();
-		}
+		if ( out == null || outStream != stream || !outCharset.equals( charset ) )
+			try
+			{
+				out = new PrintStream( stream, true, charset.name() );
+				outStream = stream;
+				outCharset = charset;
+			}
+			catch ( UnsupportedEncodingException e )
+			{
+				e.printStackTrace();
+				return;
+			}
+
+		binding.setProperty( "out", out );
 	}
 }
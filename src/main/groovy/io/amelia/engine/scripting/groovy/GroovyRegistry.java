@@ -14,10 +14,6 @@ import com.chiorichan.account.AccountManager;
 import com.chiorichan.account.AccountType;
 import com.chiorichan.account.auth.AccountAuthenticator;
 import com.chiorichan.event.EventDispatcher;
-import com.chiorichan.factory.ScriptingContext;
-import com.chiorichan.factory.ScriptingEngine;
-import com.chiorichan.factory.ScriptingFactory;
-import com.chiorichan.factory.ScriptingRegistry;
 import com.chiorichan.helpers.Looper;
 import com.chiorichan.permission.PermissionDispatcher;
 import com.chiorichan.permission.References;
@@ -39,25 +35,37 @@ import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.codehaus.groovy.control.messages.ExceptionMessage;
 import org.codehaus.groovy.control.messages.Message;
 import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.codehaus.groovy.syntax.SyntaxException;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import groovy.lang.Binding;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.GroovyShell;
+import groovy.lang.GroovySystem;
 import groovy.lang.MissingMethodException;
 import groovy.lang.Script;
 import groovy.transform.TimedInterrupt;
 import io.amelia.ServerLoader;
+import io.amelia.engine.scripting.ScriptingContext;
+import io.amelia.engine.scripting.ScriptingEngine;
+import io.amelia.engine.scripting.ScriptingFactory;
+import io.amelia.engine.scripting.ScriptingRegistry;
+import io.amelia.engine.storage.StorageBus;
+import io.amelia.extra.UtilityEncrypt;
 import io.amelia.foundation.ConfigRegistry;
 import io.amelia.lang.ExceptionCallback;
 import io.amelia.lang.ExceptionContext;
@@ -84,8 +92,15 @@ public class GroovyRegistry implements ScriptingRegistry
 	/*
 	 * Groovy Sandbox Customization
 	 */
+	static final List<String> embeddedTypes = Arrays.asList( "embedded", "gsp", "jsp", "chi" );
+	static final List<String> groovyTypes = Arrays.asList( "groovy" );
 	private static final ASTTransformationCustomizer timedInterrupt = new ASTTransformationCustomizer( TimedInterrupt.class );
-	private static Map<String, String> scriptCacheMd5 = new HashMap<>();
+	/*
+	 * Compiled Script Classes
+	 */
+	private static final Map<Path, GroovyBytecodeCache> bytecodeCaches = new ConcurrentHashMap<>();
+	private static final Map<String, GroovyScriptCache.ScriptClassLoader> classLoaders = new ConcurrentHashMap<>();
+	private static final GroovyScriptCache scriptCache = new GroovyScriptCache( ConfigRegistry.config.getInteger( ScriptingFactory.Config.CLASS_CACHE_SIZE ) );
 
 	static
 	{
@@ -103,25 +118,96 @@ public class GroovyRegistry implements ScriptingRegistry
 		}
 	}
 
+	/**
+	 * Forgets every compiled script class, e.g., after the sandbox or imports changed.
+	 */
+	public static void clearScriptCache()
+	{
+		scriptCache.clear();
+		classLoaders.clear();
+		bytecodeCaches.values().forEach( GroovyBytecodeCache::clear );
+		bytecodeCaches.clear();
+	}
+
+	/**
+	 * Gets the persisted bytecode cache of the cache directory, indexing it on first use.
+	 *
+	 * @return The bytecode cache, null if disabled
+	 */
+	@Nullable
+	private static GroovyBytecodeCache getBytecodeCache( @Nonnull Path cachePath )
+	{
+		if ( !ConfigRegistry.config.getBoolean( ScriptingFactory.Config.BYTECODE_CACHE ) )
+			return null;
+
+		return bytecodeCaches.computeIfAbsent( cachePath.resolve( "groovy" ), directory -> {
+			GroovyBytecodeCache bytecodeCache = new GroovyBytecodeCache( directory, GroovySystem.getVersion() + "/" + Versioning.getVersion(), getCompilerFingerprint() );
+			bytecodeCache.open();
+			return bytecodeCache;
+		} );
+	}
+
+	/**
+	 * Describes everything besides the source that changes the compiled bytecode.
+	 */
+	private static String getCompilerFingerprint()
+	{
+		StringBuilder builder = new StringBuilder();
+		for ( Class<?> cls : classImports )
+			builder.append( cls.getName() ).append( ';' );
+		for ( String starImport : starImports )
+			builder.append( starImport ).append( ".*;" );
+		for ( Class<?> cls : staticImports )
+			builder.append( "static " ).append( cls.getName() ).append( ".*;" );
+		builder.append( ConfigRegistry.config.getLong( "advanced.security.defaultScriptTimeout", 30L ) ).append( ';' );
+		builder.append( secure.getConfigurationHash() );
+		return UtilityEncrypt.md5Hex( builder.toString() );
+	}
+
+	private static String getBaseClass( ScriptingContext context )
+	{
+		return UtilObjects.isEmpty( context.getScriptBaseClass() ) ? ScriptingBaseHttp.class.getName() : context.getScriptBaseClass();
+	}
+
+	/**
+	 * Instantiates the script from the compiled class cache, without reading past the source hash.
+	 *
+	 * @return The new script instance, null if the script was never compiled or its source or base class has since changed
+	 */
 	public static Script getCachedScript( ScriptingContext context, Binding binding )
 	{
-		try
+		Class<? extends Script> scriptClass = getCachedScriptClass( context );
+		return scriptClass == null ? null : InvokerHelper.createScript( scriptClass, binding );
+	}
+
+	@Nullable
+	private static Class<? extends Script> getCachedScriptClass( ScriptingContext context )
+	{
+		String contentHash = context.md5Hash();
+		String identity = getIdentity( context, contentHash );
+		String baseClass = getBaseClass( context );
+
+		Class<? extends Script> scriptClass = scriptCache.get( identity, contentHash, baseClass );
+		if ( scriptClass == null && !context.isVirtual() )
 		{
-			if ( scriptCacheMd5.containsKey( context.site().getId() + "//" + context.scriptClassName() ) && scriptCacheMd5.get( context.site().getId() + "//" + context.scriptClassName() ).equals( context.md5() ) )
+			/* Fallback to the bytecode persisted before the last restart */
+			GroovyBytecodeCache bytecodeCache = getBytecodeCache( context.getCachePath() );
+			if ( bytecodeCache != null )
 			{
-				Class<?> scriptClass = Class.forName( context.scriptClassName() );
-				Constructor<?> con = scriptClass.getConstructor( Binding.class );
-				Script script = ( Script ) con.newInstance( binding );
-				return script;
+				GroovyScriptCache.ScriptClassLoader classLoader = getClassLoader( context );
+				scriptClass = bytecodeCache.load( identity, contentHash, baseClass, context.getCharset().name(), classLoader );
+				if ( scriptClass != null )
+					scriptCache.put( identity, contentHash, baseClass, classLoader, scriptClass );
 			}
-			else
-				scriptCacheMd5.put( context.site().getId() + "//" + context.scriptClassName(), context.md5() );
 		}
-		catch ( Throwable t )
-		{
-			// Ignore
-		}
-		return null;
+
+		return scriptClass;
+	}
+
+	private static String getIdentity( ScriptingContext context, String contentHash )
+	{
+		// Virtual scripts have no name to tell them apart, so their content is their identity
+		return context.getSourceDirectory() + "//" + ( context.getScriptClassName() == null ? "virtual." + contentHash : context.getScriptClassName() );
 	}
 
 	public GroovyRegistry()
@@ -133,6 +219,9 @@ public class GroovyRegistry implements ScriptingRegistry
 
 		ScriptingFactory.register( this );
 
+		/* Index the bytecode persisted before the last restart */
+		getBytecodeCache( StorageBus.getPath( StorageBus.PATH_CACHE ) );
+
 		ExceptionReport.registerException( new ExceptionCallback()
 		{
 			@Override
@@ -200,28 +289,29 @@ public class GroovyRegistry implements ScriptingRegistry
 		 */
 	}
 
-	public GroovyShell getNewShell( ScriptingContext context, Binding binding )
+	/**
+	 * Gets the long-lived class loader shared by every script of the source directory that is compiled with the same base class and encoding.
+	 */
+	static GroovyScriptCache.ScriptClassLoader getClassLoader( ScriptingContext context )
 	{
-		/* Create a compiler configuration */
-		CompilerConfiguration configuration = new CompilerConfiguration();
+		String baseClass = getBaseClass( context );
+		String encoding = context.getCharset().name();
 
-		/* Set imports, timed executor, and implement sandbox */
-		configuration.addCompilationCustomizers( imports, timedInterrupt, secure );
+		return classLoaders.computeIfAbsent( context.getSourceDirectory() + "//" + baseClass + "//" + encoding, key -> {
+			/* Create a compiler configuration */
+			CompilerConfiguration configuration = new CompilerConfiguration();
 
-		/* Set scripting base class */
-		if ( UtilObjects.isEmpty( context.getScriptBaseClass() ) )
-			configuration.setScriptBaseClass( ScriptingBaseHttp.class.getName() );
-		else
-			configuration.setScriptBaseClass( context.getScriptBaseClass() );
+			/* Set imports, timed executor, and implement sandbox */
+			configuration.addCompilationCustomizers( imports, timedInterrupt, secure );
 
-		/* Set default encoding */
-		configuration.setSourceEncoding( context.factory().charset().name() );
+			/* Set scripting base class */
+			configuration.setScriptBaseClass( baseClass );
 
-		/* Set compiled script execute directory */
-		configuration.setTargetDirectory( context.cacheDirectory() );
+			/* Set default encoding */
+			configuration.setSourceEncoding( encoding );
 
-		/* Create and return new GroovyShell instance */
-		return new GroovyShell( ServerLoader.class.getClassLoader(), binding, configuration );
+			return new GroovyScriptCache.ScriptClassLoader( ServerLoader.class.getClassLoader(), configuration );
+		} );
 	}
 
 	@Override
@@ -230,24 +320,64 @@ public class GroovyRegistry implements ScriptingRegistry
 		return new ScriptingEngine[] {new GroovyEngine( this ), new EmbeddedGroovyEngine( this )};
 	}
 
-	public Script makeScript( GroovyShell shell, ScriptingContext context ) throws ScriptingException
+	public Script makeScript( ScriptingContext context, Binding binding ) throws ScriptingException
+	{
+		return makeScript( context.readString(), context, binding );
+	}
+
+	/**
+	 * Compiles the script, unless its class is already cached, and instantiates it.
+	 * The class is cached under the hash of the context source, so a source transformed before compiling, e.g., an embedded page, is found again by {@link #getCachedScript(ScriptingContext, Binding)} without transforming it.
+	 */
+	public Script makeScript( String source, ScriptingContext context, Binding binding ) throws ScriptingException
 	{
-		return makeScript( shell, context.readString(), context );
+		return InvokerHelper.createScript( makeScriptClass( source, context ), binding );
 	}
 
-	public Script makeScript( GroovyShell shell, String source, ScriptingContext context ) throws ScriptingException
+	public Class<? extends Script> makeScriptClass( String source, ScriptingContext context ) throws ScriptingException
 	{
 		// TODO Determine if a package node is prohibited and replace with an alternative, e.g., public, private, etc.
 
 		if ( source.contains( "package " ) )
 			throw new ScriptingException( ReportingLevel.E_ERROR, "Package path is predefined by Groovy Engine, remove `package ` directive from source." );
 
-		if ( !UtilObjects.isEmpty( context.scriptPackage() ) )
+		if ( !UtilObjects.isEmpty( context.getScriptPackage() ) )
 		{
-			source = "package " + context.scriptPackage() + "; " + source;
-			context.baseSource( source );
+			source = "package " + context.getScriptPackage() + "; " + source;
+			context.setBaseSource( source );
 		}
 
-		return shell.parse( source, context.scriptName() );
+		String contentHash = context.md5Hash();
+		String identity = getIdentity( context, contentHash );
+		String baseClass = getBaseClass( context );
+		String scriptName = context.getScriptName() == null ? "Script" + contentHash + ".groovy" : context.getScriptName();
+		String finalSource = source;
+		GroovyScriptCache.ScriptClassLoader classLoader = getClassLoader( context );
+
+		return scriptCache.getOrCompile( identity, contentHash, baseClass, classLoader, () -> {
+			Map<String, byte[]> bytecode = new HashMap<>();
+			Class<? extends Script> compiledClass = classLoader.compile( new GroovyCodeSource( finalSource, scriptName, GroovyShell.DEFAULT_CODE_BASE ), bytecode );
+
+			GroovyBytecodeCache bytecodeCache = context.isVirtual() ? null : getBytecodeCache( context.getCachePath() );
+			if ( bytecodeCache != null )
+				bytecodeCache.store( identity, contentHash, baseClass, context.getCharset().name(), compiledClass.getName(), bytecode );
+
+			return compiledClass;
+		} );
+	}
+
+	@Override
+	public boolean precompile( ScriptingContext context ) throws ScriptingException
+	{
+		String shell = context.getShell() == null ? "" : context.getShell().toLowerCase();
+		boolean embedded = embeddedTypes.contains( shell );
+
+		if ( !embedded && !groovyTypes.contains( shell ) )
+			return false;
+
+		if ( getCachedScriptClass( context ) == null )
+			makeScriptClass( embedded ? new EmbeddedGroovyEngine( this ).getTemplate( context ).getScript() : context.readString(), context );
+
+		return true;
 	}
 }
@@ -72,17 +72,26 @@ import org.codehaus.groovy.classgen.BytecodeExpression;
 import org.codehaus.groovy.classgen.GeneratorContext;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
 import org.codehaus.groovy.syntax.Token;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import io.amelia.extra.UtilityEncrypt;
 import io.amelia.lang.SandboxSecurityException;
 
 /**
@@ -118,6 +127,7 @@ public class GroovySandbox extends CompilationCustomizer
 		}
 		return Collections.unmodifiableList( result );
 	}
+	private static final int MAX_VERIFIED = 1024;
 	private final List<ExpressionChecker> expressionCheckers = new LinkedList<ExpressionChecker>();
 	private final List<StatementChecker> statementCheckers = new LinkedList<StatementChecker>();
 	private List<String> constantTypesBlackList;
@@ -154,6 +164,10 @@ public class GroovySandbox extends CompilationCustomizer
 	private List<Integer> tokensBlacklist;
 	// tokens from Types
 	private List<Integer> tokensWhitelist;
+	/**
+	 * The compiled rules, reset by every setter.
+	 */
+	private volatile Rules rules;
 
 	public GroovySandbox()
 	{
@@ -163,23 +177,25 @@ public class GroovySandbox extends CompilationCustomizer
 	public void addExpressionCheckers( ExpressionChecker... checkers )
 	{
 		expressionCheckers.addAll( Arrays.asList( checkers ) );
+		rules = null;
 	}
 
 	public void addStatementCheckers( StatementChecker... checkers )
 	{
 		statementCheckers.addAll( Arrays.asList( checkers ) );
+		rules = null;
 	}
 
-	private void assertImportIsAllowed( final String className )
+	private void assertImportIsAllowed( final Rules rules, final String className )
 	{
-		if ( importsWhitelist != null && !importsWhitelist.contains( className ) )
+		if ( rules.importsWhitelist != null && !rules.importsWhitelist.contains( className ) )
 		{
-			if ( starImportsWhitelist != null )
+			if ( rules.starImportsWhitelist != null )
 			{
 				// we should now check if the import is in the star imports
 				ClassNode node = ClassHelper.make( className );
 				final String packageName = node.getPackageName();
-				if ( !starImportsWhitelist.contains( packageName + ".*" ) )
+				if ( !rules.starImportsWhitelist.contains( packageName + ".*" ) )
 				{
 					throw new SandboxSecurityException( "Importing [" + className + "] is not allowed" );
 				}
@@ -189,43 +205,43 @@ public class GroovySandbox extends CompilationCustomizer
 				throw new SandboxSecurityException( "Importing [" + className + "] is not allowed" );
 			}
 		}
-		if ( importsBlacklist != null && importsBlacklist.contains( className ) )
+		if ( rules.importsBlacklist != null && rules.importsBlacklist.contains( className ) )
 		{
 			throw new SandboxSecurityException( "Importing [" + className + "] is not allowed" );
 		}
 		// check that there's no star import blacklist
-		if ( starImportsBlacklist != null )
+		if ( rules.starImportsBlacklist != null )
 		{
 			ClassNode node = ClassHelper.make( className );
 			final String packageName = node.getPackageName();
-			if ( starImportsBlacklist.contains( packageName + ".*" ) )
+			if ( rules.starImportsBlacklist.contains( packageName + ".*" ) )
 			{
 				throw new SandboxSecurityException( "Importing [" + className + "] is not allowed" );
 			}
 		}
 	}
 
-	private void assertStarImportIsAllowed( final String packageName )
+	private void assertStarImportIsAllowed( final Rules rules, final String packageName )
 	{
-		if ( starImportsWhitelist != null && !starImportsWhitelist.contains( packageName ) )
+		if ( rules.starImportsWhitelist != null && !rules.starImportsWhitelist.contains( packageName ) )
 		{
 			throw new SandboxSecurityException( "Importing [" + packageName + "] is not allowed" );
 		}
-		if ( starImportsBlacklist != null && starImportsBlacklist.contains( packageName ) )
+		if ( rules.starImportsBlacklist != null && rules.starImportsBlacklist.contains( packageName ) )
 		{
 			throw new SandboxSecurityException( "Importing [" + packageName + "] is not allowed" );
 		}
 	}
 
-	private void assertStaticImportIsAllowed( final String member, final String className )
+	private void assertStaticImportIsAllowed( final Rules rules, final String member, final String className )
 	{
 		final String fqn = member.equals( className ) ? member : className + "." + member;
-		if ( staticImportsWhitelist != null && !staticImportsWhitelist.contains( fqn ) )
+		if ( rules.staticImportsWhitelist != null && !rules.staticImportsWhitelist.contains( fqn ) )
 		{
-			if ( staticStarImportsWhitelist != null )
+			if ( rules.staticStarImportsWhitelist != null )
 			{
 				// we should now check if the import is in the star imports
-				if ( !staticStarImportsWhitelist.contains( className + ".*" ) )
+				if ( !rules.staticStarImportsWhitelist.contains( className + ".*" ) )
 				{
 					throw new SandboxSecurityException( "Importing [" + fqn + "] is not allowed" );
 				}
@@ -235,14 +251,14 @@ public class GroovySandbox extends CompilationCustomizer
 				throw new SandboxSecurityException( "Importing [" + fqn + "] is not allowed" );
 			}
 		}
-		if ( staticImportsBlacklist != null && staticImportsBlacklist.contains( fqn ) )
+		if ( rules.staticImportsBlacklist != null && rules.staticImportsBlacklist.contains( fqn ) )
 		{
 			throw new SandboxSecurityException( "Importing [" + fqn + "] is not allowed" );
 		}
 		// check that there's no star import blacklist
-		if ( staticStarImportsBlacklist != null )
+		if ( rules.staticStarImportsBlacklist != null )
 		{
-			if ( staticStarImportsBlacklist.contains( className + ".*" ) )
+			if ( rules.staticStarImportsBlacklist.contains( className + ".*" ) )
 			{
 				throw new SandboxSecurityException( "Importing [" + fqn + "] is not allowed" );
 			}
@@ -252,50 +268,180 @@ public class GroovySandbox extends CompilationCustomizer
 	@Override
 	public void call( final SourceUnit source, final GeneratorContext context, final ClassNode classNode ) throws CompilationFailedException
 	{
+		final Rules rules = getRules();
 		final ModuleNode ast = source.getAST();
+
+		// The first call verifies the whole module, which covers every other class it declares.
+		if ( ast.getNodeMetaData( Rules.class ) == rules )
+			return;
+
+		final String sourceHash = isSourceDeterministic( source.getConfiguration() ) ? hashSource( source, ast ) : null;
+		if ( sourceHash == null || !rules.isVerified( sourceHash ) )
+		{
+			verifyModule( rules, ast );
+			if ( sourceHash != null )
+				rules.setVerified( sourceHash );
+		}
+
+		ast.putNodeMetaData( Rules.class, rules );
+	}
+
+	private void checkMethodDefinitionAllowed( ClassNode owner )
+	{
+		if ( isMethodDefinitionAllowed )
+			return;
+		List<MethodNode> methods = filterMethods( owner );
+		if ( !methods.isEmpty() )
+			throw new SandboxSecurityException( "Method definitions are not allowed" );
+	}
+
+	private List<MethodNode> filterMethods( ClassNode owner )
+	{
+		List<MethodNode> result = new LinkedList<MethodNode>();
+		List<MethodNode> methods = owner.getMethods();
+		for ( MethodNode method : methods )
+		{
+			if ( method.getDeclaringClass() == owner && !method.isSynthetic() )
+			{
+				if ( "main".equals( method.getName() ) || "run".equals( method.getName() ) && owner.isScriptBody() )
+					continue;
+				result.add( method );
+			}
+		}
+		return result;
+	}
+
+	private Rules getRules()
+	{
+		Rules rules = this.rules;
+		if ( rules == null )
+			this.rules = rules = new Rules();
+		return rules;
+	}
+
+	/**
+	 * Hashes the source text along with the imports, classes and method signatures of the module, which may also have been added by other
+	 * customizers. Statements aren't hashed, as walking them costs about as much as verifying them, so the cache assumes the code added to the
+	 * module before this sandbox runs follows from the source alone, see {@link #isSourceDeterministic(CompilerConfiguration)}.
+	 *
+	 * @return The MD5 of the source, null if it could not be read
+	 */
+	private static String hashSource( SourceUnit source, ModuleNode ast )
+	{
+		StringBuilder builder = new StringBuilder();
+		try ( Reader reader = source.getSource().getReader() )
+		{
+			char[] buffer = new char[4096];
+			int len;
+			while ( ( len = reader.read( buffer ) ) != -1 )
+				builder.append( buffer, 0, len );
+		}
+		catch ( IOException | UnsupportedOperationException e )
+		{
+			return null;
+		}
+
+		builder.append( '\0' );
+		for ( ImportNode importNode : ast.getImports() )
+			builder.append( importNode.getClassName() ).append( ';' );
+		for ( ImportNode importNode : ast.getStarImports() )
+			builder.append( importNode.getPackageName() ).append( ';' );
+		for ( Map.Entry<String, ImportNode> entry : ast.getStaticImports().entrySet() )
+			builder.append( entry.getValue().getClassName() ).append( '.' ).append( entry.getKey() ).append( ';' );
+		for ( Map.Entry<String, ImportNode> entry : ast.getStaticStarImports().entrySet() )
+			builder.append( entry.getValue().getClassName() ).append( ".*;" );
+
+		builder.append( '\0' );
+		for ( ClassNode classNode : ast.getClasses() )
+		{
+			builder.append( classNode.getName() ).append( '{' );
+			for ( MethodNode methodNode : classNode.getMethods() )
+				builder.append( methodNode.getName() ).append( methodNode.getTypeDescriptor() ).append( ';' );
+			builder.append( '}' );
+		}
+
+		builder.append( '\0' );
+		for ( CompilationCustomizer customizer : source.getConfiguration().getCompilationCustomizers() )
+			builder.append( customizer.getClass().getName() ).append( ';' );
+
+		return UtilityEncrypt.md5Hex( builder.toString() );
+	}
+
+	/**
+	 * Checks that every customizer running before this sandbox only adds imports or applies an AST transformation, whose code follows from
+	 * the source and the configuration. Otherwise the verified sources aren't cached, as an earlier customizer might add different code to
+	 * the same source that this sandbox would never see.
+	 */
+	private boolean isSourceDeterministic( CompilerConfiguration configuration )
+	{
+		for ( CompilationCustomizer customizer : configuration.getCompilationCustomizers() )
+		{
+			if ( customizer == this )
+				return true;
+			if ( customizer.getPhase().getPhaseNumber() > getPhase().getPhaseNumber() )
+				continue;
+			if ( !( customizer instanceof GroovyImportCustomizer || customizer instanceof ImportCustomizer || customizer instanceof ASTTransformationCustomizer ) )
+				return false;
+		}
+		// Not registered with this configuration, so the customizers that ran before are unknown
+		return false;
+	}
+
+	private static <T> Set<T> toSet( List<T> list )
+	{
+		return list == null ? null : new HashSet<>( list );
+	}
+
+	private void verifyModule( final Rules rules, final ModuleNode ast )
+	{
 		if ( !isPackageAllowed && ast.getPackage() != null )
 		{
 			throw new SandboxSecurityException( "Package definitions are not allowed" );
 		}
-		checkMethodDefinitionAllowed( classNode );
 
 		// verify imports
-		if ( importsBlacklist != null || importsWhitelist != null || starImportsBlacklist != null || starImportsWhitelist != null )
+		if ( rules.importsBlacklist != null || rules.importsWhitelist != null || rules.starImportsBlacklist != null || rules.starImportsWhitelist != null )
 		{
 			for ( ImportNode importNode : ast.getImports() )
 			{
 				final String className = importNode.getClassName();
-				assertImportIsAllowed( className );
+				assertImportIsAllowed( rules, className );
 			}
 			for ( ImportNode importNode : ast.getStarImports() )
 			{
 				final String className = importNode.getPackageName();
-				assertStarImportIsAllowed( className + "*" );
+				assertStarImportIsAllowed( rules, className + "*" );
 			}
 		}
 
 		// verify static imports
-		if ( staticImportsBlacklist != null || staticImportsWhitelist != null || staticStarImportsBlacklist != null || staticStarImportsWhitelist != null )
+		if ( rules.staticImportsBlacklist != null || rules.staticImportsWhitelist != null || rules.staticStarImportsBlacklist != null || rules.staticStarImportsWhitelist != null )
 		{
 			for ( Map.Entry<String, ImportNode> entry : ast.getStaticImports().entrySet() )
 			{
 				final String className = entry.getValue().getClassName();
-				assertStaticImportIsAllowed( entry.getKey(), className );
+				assertStaticImportIsAllowed( rules, entry.getKey(), className );
 			}
 			for ( Map.Entry<String, ImportNode> entry : ast.getStaticStarImports().entrySet() )
 			{
 				final String className = entry.getValue().getClassName();
-				assertStaticImportIsAllowed( entry.getKey(), className );
+				assertStaticImportIsAllowed( rules, entry.getKey(), className );
 			}
 		}
 
-		final SecuringCodeVisitor visitor = new SecuringCodeVisitor();
+		final SecuringCodeVisitor visitor = new SecuringCodeVisitor( rules );
 		ast.getStatementBlock().visit( visitor );
 		for ( ClassNode clNode : ast.getClasses() )
 		{
-			if ( clNode != classNode )
+			checkMethodDefinitionAllowed( clNode );
+			if ( clNode.isScriptBody() )
 			{
-				checkMethodDefinitionAllowed( clNode );
+				// The generated main and run methods only wrap the statement block, which was visited above
+				if ( isMethodDefinitionAllowed )
+					for ( MethodNode method : filterMethods( clNode ) )
+						method.getCode().visit( visitor );
+			}
+			else
 				for ( MethodNode methodNode : clNode.getMethods() )
 				{
 					if ( !methodNode.isSynthetic() )
@@ -303,43 +449,32 @@ public class GroovySandbox extends CompilationCustomizer
 						methodNode.getCode().visit( visitor );
 					}
 				}
-			}
-		}
-
-		List<MethodNode> methods = filterMethods( classNode );
-		if ( isMethodDefinitionAllowed )
-		{
-			for ( MethodNode method : methods )
-			{
-				if ( method.getDeclaringClass() == classNode )
-					method.getCode().visit( visitor );
-			}
 		}
 	}
 
-	private void checkMethodDefinitionAllowed( ClassNode owner )
+
+	/**
+	 * Describes every rule of this sandbox, so bytecode compiled under different rules is never reused.
+	 * Checkers are described by class name, as their state is unknown.
+	 *
+	 * @return The MD5 of the sandbox rules
+	 */
+	public String getConfigurationHash()
 	{
-		if ( isMethodDefinitionAllowed )
-			return;
-		List<MethodNode> methods = filterMethods( owner );
-		if ( !methods.isEmpty() )
-			throw new SandboxSecurityException( "Method definitions are not allowed" );
+		StringBuilder builder = new StringBuilder();
+		for ( Object rule : new Object[] {constantTypesBlackList, constantTypesWhiteList, classNames( expressionsBlacklist ), classNames( expressionsWhitelist ), importsBlacklist, importsWhitelist, receiversBlackList, receiversWhiteList, starImportsBlacklist, starImportsWhitelist, classNames( statementsBlacklist ), classNames( statementsWhitelist ), staticImportsBlacklist, staticImportsWhitelist, staticStarImportsBlacklist, staticStarImportsWhitelist, tokensBlacklist, tokensWhitelist, classNames( expressionCheckers ), classNames( statementCheckers ), isClosuresAllowed, isIndirectImportCheckEnabled, isMethodDefinitionAllowed, isPackageAllowed} )
+			builder.append( rule ).append( ';' );
+		return UtilityEncrypt.md5Hex( builder.toString() );
 	}
 
-	private List<MethodNode> filterMethods( ClassNode owner )
+	private static List<String> classNames( List<?> list )
 	{
-		List<MethodNode> result = new LinkedList<MethodNode>();
-		List<MethodNode> methods = owner.getMethods();
-		for ( MethodNode method : methods )
-		{
-			if ( method.getDeclaringClass() == owner && !method.isSynthetic() )
-			{
-				if ( "main".equals( method.getName() ) || "run".equals( method.getName() ) && owner.isScriptBody() )
-					continue;
-				result.add( method );
-			}
-		}
-		return result;
+		if ( list == null )
+			return null;
+		List<String> names = new ArrayList<>();
+		for ( Object obj : list )
+			names.add( obj instanceof Class ? ( ( Class ) obj ).getName() : obj.getClass().getName() );
+		return names;
 	}
 
 	public List<String> getConstantTypesBlackList()
@@ -354,6 +489,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.constantTypesBlackList = constantTypesBlackList;
+		rules = null;
 	}
 
 	public List<String> getConstantTypesWhiteList()
@@ -368,6 +504,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.constantTypesWhiteList = constantTypesWhiteList;
+		rules = null;
 	}
 
 	public List<Class<? extends Expression>> getExpressionsBlacklist()
@@ -382,6 +519,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.expressionsBlacklist = expressionsBlacklist;
+		rules = null;
 	}
 
 	public List<Class<? extends Expression>> getExpressionsWhitelist()
@@ -396,6 +534,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.expressionsWhitelist = expressionsWhitelist;
+		rules = null;
 	}
 
 	public List<String> getImportsBlacklist()
@@ -410,6 +549,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.importsBlacklist = importsBlacklist;
+		rules = null;
 	}
 
 	public List<String> getImportsWhitelist()
@@ -424,6 +564,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.importsWhitelist = importsWhitelist;
+		rules = null;
 	}
 
 	public List<String> getReceiversBlackList()
@@ -451,6 +592,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.receiversBlackList = receiversBlackList;
+		rules = null;
 	}
 
 	public List<String> getReceiversWhiteList()
@@ -470,6 +612,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.receiversWhiteList = receiversWhiteList;
+		rules = null;
 	}
 
 	public List<String> getStarImportsBlacklist()
@@ -486,6 +629,7 @@ public class GroovySandbox extends CompilationCustomizer
 		this.starImportsBlacklist = normalizeStarImports( starImportsBlacklist );
 		if ( this.importsBlacklist == null )
 			importsBlacklist = Collections.emptyList();
+		rules = null;
 	}
 
 	public List<String> getStarImportsWhitelist()
@@ -502,6 +646,7 @@ public class GroovySandbox extends CompilationCustomizer
 		this.starImportsWhitelist = normalizeStarImports( starImportsWhitelist );
 		if ( this.importsWhitelist == null )
 			importsWhitelist = Collections.emptyList();
+		rules = null;
 	}
 
 	public List<Class<? extends Statement>> getStatementsBlacklist()
@@ -516,6 +661,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.statementsBlacklist = statementsBlacklist;
+		rules = null;
 	}
 
 	public List<Class<? extends Statement>> getStatementsWhitelist()
@@ -530,6 +676,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.statementsWhitelist = statementsWhitelist;
+		rules = null;
 	}
 
 	public List<String> getStaticImportsBlacklist()
@@ -544,6 +691,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.staticImportsBlacklist = staticImportsBlacklist;
+		rules = null;
 	}
 
 	public List<String> getStaticImportsWhitelist()
@@ -558,6 +706,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.staticImportsWhitelist = staticImportsWhitelist;
+		rules = null;
 	}
 
 	public List<String> getStaticStarImportsBlacklist()
@@ -574,6 +723,7 @@ public class GroovySandbox extends CompilationCustomizer
 		this.staticStarImportsBlacklist = normalizeStarImports( staticStarImportsBlacklist );
 		if ( this.staticImportsBlacklist == null )
 			this.staticImportsBlacklist = Collections.emptyList();
+		rules = null;
 	}
 
 	public List<String> getStaticStarImportsWhitelist()
@@ -590,6 +740,7 @@ public class GroovySandbox extends CompilationCustomizer
 		this.staticStarImportsWhitelist = normalizeStarImports( staticStarImportsWhitelist );
 		if ( this.staticImportsWhitelist == null )
 			this.staticImportsWhitelist = Collections.emptyList();
+		rules = null;
 	}
 
 	public List<Integer> getTokensBlacklist()
@@ -609,6 +760,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.tokensBlacklist = tokensBlacklist;
+		rules = null;
 	}
 
 	public List<Integer> getTokensWhitelist()
@@ -628,6 +780,7 @@ public class GroovySandbox extends CompilationCustomizer
 			throw new IllegalArgumentException( "You are not allowed to set both whitelist and blacklist" );
 		}
 		this.tokensWhitelist = tokensWhitelist;
+		rules = null;
 	}
 
 	public boolean isClosuresAllowed()
@@ -638,6 +791,7 @@ public class GroovySandbox extends CompilationCustomizer
 	public void setClosuresAllowed( final boolean closuresAllowed )
 	{
 		isClosuresAllowed = closuresAllowed;
+		rules = null;
 	}
 
 	public boolean isIndirectImportCheckEnabled()
@@ -655,6 +809,7 @@ public class GroovySandbox extends CompilationCustomizer
 	public void setIndirectImportCheckEnabled( final boolean indirectImportCheckEnabled )
 	{
 		isIndirectImportCheckEnabled = indirectImportCheckEnabled;
+		rules = null;
 	}
 
 	public boolean isMethodDefinitionAllowed()
@@ -665,6 +820,7 @@ public class GroovySandbox extends CompilationCustomizer
 	public void setMethodDefinitionAllowed( final boolean methodDefinitionAllowed )
 	{
 		isMethodDefinitionAllowed = methodDefinitionAllowed;
+		rules = null;
 	}
 
 	public boolean isPackageAllowed()
@@ -675,6 +831,7 @@ public class GroovySandbox extends CompilationCustomizer
 	public void setPackageAllowed( final boolean packageAllowed )
 	{
 		isPackageAllowed = packageAllowed;
+		rules = null;
 	}
 
 	/**
@@ -755,12 +912,65 @@ public class GroovySandbox extends CompilationCustomizer
 		boolean isAuthorized( Statement expression );
 	}
 
+	/**
+	 * The rules compiled into hashed sets, built on first use and rebuilt only after a rule changes.
+	 * Also remembers the sources already verified under these rules, so recompiling an unchanged script skips the AST walk.
+	 */
+	private final class Rules
+	{
+		final Set<String> constantTypesBlackList = toSet( GroovySandbox.this.constantTypesBlackList );
+		final Set<String> constantTypesWhiteList = toSet( GroovySandbox.this.constantTypesWhiteList );
+		final ExpressionChecker[] expressionCheckers = GroovySandbox.this.expressionCheckers.toArray( new ExpressionChecker[0] );
+		final Set<Class<? extends Expression>> expressionsBlacklist = toSet( GroovySandbox.this.expressionsBlacklist );
+		final Set<Class<? extends Expression>> expressionsWhitelist = toSet( GroovySandbox.this.expressionsWhitelist );
+		final Set<String> importsBlacklist = toSet( GroovySandbox.this.importsBlacklist );
+		final Set<String> importsWhitelist = toSet( GroovySandbox.this.importsWhitelist );
+		final Set<String> receiversBlackList = toSet( GroovySandbox.this.receiversBlackList );
+		final Set<String> receiversWhiteList = toSet( GroovySandbox.this.receiversWhiteList );
+		final Set<String> starImportsBlacklist = toSet( GroovySandbox.this.starImportsBlacklist );
+		final Set<String> starImportsWhitelist = toSet( GroovySandbox.this.starImportsWhitelist );
+		final StatementChecker[] statementCheckers = GroovySandbox.this.statementCheckers.toArray( new StatementChecker[0] );
+		final Set<Class<? extends Statement>> statementsBlacklist = toSet( GroovySandbox.this.statementsBlacklist );
+		final Set<Class<? extends Statement>> statementsWhitelist = toSet( GroovySandbox.this.statementsWhitelist );
+		final Set<String> staticImportsBlacklist = toSet( GroovySandbox.this.staticImportsBlacklist );
+		final Set<String> staticImportsWhitelist = toSet( GroovySandbox.this.staticImportsWhitelist );
+		final Set<String> staticStarImportsBlacklist = toSet( GroovySandbox.this.staticStarImportsBlacklist );
+		final Set<String> staticStarImportsWhitelist = toSet( GroovySandbox.this.staticStarImportsWhitelist );
+		final Set<Integer> tokensBlacklist = toSet( GroovySandbox.this.tokensBlacklist );
+		final Set<Integer> tokensWhitelist = toSet( GroovySandbox.this.tokensWhitelist );
+		private final Map<String, Boolean> verified = new LinkedHashMap<String, Boolean>( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, Boolean> eldest )
+			{
+				return size() > MAX_VERIFIED;
+			}
+		};
+
+		synchronized boolean isVerified( String sourceHash )
+		{
+			return verified.containsKey( sourceHash );
+		}
+
+		synchronized void setVerified( String sourceHash )
+		{
+			verified.put( sourceHash, Boolean.TRUE );
+		}
+	}
+
 	/**
 	 * This visitor directly implements the {@link GroovyCodeVisitor} interface instead of using the CodeVisitorSupport class to make sure that future features of the language gets managed by this visitor. Thus,
 	 * adding a new feature would result in a compilation error if this visitor is not updated.
 	 */
 	private class SecuringCodeVisitor implements GroovyCodeVisitor
 	{
+		private final Rules rules;
+
+		SecuringCodeVisitor( Rules rules )
+		{
+			this.rules = rules;
+		}
+
 
 		/**
 		 * Checks that a given expression is either in the whitelist or not in the blacklist.
@@ -772,15 +982,15 @@ public class GroovySandbox extends CompilationCustomizer
 		private void assertExpressionAuthorized( final Expression expression ) throws SandboxSecurityException
 		{
 			final Class<? extends Expression> clazz = expression.getClass();
-			if ( expressionsBlacklist != null && expressionsBlacklist.contains( clazz ) )
+			if ( rules.expressionsBlacklist != null && rules.expressionsBlacklist.contains( clazz ) )
 			{
 				throw new SandboxSecurityException( clazz.getSimpleName() + "s are not allowed: " + expression.getText() );
 			}
-			else if ( expressionsWhitelist != null && !expressionsWhitelist.contains( clazz ) )
+			else if ( rules.expressionsWhitelist != null && !rules.expressionsWhitelist.contains( clazz ) )
 			{
 				throw new SandboxSecurityException( clazz.getSimpleName() + "s are not allowed: " + expression.getText() );
 			}
-			for ( ExpressionChecker expressionChecker : expressionCheckers )
+			for ( ExpressionChecker expressionChecker : rules.expressionCheckers )
 			{
 				if ( !expressionChecker.isAuthorized( expression ) )
 				{
@@ -793,28 +1003,28 @@ public class GroovySandbox extends CompilationCustomizer
 				{
 					if ( expression instanceof ConstructorCallExpression )
 					{
-						assertImportIsAllowed( expression.getType().getName() );
+						assertImportIsAllowed( rules, expression.getType().getName() );
 					}
 					else if ( expression instanceof MethodCallExpression )
 					{
 						MethodCallExpression expr = ( MethodCallExpression ) expression;
 						final String typename = expr.getObjectExpression().getType().getName();
-						assertImportIsAllowed( typename );
-						assertStaticImportIsAllowed( expr.getMethodAsString(), typename );
+						assertImportIsAllowed( rules, typename );
+						assertStaticImportIsAllowed( rules, expr.getMethodAsString(), typename );
 					}
 					else if ( expression instanceof StaticMethodCallExpression )
 					{
 						StaticMethodCallExpression expr = ( StaticMethodCallExpression ) expression;
 						final String typename = expr.getOwnerType().getName();
-						assertImportIsAllowed( typename );
-						assertStaticImportIsAllowed( expr.getMethod(), typename );
+						assertImportIsAllowed( rules, typename );
+						assertStaticImportIsAllowed( rules, expr.getMethod(), typename );
 					}
 					else if ( expression instanceof MethodPointerExpression )
 					{
 						MethodPointerExpression expr = ( MethodPointerExpression ) expression;
 						final String typename = expr.getType().getName();
-						assertImportIsAllowed( typename );
-						assertStaticImportIsAllowed( expr.getText(), typename );
+						assertImportIsAllowed( rules, typename );
+						assertStaticImportIsAllowed( rules, expr.getText(), typename );
 					}
 				}
 				catch ( SandboxSecurityException e )
@@ -834,15 +1044,15 @@ public class GroovySandbox extends CompilationCustomizer
 		private void assertStatementAuthorized( final Statement statement ) throws SandboxSecurityException
 		{
 			final Class<? extends Statement> clazz = statement.getClass();
-			if ( statementsBlacklist != null && statementsBlacklist.contains( clazz ) )
+			if ( rules.statementsBlacklist != null && rules.statementsBlacklist.contains( clazz ) )
 			{
 				throw new SandboxSecurityException( clazz.getSimpleName() + "s are not allowed" );
 			}
-			else if ( statementsWhitelist != null && !statementsWhitelist.contains( clazz ) )
+			else if ( rules.statementsWhitelist != null && !rules.statementsWhitelist.contains( clazz ) )
 			{
 				throw new SandboxSecurityException( clazz.getSimpleName() + "s are not allowed" );
 			}
-			for ( StatementChecker statementChecker : statementCheckers )
+			for ( StatementChecker statementChecker : rules.statementCheckers )
 			{
 				if ( !statementChecker.isAuthorized( statement ) )
 				{
@@ -861,11 +1071,11 @@ public class GroovySandbox extends CompilationCustomizer
 		private void assertTokenAuthorized( final Token token ) throws SandboxSecurityException
 		{
 			final int value = token.getType();
-			if ( tokensBlacklist != null && tokensBlacklist.contains( value ) )
+			if ( rules.tokensBlacklist != null && rules.tokensBlacklist.contains( value ) )
 			{
 				throw new SandboxSecurityException( "Token " + token + " is not allowed" );
 			}
-			else if ( tokensWhitelist != null && !tokensWhitelist.contains( value ) )
+			else if ( rules.tokensWhitelist != null && !rules.tokensWhitelist.contains( value ) )
 			{
 				throw new SandboxSecurityException( "Token " + token + " is not allowed" );
 			}
@@ -915,11 +1125,11 @@ public class GroovySandbox extends CompilationCustomizer
 			assertExpressionAuthorized( expression );
 			Expression receiver = expression.getObjectExpression();
 			final String typeName = receiver.getType().getName();
-			if ( receiversWhiteList != null && !receiversWhiteList.contains( typeName ) )
+			if ( rules.receiversWhiteList != null && !rules.receiversWhiteList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Attribute access not allowed on [" + typeName + "]" );
 			}
-			else if ( receiversBlackList != null && receiversBlackList.contains( typeName ) )
+			else if ( rules.receiversBlackList != null && rules.receiversBlackList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Attribute access not allowed on [" + typeName + "]" );
 			}
@@ -1024,11 +1234,11 @@ public class GroovySandbox extends CompilationCustomizer
 		{
 			assertExpressionAuthorized( expression );
 			final String type = expression.getType().getName();
-			if ( constantTypesWhiteList != null && !constantTypesWhiteList.contains( type ) )
+			if ( rules.constantTypesWhiteList != null && !rules.constantTypesWhiteList.contains( type ) )
 			{
 				throw new SandboxSecurityException( "Constant expression type [" + type + "] is not allowed" );
 			}
-			if ( constantTypesBlackList != null && constantTypesBlackList.contains( type ) )
+			if ( rules.constantTypesBlackList != null && rules.constantTypesBlackList.contains( type ) )
 			{
 				throw new SandboxSecurityException( "Constant expression type [" + type + "] is not allowed" );
 			}
@@ -1164,11 +1374,11 @@ public class GroovySandbox extends CompilationCustomizer
 				assertExpressionAuthorized( call );
 				Expression receiver = call.getObjectExpression();
 				final String typeName = receiver.getType().getName();
-				if ( receiversWhiteList != null && !receiversWhiteList.contains( typeName ) )
+				if ( rules.receiversWhiteList != null && !rules.receiversWhiteList.contains( typeName ) )
 				{
 					throw new SandboxSecurityException( "Method calls not allowed on [" + typeName + "]" );
 				}
-				else if ( receiversBlackList != null && receiversBlackList.contains( typeName ) )
+				else if ( rules.receiversBlackList != null && rules.receiversBlackList.contains( typeName ) )
 				{
 					throw new SandboxSecurityException( "Method calls not allowed on [" + typeName + "]" );
 				}
@@ -1226,11 +1436,11 @@ public class GroovySandbox extends CompilationCustomizer
 			assertExpressionAuthorized( expression );
 			Expression receiver = expression.getObjectExpression();
 			final String typeName = receiver.getType().getName();
-			if ( receiversWhiteList != null && !receiversWhiteList.contains( typeName ) )
+			if ( rules.receiversWhiteList != null && !rules.receiversWhiteList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Property access not allowed on [" + typeName + "]" );
 			}
-			else if ( receiversBlackList != null && receiversBlackList.contains( typeName ) )
+			else if ( rules.receiversBlackList != null && rules.receiversBlackList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Property access not allowed on [" + typeName + "]" );
 			}
@@ -1280,11 +1490,11 @@ public class GroovySandbox extends CompilationCustomizer
 		{
 			assertExpressionAuthorized( call );
 			final String typeName = call.getOwnerType().getName();
-			if ( receiversWhiteList != null && !receiversWhiteList.contains( typeName ) )
+			if ( rules.receiversWhiteList != null && !rules.receiversWhiteList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Method calls not allowed on [" + typeName + "]" );
 			}
-			else if ( receiversBlackList != null && receiversBlackList.contains( typeName ) )
+			else if ( rules.receiversBlackList != null && rules.receiversBlackList.contains( typeName ) )
 			{
 				throw new SandboxSecurityException( "Method calls not allowed on [" + typeName + "]" );
 			}
@@ -1375,11 +1585,11 @@ public class GroovySandbox extends CompilationCustomizer
 		{
 			assertExpressionAuthorized( expression );
 			final String type = expression.getType().getName();
-			if ( constantTypesWhiteList != null && !constantTypesWhiteList.contains( type ) )
+			if ( rules.constantTypesWhiteList != null && !rules.constantTypesWhiteList.contains( type ) )
 			{
 				throw new SandboxSecurityException( "Usage of variables of type [" + type + "] is not allowed" );
 			}
-			if ( constantTypesBlackList != null && constantTypesBlackList.contains( type ) )
+			if ( rules.constantTypesBlackList != null && rules.constantTypesBlackList.contains( type ) )
 			{
 				throw new SandboxSecurityException( "Usage of variables of type [" + type + "] is not allowed" );
 			}
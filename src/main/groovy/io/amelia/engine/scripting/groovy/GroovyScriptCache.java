@@ -0,0 +1,217 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.groovy;
+
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.SourceUnit;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.Script;
+
+/**
+ * Keeps compiled Groovy script classes in memory, so a warm script is only instantiated and run.
+ * <p>
+ * Entries are keyed by script identity, the source directory and script class name, and are only returned while the content hash and script
+ * base class still match, a changed script simply replaces its entry. Lookups never lock. Once more than the configured number of scripts
+ * are cached, the least recently used one is evicted and its class dropped from the {@link GroovyClassLoader} that defined it.
+ */
+final class GroovyScriptCache
+{
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final int maxSize;
+	private final LongAdder misses = new LongAdder();
+
+	GroovyScriptCache( int maxSize )
+	{
+		this.maxSize = Math.max( 1, maxSize );
+	}
+
+	void clear()
+	{
+		entries.values().forEach( Entry::unload );
+		entries.clear();
+	}
+
+	private void evict()
+	{
+		while ( entries.size() > maxSize )
+		{
+			Map.Entry<String, Entry> eldest = null;
+			for ( Map.Entry<String, Entry> entry : entries.entrySet() )
+				if ( eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed )
+					eldest = entry;
+
+			if ( eldest == null || !entries.remove( eldest.getKey(), eldest.getValue() ) )
+				continue;
+
+			eldest.getValue().unload();
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Gets the cached script class.
+	 *
+	 * @param identity    The source directory and script class name
+	 * @param contentHash The hash of the script source
+	 * @param baseClass   The script base class the source must have been compiled with
+	 *
+	 * @return The script class, null if not cached or compiled from a different source or base class
+	 */
+	@Nullable
+	Class<? extends Script> get( @Nonnull String identity, @Nonnull String contentHash, @Nonnull String baseClass )
+	{
+		Entry entry = entries.get( identity );
+		if ( entry == null || !entry.contentHash.equals( contentHash ) || !entry.baseClass.equals( baseClass ) )
+		{
+			misses.increment();
+			return null;
+		}
+
+		entry.lastUsed = System.nanoTime();
+		hits.increment();
+		return entry.scriptClass;
+	}
+
+	/**
+	 * Gets the cached script class or compiles and caches it.
+	 */
+	Class<? extends Script> getOrCompile( @Nonnull String identity, @Nonnull String contentHash, @Nonnull String baseClass, @Nonnull ScriptClassLoader classLoader, @Nonnull Supplier<Class<? extends Script>> compiler )
+	{
+		Class<? extends Script> scriptClass = get( identity, contentHash, baseClass );
+		if ( scriptClass == null )
+		{
+			scriptClass = compiler.get();
+			put( identity, contentHash, baseClass, classLoader, scriptClass );
+		}
+		return scriptClass;
+	}
+
+	long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+
+	long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	void put( @Nonnull String identity, @Nonnull String contentHash, @Nonnull String baseClass, @Nonnull ScriptClassLoader classLoader, @Nonnull Class<? extends Script> scriptClass )
+	{
+		Entry previous = entries.put( identity, new Entry( contentHash, baseClass, classLoader, scriptClass ) );
+		if ( previous != null && previous.scriptClass != scriptClass )
+			previous.unload();
+		evict();
+	}
+
+	int size()
+	{
+		return entries.size();
+	}
+
+	private static final class Entry
+	{
+		final String baseClass;
+		final ScriptClassLoader classLoader;
+		final String contentHash;
+		final Class<? extends Script> scriptClass;
+		volatile long lastUsed = System.nanoTime();
+
+		Entry( String contentHash, String baseClass, ScriptClassLoader classLoader, Class<? extends Script> scriptClass )
+		{
+			this.contentHash = contentHash;
+			this.baseClass = baseClass;
+			this.classLoader = classLoader;
+			this.scriptClass = scriptClass;
+		}
+
+		void unload()
+		{
+			classLoader.unload( scriptClass );
+		}
+	}
+
+	/**
+	 * The long-lived loader scripts sharing a source directory and base class are compiled with.
+	 */
+	static final class ScriptClassLoader extends GroovyClassLoader
+	{
+		private final ThreadLocal<Map<String, byte[]>> bytecode = new ThreadLocal<>();
+
+		ScriptClassLoader( ClassLoader parent, CompilerConfiguration configuration )
+		{
+			super( parent, configuration );
+		}
+
+		/**
+		 * Compiles the script and collects the bytecode of every class it generated, e.g., closures.
+		 *
+		 * @param codeSource The script source
+		 * @param bytecode   Receives the class bytes by class name
+		 */
+		@SuppressWarnings( "unchecked" )
+		Class<? extends Script> compile( @Nonnull GroovyCodeSource codeSource, @Nonnull Map<String, byte[]> bytecode )
+		{
+			this.bytecode.set( bytecode );
+			try
+			{
+				return ( Class<? extends Script> ) parseClass( codeSource, false );
+			}
+			finally
+			{
+				this.bytecode.remove();
+			}
+		}
+
+		@Override
+		protected ClassCollector createCollector( CompilationUnit unit, SourceUnit su )
+		{
+			return new ClassCollector( new InnerLoader( this ), unit, su )
+			{
+				@Override
+				protected Class createClass( byte[] code, ClassNode classNode )
+				{
+					Map<String, byte[]> collected = bytecode.get();
+					if ( collected != null )
+						collected.put( classNode.getName(), code );
+					return super.createClass( code, classNode );
+				}
+			};
+		}
+
+		void unload( Class<?> scriptClass )
+		{
+			// Only forget the class if the loader hasn't since defined a newer one under the same name
+			String name = scriptClass.getName();
+			if ( Objects.equals( getClassCacheEntry( name ), scriptClass ) )
+				removeClassCacheEntry( name );
+		}
+	}
+}
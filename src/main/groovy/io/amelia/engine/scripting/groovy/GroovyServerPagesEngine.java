@@ -17,7 +17,6 @@ import java.util.Arrays;
 import java.util.List;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import groovy.lang.Script;
 import io.amelia.data.TypeBase;
 import io.amelia.foundation.ConfigRegistry;
@@ -198,8 +197,7 @@ public class GroovyServerPagesEngine implements ScriptingEngine
 
 				context.setBaseSource( output.toString() );
 
-				GroovyShell shell = registry.getNewShell( context, binding );
-				script = registry.makeScript( shell, output.toString(), context );
+				script = registry.makeScript( output.toString(), context, binding );
 			}
 
 			context.getResult().setScript( script );
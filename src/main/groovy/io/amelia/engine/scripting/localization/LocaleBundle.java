@@ -0,0 +1,249 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.localization;
+
+import com.chiorichan.configuration.ConfigurationSection;
+import com.chiorichan.configuration.types.yaml.YamlConfiguration;
+import com.chiorichan.utils.UtilStrings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The messages of one language file, e.g., {@code en/general.yaml}, compiled on first use.
+ * <p>
+ * A compiled message holds its text split around the {@code :param} placeholders and its plural choices with their count ranges already parsed,
+ * so a lookup neither rescans nor re-parses the string.
+ */
+final class LocaleBundle
+{
+	private final File file;
+	private final long lastModified;
+	private final Map<String, Optional<Message>> messages = new ConcurrentHashMap<>();
+	private final ConfigurationSection section;
+
+	LocaleBundle( File file )
+	{
+		this.file = file;
+		lastModified = file.lastModified();
+
+		ConfigurationSection yaml = YamlConfiguration.loadConfiguration( file );
+
+		String lang = file.getName().substring( 0, file.getName().indexOf( "." ) );
+		if ( yaml.getKeys().size() == 1 && yaml.isConfigurationSection( lang ) && yaml.getKeys().toArray( new String[0] )[0].equals( lang ) )
+			yaml = yaml.getConfigurationSection( lang );
+
+		section = yaml;
+	}
+
+	File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return The compiled message, null if the file doesn't define the key
+	 */
+	Message getMessage( String key )
+	{
+		return messages.computeIfAbsent( key, k -> Optional.ofNullable( section.getString( k ) ).map( Message::new ) ).orElse( null );
+	}
+
+	boolean isStale()
+	{
+		return !file.exists() || file.lastModified() != lastModified;
+	}
+
+	static final class Choice
+	{
+		/**
+		 * The inclusive count ranges as low and high pairs, null if the choice has no range prefix.
+		 */
+		final int[] ranges;
+		final Message message;
+
+		Choice( String choice )
+		{
+			if ( choice.startsWith( "[" ) && choice.contains( "]" ) )
+			{
+				String range = choice.substring( 1, choice.indexOf( "]" ) );
+				List<Integer> bounds = new ArrayList<>();
+
+				for ( String num : range.split( "," ) )
+					try
+					{
+						int dash = num.indexOf( '-', 1 );
+						if ( dash > 0 )
+						{
+							bounds.add( Integer.parseInt( num.substring( 0, dash ).trim() ) );
+							bounds.add( Integer.parseInt( num.substring( dash + 1 ).trim() ) );
+						}
+						else
+						{
+							int n = Integer.parseInt( num.trim() );
+							bounds.add( n );
+							bounds.add( n );
+						}
+					}
+					catch ( NumberFormatException e )
+					{
+						// Ignore
+					}
+
+				ranges = bounds.stream().mapToInt( Integer::intValue ).toArray();
+				message = new Message( choice.substring( choice.indexOf( "]" ) + 1 ).trim(), false );
+			}
+			else
+			{
+				ranges = null;
+				message = new Message( choice, false );
+			}
+		}
+
+		boolean matches( int cnt )
+		{
+			for ( int i = 0; i < ranges.length; i += 2 )
+				if ( cnt >= ranges[i] && cnt <= ranges[i + 1] )
+					return true;
+			return false;
+		}
+	}
+
+	static final class Message
+	{
+		/**
+		 * The plural choices, null unless the message contains a {@code |}.
+		 */
+		final Choice[] choices;
+		/**
+		 * The placeholder names, lower cased, at the odd indexes of {@link #segments}.
+		 */
+		final Set<String> params = new HashSet<>();
+		/**
+		 * The text alternating with placeholders, starting and ending with text.
+		 */
+		final String[] segments;
+		final String text;
+
+		Message( String text )
+		{
+			this( text, true );
+		}
+
+		private Message( String text, boolean plural )
+		{
+			this.text = text;
+
+			if ( plural && text.contains( "|" ) )
+			{
+				String[] split = text.split( "\\|" );
+				choices = new Choice[split.length];
+				for ( int i = 0; i < split.length; i++ )
+					choices[i] = new Choice( split[i] );
+			}
+			else
+				choices = null;
+
+			List<String> segments = new ArrayList<>();
+			int last = 0;
+			for ( int i = 0; i < text.length(); i++ )
+				if ( text.charAt( i ) == ':' && i + 1 < text.length() && isParamChar( text.charAt( i + 1 ) ) )
+				{
+					int end = i + 1;
+					while ( end < text.length() && isParamChar( text.charAt( end ) ) )
+						end++;
+
+					segments.add( text.substring( last, i ) );
+					segments.add( text.substring( i + 1, end ) );
+					params.add( text.substring( i + 1, end ).toLowerCase() );
+					last = end;
+					i = end - 1;
+				}
+			segments.add( text.substring( last ) );
+
+			this.segments = segments.toArray( new String[0] );
+		}
+
+		private static boolean isParamChar( char c )
+		{
+			return Character.isLetterOrDigit( c ) || c == '_';
+		}
+
+		/**
+		 * Selects the plural choice for the count. Ranged choices, e.g., {@code [2-5]}, are tested in order, otherwise two choices read as
+		 * singular and plural and three as none, singular, and plural.
+		 */
+		Message choose( int cnt )
+		{
+			if ( choices == null )
+				return this;
+
+			for ( Choice choice : choices )
+			{
+				if ( choice.ranges == null )
+					break;
+				if ( choice.matches( cnt ) )
+					return choice.message;
+			}
+
+			if ( choices.length == 2 )
+				return choices[cnt <= 1 ? 0 : 1].message;
+			if ( choices.length == 3 )
+				return choices[cnt == 0 ? 0 : cnt == 1 ? 1 : 2].message;
+			return choices[0].message;
+		}
+
+		/**
+		 * Replaces the placeholders with the params, matching the case of the placeholder, e.g., {@code :NAME} upper cases the value.
+		 *
+		 * @param params The values by case-insensitive placeholder name
+		 */
+		String format( Map<String, String> params ) throws LocalizationException
+		{
+			if ( params.isEmpty() )
+				return text;
+
+			Map<String, String> values = new HashMap<>();
+			for ( Map.Entry<String, String> param : params.entrySet() )
+			{
+				String name = param.getKey().toLowerCase();
+				if ( !this.params.contains( name ) )
+					throw new LocalizationException( "Locale param is not found within language string. {key: " + param.getKey() + ", string: " + text + "}" );
+				values.put( name, param.getValue() );
+			}
+
+			StringBuilder sb = new StringBuilder( text.length() + 16 );
+			for ( int i = 0; i < segments.length; i++ )
+				if ( i % 2 == 0 )
+					sb.append( segments[i] );
+				else
+				{
+					String val = values.get( segments[i].toLowerCase() );
+					if ( val == null )
+						sb.append( ':' ).append( segments[i] );
+					else if ( UtilStrings.isUppercase( segments[i] ) )
+						sb.append( val.toUpperCase() );
+					else if ( UtilStrings.isCapitalizedWords( segments[i] ) )
+						sb.append( UtilStrings.capitalizeWords( val ) );
+					else
+						sb.append( val );
+				}
+
+			return sb.toString();
+		}
+	}
+}
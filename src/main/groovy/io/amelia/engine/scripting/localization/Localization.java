@@ -9,52 +9,83 @@
  */
 package io.amelia.engine.scripting.localization;
 
-import com.chiorichan.configuration.ConfigurationSection;
-import com.chiorichan.configuration.types.yaml.YamlConfiguration;
-import com.chiorichan.helpers.Pair;
-import com.chiorichan.tasks.Timings;
 import com.chiorichan.utils.UtilIO;
 import com.chiorichan.utils.UtilObjects;
 import com.chiorichan.utils.UtilStrings;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import io.amelia.support.Versioning;
+import io.amelia.support.FileWatcher;
 
+/**
+ * Translates language keys using the YAML language files found under a locale directory, e.g., {@code en/general.yaml} holds the
+ * {@code general.*} keys.
+ * <p>
+ * Language files are compiled into bundles on first use and kept until a {@link FileWatcher} sees the file change or disappear. Lookups for a regional
+ * locale, e.g., {@code en_US}, fall back on its language and then the default locale.
+ */
 public class Localization
 {
-	private File baseFile;
-	// TODO Implement language specification, right now only "en" is available
-	private Map<String, Pair<Long, ConfigurationSection>> langCache = new ConcurrentHashMap<>();
+	private final File baseDirectory;
+	private final Map<File, LocaleBundle> bundles = new ConcurrentHashMap<>();
+	private final Map<File, FileWatcher> watchers = new ConcurrentHashMap<>();
 	private String locale = "en";
 
 	public Localization( File baseFile )
 	{
 		UtilObjects.notNull( baseFile );
-		this.baseFile = new File( baseFile, locale );
-		if ( !baseFile.exists() )
-			baseFile.mkdirs();
+		this.baseDirectory = baseFile;
+		File localeDirectory = new File( baseFile, locale );
+		if ( !localeDirectory.exists() )
+			localeDirectory.mkdirs();
 	}
 
-	private ConfigurationSection getLang( String key ) throws LocalizationException
+	/**
+	 * Gets the compiled bundle of a language file, loading it and watching the file for changes if it isn't already.
+	 *
+	 * @return The bundle, null if the locale doesn't have the language file
+	 */
+	private LocaleBundle getBundle( String locale, String prefix )
 	{
 		// TODO Make it so yaml files can have multi-layer deep keys too, not just directories.
 		// Might be worth implementing a common system for this under the ZIO or ZFiles.
 
-		File file = new File( baseFile, key.replace( ".", "/" ) + ".yaml" );
+		File file = new File( new File( baseDirectory, locale ), prefix.replace( ".", "/" ) + ".yaml" );
+
+		LocaleBundle bundle = bundles.get( file );
+		if ( bundle != null )
+			return bundle;
 
 		if ( !file.exists() )
-			throw new LocalizationException( "Language file does not exist. [" + UtilIO.relPath( file ) + "]" );
+			return null;
 
-		ConfigurationSection yaml = YamlConfiguration.loadConfiguration( file );
+		bundle = bundles.computeIfAbsent( file, LocaleBundle::new );
+		watchers.computeIfAbsent( file, key -> new FileWatcher( key.toPath() )
+		{
+			@Override
+			public void readChanges()
+			{
+				// The first check always reports a change, so compare against when the bundle was loaded
+				LocaleBundle loaded = bundles.get( key );
+				if ( loaded != null && loaded.isStale() )
+					bundles.remove( key, loaded );
+			}
 
-		String lang = file.getName().substring( 0, file.getName().indexOf( "." ) );
-		if ( yaml.getKeys().size() == 1 && yaml.isConfigurationSection( lang ) && yaml.getKeys().toArray( new String[0] )[0].equals( lang ) )
-			yaml = yaml.getConfigurationSection( lang );
+			@Override
+			public void readDeleted()
+			{
+				// Forget the file, it's watched again if it's recreated and requested
+				bundles.remove( key );
+				watchers.remove( key, this );
+				cancel();
+			}
+		} );
 
-		return yaml;
+		return bundle;
 	}
 
 	public String getLocale()
@@ -65,98 +96,15 @@ public class Localization
 	public void setLocale( String locale )
 	{
 		this.locale = locale;
-		this.baseFile = new File( baseFile, locale );
-		if ( !baseFile.exists() )
-			baseFile.mkdirs();
-	}
-
-	public String localePlural( String key, int cnt ) throws LocalizationException
-	{
-		String str = localeTrans( key );
-
-		if ( str.contains( "|" ) )
-		{
-			String[] choices = str.split( "|" );
-
-			for ( String choice : choices )
-				if ( choice.startsWith( "[" ) && choice.contains( "]" ) )
-				{
-					String range = choice.substring( 1, choice.indexOf( "]" ) );
-					try
-					{
-						if ( Integer.parseInt( range ) == cnt )
-							return choice.substring( choice.indexOf( "]" ) ).trim();
-					}
-					catch ( NumberFormatException e )
-					{
-						String[] numbers = range.contains( "," ) ? range.split( "," ) : new String[] {range};
-						for ( String num : numbers )
-							try
-							{
-								if ( num.contains( "-" ) )
-								{
-									String[] lr = num.split( "-" );
-									for ( int n = Integer.parseInt( lr[0] ); n <= Integer.parseInt( lr[1] ); n++ )
-										if ( n == cnt )
-											return choice.substring( choice.indexOf( "]" ) ).trim();
-								}
-								else if ( Integer.parseInt( num ) == cnt )
-									return choice.substring( choice.indexOf( "]" ) ).trim();
-							}
-							catch ( NumberFormatException ee )
-							{
-								// Ignore
-							}
-					}
-				}
-				else
-					break;
-
-			if ( choices.length == 2 )
-			{
-				if ( cnt <= 1 )
-					return choices[0];
-				return choices[1];
-			}
-			else if ( choices.length == 3 )
-			{
-				if ( cnt == 0 )
-					return choices[0];
-				if ( cnt == 1 )
-					return choices[1];
-				return choices[2];
-			}
-			else
-				return choices[0];
-		}
-
-		return str;
-	}
-
-	public String localeTrans( String key, Map<String, String> params ) throws LocalizationException
-	{
-		String str = localeTrans( key );
-
-		for ( Map.Entry<String, String> param : params.entrySet() )
-		{
-			int inx = str.toLowerCase().indexOf( ":" + param.getKey().toLowerCase() );
-			if ( inx == -1 )
-				throw new LocalizationException( "Locale param is not found within language string. {key: " + param.getKey() + ", string: " + str + "}" );
-			String tester = str.substring( inx, param.getKey().length() );
-			String val = param.getValue();
-
-			if ( UtilStrings.isUppercase( tester ) )
-				val = val.toUpperCase();
-			if ( UtilStrings.isCapitalizedWords( tester ) )
-				val = UtilStrings.capitalizeWords( val );
-
-			str = str.substring( 0, inx ) + val + str.substring( inx + param.getKey().length() );
-		}
-
-		return str;
+		File localeDirectory = new File( baseDirectory, locale );
+		if ( !localeDirectory.exists() )
+			localeDirectory.mkdirs();
 	}
 
-	public String localeTrans( String key ) throws LocalizationException
+	/**
+	 * Finds the message in the locale, its language, or the default locale, in that order.
+	 */
+	private LocaleBundle.Message getMessage( Locale locale, String key ) throws LocalizationException
 	{
 		UtilObjects.notEmpty( key );
 		key = UtilStrings.trimAll( key, '.' );
@@ -175,15 +123,64 @@ public class Localization
 		if ( UtilObjects.isEmpty( key ) )
 			throw new LocalizationException( "Language key is empty." );
 
-		ConfigurationSection lang;
-		if ( langCache.containsKey( prefix ) && langCache.get( prefix ).getKey() > Timings.epoch() - ( Versioning.isDevelopment() ? Timings.SECOND_15 : Timings.HOUR ) )
-			lang = langCache.get( prefix ).getValue();
-		else
+		String[] candidates = locale == null ? new String[] {this.locale} : new String[] {locale.toString(), locale.getLanguage(), this.locale};
+		boolean found = false;
+
+		for ( int i = 0; i < candidates.length; i++ )
 		{
-			lang = getLang( prefix );
-			langCache.put( prefix, new Pair<>( Timings.epoch(), lang ) );
+			if ( candidates[i].isEmpty() || ( i > 0 && candidates[i].equals( candidates[i - 1] ) ) )
+				continue;
+
+			LocaleBundle bundle = getBundle( candidates[i], prefix );
+			if ( bundle == null )
+				continue;
+
+			found = true;
+			LocaleBundle.Message message = bundle.getMessage( key );
+			if ( message != null )
+				return message;
 		}
 
-		return lang.getString( key );
+		if ( !found )
+			throw new LocalizationException( "Language file does not exist. [" + UtilIO.relPath( new File( new File( baseDirectory, this.locale ), prefix.replace( ".", "/" ) + ".yaml" ) ) + "]" );
+
+		return null;
+	}
+
+	public String localePlural( String key, int cnt ) throws LocalizationException
+	{
+		return localePlural( null, key, cnt );
+	}
+
+	/**
+	 * Translates the key and selects its plural choice for the count, e.g., {@code "[0]No apples|[1]One apple|[2-5]A few apples|Many apples"}.
+	 *
+	 * @param locale The locale, null for the current locale
+	 */
+	public String localePlural( Locale locale, String key, int cnt ) throws LocalizationException
+	{
+		LocaleBundle.Message message = getMessage( locale, key );
+		return message == null ? null : message.choose( cnt ).text;
+	}
+
+	public String localeTrans( String key, Map<String, String> params ) throws LocalizationException
+	{
+		return localeTrans( null, key, params );
+	}
+
+	/**
+	 * Translates the key, replacing its {@code :param} placeholders.
+	 *
+	 * @param locale The locale, null for the current locale
+	 */
+	public String localeTrans( Locale locale, String key, Map<String, String> params ) throws LocalizationException
+	{
+		LocaleBundle.Message message = getMessage( locale, key );
+		return message == null ? null : message.format( params );
+	}
+
+	public String localeTrans( String key ) throws LocalizationException
+	{
+		return localeTrans( null, key, Collections.emptyMap() );
 	}
 }
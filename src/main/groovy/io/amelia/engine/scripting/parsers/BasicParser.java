@@ -21,16 +21,41 @@ import java.util.regex.Pattern;
  */
 public abstract class BasicParser
 {
-	private Pattern p1;
-	private Pattern p2;
+	/**
+	 * Builds the arguments passed to {@link #resolveMethod(String...)}, the entire match followed by the comma separated arguments with quotes trimmed.
+	 */
+	static String[] toArgs( String match, String arguments )
+	{
+		String[] args = arguments.split( "[ ]?,[ ]?" );
+		String[] args2 = new String[args.length + 1];
 
-	public BasicParser( String patternOne, String patternTwo )
+		args2[0] = match;
+
+		for ( int i = 0; i < args.length; i++ )
+			args2[i + 1] = UtilStrings.trimAll( args[i].trim(), '"' );
+
+		return args2;
+	}
+
+	private Pattern pattern;
+
+	/**
+	 * @param pattern Matches an entire method call, with the arguments as the first group
+	 */
+	public BasicParser( String pattern )
 	{
-		Validate.notEmpty( patternOne );
-		Validate.notEmpty( patternTwo );
+		Validate.notEmpty( pattern );
 
-		p1 = Pattern.compile( patternOne );
-		p2 = Pattern.compile( patternTwo );
+		this.pattern = Pattern.compile( pattern );
+	}
+
+	/**
+	 * @deprecated The second pattern was only used to locate the match of the first, use {@link #BasicParser(String)}.
+	 */
+	@Deprecated
+	public BasicParser( String patternOne, String patternTwo )
+	{
+		this( patternOne );
 	}
 
 	public abstract String resolveMethod( String... args ) throws Exception;
@@ -40,31 +65,27 @@ public abstract class BasicParser
 		if ( source == null || source.isEmpty() )
 			return "";
 
-		Matcher m1 = p1.matcher( source );
-		Matcher m2 = p2.matcher( source );
+		StringBuilder sb = new StringBuilder( source );
+		Matcher matcher = pattern.matcher( sb );
+		int pos = 0;
 
-		while ( m1.find() && m2.find() )
+		while ( pos <= sb.length() && matcher.find( pos ) )
 		{
-			String[] args = m1.group( 1 ).split( "[ ]?,[ ]?" );
-			String[] args2 = new String[args.length + 1];
-
-			args2[0] = m1.group( 0 );
-
-			for ( int i = 0; i < args.length; i++ )
-				args2[i + 1] = UtilStrings.trimAll( args[i].trim(), '"' );
+			int start = matcher.start();
+			int end = matcher.end();
 
-			String result = resolveMethod( args2 );
+			String result = resolveMethod( toArgs( matcher.group( 0 ), matcher.group( 1 ) ) );
 
 			if ( result == null )
 				result = "";
 
-			source = new StringBuilder( source ).replace( m2.start( 1 ), m2.end( 1 ), result ).toString();
+			sb.replace( start, end, result );
 
-			// We have to reset the matcher since the source changes with each loop
-			m1 = p1.matcher( source );
-			m2 = p2.matcher( source );
+			// Resume at the result, so methods it contains are also resolved, without rescanning the source before it
+			matcher.reset( sb );
+			pos = start;
 		}
 
-		return source;
+		return sb.toString();
 	}
 }
@@ -0,0 +1,301 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import io.amelia.engine.scripting.FileInterpreter;
+import io.amelia.engine.scripting.ScriptBinding;
+import io.amelia.extra.UtilityEncrypt;
+
+/**
+ * Evaluates included fragments, reusing the output of those annotated with {@code @cache}.
+ * <p>
+ * Cached output is keyed by the fragment path, its content hash, and the values of the bindings named by its {@code @varyBy} annotation. Each
+ * entry records every file its output was built from, i.e., the fragment and everything it included, so a change to a shared include evicts
+ * exactly the entries that depend on it. A fragment's output is only cached when each of its includes is cached too and varies on nothing
+ * beyond the fragment's own {@code @varyBy}. Includes are also tracked per thread, stopping include loops before they overflow the stack.
+ */
+public final class FragmentCache
+{
+	private static final int MAX_DEPTH = 32;
+	private static final int MAX_ENTRIES = 1024;
+
+	/**
+	 * The cache keys of the entries built from each file.
+	 */
+	private static final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+	private static final Map<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+	private static final ThreadLocal<Deque<Frame>> frames = ThreadLocal.withInitial( ArrayDeque::new );
+	private static final Map<String, Policy> policies = new ConcurrentHashMap<>();
+
+	public static void clear()
+	{
+		synchronized ( entries )
+		{
+			entries.clear();
+			dependents.clear();
+		}
+		policies.clear();
+	}
+
+	/**
+	 * Evaluates the fragment or returns its cached output.
+	 *
+	 * @param path        The fragment file, null for virtual fragments which are never cached
+	 * @param contentHash The hash of the fragment source
+	 * @param binding     The binding the {@code @varyBy} variables are read from
+	 * @param evaluator   Evaluates the fragment
+	 *
+	 * @return The fragment output
+	 */
+	public static String evaluate( @Nullable String path, @Nonnull String contentHash, @Nonnull ScriptBinding binding, @Nonnull Callable<String> evaluator ) throws Exception
+	{
+		Deque<Frame> stack = frames.get();
+
+		if ( path == null )
+		{
+			// The output of a virtual fragment can't be told apart, so it's never frozen into a cached parent
+			if ( !stack.isEmpty() )
+				stack.peek().cacheable = false;
+			return evaluator.call();
+		}
+
+		for ( Frame frame : stack )
+			if ( frame.path.equals( path ) )
+				throw new IllegalStateException( "Include loop detected, " + stack.stream().map( f -> f.path ).collect( Collectors.joining( " <- " ) ) + " includes " + path );
+
+		if ( stack.size() >= MAX_DEPTH )
+			throw new IllegalStateException( "Includes are nested more than " + MAX_DEPTH + " levels deep at " + path );
+
+		Policy policy = getPolicy( path );
+		String key = null;
+
+		// The parent's key only covers its own @varyBy, so an include that isn't cached or varies on anything else would freeze one request's
+		// output into the parent served to every other request
+		Frame parent = stack.peek();
+		if ( parent != null && ( !policy.cacheable || !parent.varyBy.containsAll( policy.varyBy ) ) )
+			parent.cacheable = false;
+
+		if ( policy.cacheable )
+		{
+			StringBuilder sb = new StringBuilder( path ).append( '\0' ).append( contentHash );
+			for ( String name : policy.varyBy )
+			{
+				sb.append( '\0' ).append( name );
+				// An absent variable, e.g., no user on an anonymous request, is its own key part and never equal to a null value
+				if ( binding.hasVariable( name ) )
+					sb.append( '=' ).append( binding.getVariables().get( name ) );
+				else
+					sb.append( '\1' );
+			}
+			key = UtilityEncrypt.md5Hex( sb.toString() );
+
+			Entry entry = get( key );
+			if ( entry != null )
+			{
+				if ( parent != null )
+					parent.dependencies.putAll( entry.dependencies );
+				return entry.output;
+			}
+		}
+
+		Frame frame = new Frame( path, policy.cacheable ? policy.varyBy : Collections.emptyList() );
+		// Recorded before evaluating, so an edit made while rendering still invalidates the entry
+		frame.dependencies.put( path, policy.lastModified );
+		stack.push( frame );
+		String output;
+
+		try
+		{
+			output = evaluator.call();
+		}
+		finally
+		{
+			stack.pop();
+		}
+
+		if ( parent != null )
+		{
+			parent.dependencies.putAll( frame.dependencies );
+			parent.cacheable &= frame.cacheable;
+		}
+
+		if ( key != null && frame.cacheable && output != null )
+			put( key, new Entry( output, frame.dependencies ) );
+
+		return output;
+	}
+
+	@Nullable
+	private static Entry get( String key )
+	{
+		Entry entry;
+		synchronized ( entries )
+		{
+			entry = entries.get( key );
+		}
+
+		if ( entry == null )
+			return null;
+
+		for ( Map.Entry<String, Long> dependency : entry.dependencies.entrySet() )
+			if ( new File( dependency.getKey() ).lastModified() != dependency.getValue() )
+			{
+				invalidate( dependency.getKey() );
+				return null;
+			}
+
+		return entry;
+	}
+
+	private static Policy getPolicy( String path ) throws IOException
+	{
+		File file = new File( path );
+		long lastModified = file.lastModified();
+
+		Policy policy = policies.get( path );
+		if ( policy == null || policy.lastModified != lastModified )
+		{
+			FileInterpreter interpreter = new FileInterpreter( file );
+			policy = new Policy( lastModified, interpreter.isCacheable(), interpreter.getVaryBy() );
+			policies.put( path, policy );
+		}
+
+		return policy;
+	}
+
+	/**
+	 * Evicts the cached output of every fragment built from the file, e.g., a shared header included by many pages.
+	 *
+	 * @param path The changed file
+	 */
+	public static void invalidate( @Nonnull String path )
+	{
+		synchronized ( entries )
+		{
+			Set<String> keys = dependents.remove( path );
+			if ( keys != null )
+				for ( String key : keys )
+					remove( key );
+		}
+		policies.remove( path );
+	}
+
+	/**
+	 * Prevents the output of the fragment being evaluated and of every fragment including it from being cached, e.g., because it rendered an
+	 * error.
+	 */
+	public static void skipCaching()
+	{
+		Frame frame = frames.get().peek();
+		if ( frame != null )
+			frame.cacheable = false;
+	}
+
+	private static void put( String key, Entry entry )
+	{
+		synchronized ( entries )
+		{
+			remove( key );
+			entries.put( key, entry );
+			for ( String dependency : entry.dependencies.keySet() )
+				dependents.computeIfAbsent( dependency, k -> ConcurrentHashMap.newKeySet() ).add( key );
+
+			while ( entries.size() > MAX_ENTRIES )
+				remove( entries.keySet().iterator().next() );
+		}
+	}
+
+	/**
+	 * Removes the entry and its edges from the dependency graph. Must hold the entries lock.
+	 */
+	private static void remove( String key )
+	{
+		Entry entry = entries.remove( key );
+		if ( entry != null )
+			for ( String dependency : entry.dependencies.keySet() )
+			{
+				Set<String> keys = dependents.get( dependency );
+				if ( keys != null )
+				{
+					keys.remove( key );
+					if ( keys.isEmpty() )
+						dependents.remove( dependency, keys );
+				}
+			}
+	}
+
+	private FragmentCache()
+	{
+		// Static Access
+	}
+
+	private static final class Entry
+	{
+		/**
+		 * The last modified time of every file the output was built from, by path.
+		 */
+		final Map<String, Long> dependencies;
+		final String output;
+
+		Entry( String output, Map<String, Long> dependencies )
+		{
+			this.output = output;
+			this.dependencies = Collections.unmodifiableMap( dependencies );
+		}
+	}
+
+	private static final class Frame
+	{
+		final Map<String, Long> dependencies = new HashMap<>();
+		final String path;
+		/**
+		 * The variables the fragment's cache key covers, its includes may only vary on these.
+		 */
+		final List<String> varyBy;
+		boolean cacheable = true;
+
+		Frame( String path, List<String> varyBy )
+		{
+			this.path = path;
+			this.varyBy = varyBy;
+		}
+	}
+
+	private static final class Policy
+	{
+		final boolean cacheable;
+		final long lastModified;
+		final List<String> varyBy;
+
+		Policy( long lastModified, boolean cacheable, List<String> varyBy )
+		{
+			this.lastModified = lastModified;
+			this.cacheable = cacheable;
+			this.varyBy = varyBy;
+		}
+	}
+}
@@ -11,18 +11,30 @@ package io.amelia.engine.scripting.parsers;
 
 import com.google.common.base.Joiner;
 
+/**
+ * Parses HTML comment method calls, e.g., {@literal <!-- include(com.chiorichan.widget.menu) -->}. Several parsers can resolve a source in a
+ * single scan using the {@link HTMLCommentScanner}.
+ */
 public abstract class HTMLCommentParser extends BasicParser
 {
 	// TODO Check method names are a-z, A-Z, and 0-9.
 
+	private final String[] methods;
+
 	public HTMLCommentParser( String... methods )
 	{
-		this( Joiner.on( "|" ).join( methods ) );
+		super( "<!--[\\t ]*(?:" + Joiner.on( "|" ).join( methods ) + ")\\((.*)\\);*[\\t ]*-->" );
+		// super( "<!-- *" + argumentName + "\\((.*)\\) *-->", "(<!-- *" + argumentName + "\\(.*\\) *-->)" );
+		this.methods = methods;
 	}
 
 	public HTMLCommentParser( String methods )
 	{
-		super( "<!--[\\t ]*(?:" + methods + ")\\((.*)\\);*[\\t ]*-->", "(<!--[\\t ]*(?:" + methods + ")\\((.*)\\);*[\\t ]*-->)" );
-		// super( "<!-- *" + argumentName + "\\((.*)\\) *-->", "(<!-- *" + argumentName + "\\(.*\\) *-->)" );
+		this( methods.split( "\\|" ) );
+	}
+
+	public String[] getMethods()
+	{
+		return methods.clone();
 	}
 }
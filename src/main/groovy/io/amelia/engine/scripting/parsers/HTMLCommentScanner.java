@@ -0,0 +1,99 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.parsers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves the method calls of several {@link HTMLCommentParser}s in a single scan of the source, instead of one full scan per parser.
+ * <p>
+ * Every method call starts with the comment opening, so the scan only stops at {@literal <!--}, reads the method name, and dispatches to the
+ * parser registered for it. Like {@link BasicParser#runParser(String)}, the scan resumes at the start of each result, so method calls within an
+ * included page are resolved too, and calls resolve in the order they appear in the source.
+ */
+public class HTMLCommentScanner
+{
+	private static final String COMMENT_CLOSE = "-->";
+	private static final String COMMENT_OPEN = "<!--";
+
+	private final Map<String, HTMLCommentParser> parsers = new HashMap<>();
+
+	public HTMLCommentScanner( HTMLCommentParser... parsers )
+	{
+		for ( HTMLCommentParser parser : parsers )
+			add( parser );
+	}
+
+	/**
+	 * Registers the parser for each of its methods, a method already registered by another parser is kept.
+	 */
+	public HTMLCommentScanner add( HTMLCommentParser parser )
+	{
+		for ( String method : parser.getMethods() )
+			parsers.putIfAbsent( method, parser );
+		return this;
+	}
+
+	public String runParser( String source ) throws Exception
+	{
+		if ( source == null || source.isEmpty() )
+			return "";
+
+		StringBuilder sb = new StringBuilder( source );
+		int pos = 0;
+		int start;
+
+		while ( ( start = sb.indexOf( COMMENT_OPEN, pos ) ) != -1 )
+		{
+			pos = start + COMMENT_OPEN.length();
+
+			int nameStart = pos;
+			while ( nameStart < sb.length() && ( sb.charAt( nameStart ) == ' ' || sb.charAt( nameStart ) == '\t' ) )
+				nameStart++;
+
+			int nameEnd = nameStart;
+			while ( nameEnd < sb.length() && ( Character.isLetterOrDigit( sb.charAt( nameEnd ) ) || sb.charAt( nameEnd ) == '_' ) )
+				nameEnd++;
+
+			if ( nameEnd == nameStart || nameEnd == sb.length() || sb.charAt( nameEnd ) != '(' )
+				continue;
+
+			HTMLCommentParser parser = parsers.get( sb.substring( nameStart, nameEnd ) );
+			if ( parser == null )
+				continue;
+
+			// The call must close on the same line, i.e., "<!-- method(args);  -->"
+			int close = sb.indexOf( COMMENT_CLOSE, nameEnd );
+			int lineEnd = sb.indexOf( "\n", nameEnd );
+			if ( close == -1 || ( lineEnd != -1 && lineEnd < close ) )
+				continue;
+
+			int argsEnd = close;
+			while ( argsEnd > nameEnd && ( sb.charAt( argsEnd - 1 ) == ' ' || sb.charAt( argsEnd - 1 ) == '\t' ) )
+				argsEnd--;
+			while ( argsEnd > nameEnd && sb.charAt( argsEnd - 1 ) == ';' )
+				argsEnd--;
+			if ( argsEnd - 1 <= nameEnd || sb.charAt( argsEnd - 1 ) != ')' )
+				continue;
+
+			int end = close + COMMENT_CLOSE.length();
+			String result = parser.resolveMethod( BasicParser.toArgs( sb.substring( start, end ), sb.substring( nameEnd + 1, argsEnd - 1 ) ) );
+
+			if ( result == null )
+				result = "";
+
+			sb.replace( start, end, result );
+			pos = start;
+		}
+
+		return sb.toString();
+	}
+}
@@ -22,6 +22,7 @@ import io.amelia.logging.LogBuilder;
 
 /**
  * Using the {@link HTMLCommentParser} we attempt to parse the source for include methods, i.e., {@literal <!-- include(com.chiorichan.widget.menu) -->}
+ * Includes annotated with {@code @cache} are served from the {@link FragmentCache}.
  */
 public class IncludesParser extends HTMLCommentParser
 {
@@ -40,29 +41,39 @@ public class IncludesParser extends HTMLCommentParser
 		if ( args.length > 2 )
 			LogBuilder.get( factory ).warning( "EvalFactory: include() method only accepts one argument, ignored." );
 
-		// TODO Prevent infinite loops!
-		ScriptingResult result = factory.eval( ScriptingContext.fromAuto( context.site(), args[1] ).request( context.request() ) );
+		ScriptingContext include = ScriptingContext.fromAuto( context.site(), args[1] ).request( context.request() );
 
-		if ( result.hasNonIgnorableExceptions() )
-			ExceptionReport.throwExceptions( result.getExceptions() );
-		else if ( result.hasIgnorableExceptions() )
-		{
-			StringBuilder sb = new StringBuilder();
-			for ( IException e : result.getExceptions() )
-				if ( e instanceof Throwable )
-					sb.append( ExceptionUtils.getStackTrace( ( Throwable ) e ) + "\n" );
-			return sb.toString();
-		}
+		return FragmentCache.evaluate( include.getFileName(), include.md5Hash(), factory.binding(), () -> {
+			ScriptingResult result = factory.eval( include );
 
-		return result.getString();
+			if ( result.hasNonIgnorableExceptions() )
+				ExceptionReport.throwExceptions( result.getExceptions() );
+			else if ( result.hasIgnorableExceptions() )
+			{
+				FragmentCache.skipCaching();
+
+				StringBuilder sb = new StringBuilder();
+				for ( IException e : result.getExceptions() )
+					if ( e instanceof Throwable )
+						sb.append( ExceptionUtils.getStackTrace( ( Throwable ) e ) + "\n" );
+				return sb.toString();
+			}
+
+			return result.getString();
+		} );
 	}
 
-	public String runParser( String source, Site site, ScriptingContext context, ScriptingFactory factory ) throws Exception
+	IncludesParser prepare( Site site, ScriptingContext context, ScriptingFactory factory )
 	{
 		this.site = site;
 		this.factory = factory;
 		this.context = context;
 
-		return runParser( source );
+		return this;
+	}
+
+	public String runParser( String source, Site site, ScriptingContext context, ScriptingFactory factory ) throws Exception
+	{
+		return prepare( site, context, factory ).runParser( source );
 	}
 }
@@ -24,7 +24,7 @@ public class LessImportParser extends BasicParser
 
 	public LessImportParser()
 	{
-		super( "@import[: ]*(.*);", "(@import[: ]*.*;)" );
+		super( "@import[: ]*(.*);" );
 	}
 
 	@Override
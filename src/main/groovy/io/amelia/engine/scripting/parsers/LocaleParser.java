@@ -42,10 +42,15 @@ public class LocaleParser extends HTMLCommentParser
 		}
 	}
 
-	public String runParser( String source, Site site ) throws Exception
+	LocaleParser prepare( Site site )
 	{
 		this.site = site;
 
-		return runParser( source );
+		return this;
+	}
+
+	public String runParser( String source, Site site ) throws Exception
+	{
+		return prepare( site ).runParser( source );
 	}
 }
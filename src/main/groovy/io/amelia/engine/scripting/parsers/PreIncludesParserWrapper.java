@@ -15,17 +15,16 @@ import com.chiorichan.event.Listener;
 import com.chiorichan.factory.event.PreEvalEvent;
 
 /**
- * Wraps a {@link BasicParser} so it can be called at the lowest level before pre eval processing
+ * Wraps the include, require, locale, yield, and section parsers so they can be called at the lowest level before pre eval processing, resolving
+ * them all in a single scan of the source
  */
 public class PreIncludesParserWrapper implements Listener
 {
 	@EventHandler( priority = EventPriority.LOWEST )
 	public void onEvent( PreEvalEvent event ) throws Exception
 	{
-		event.context().resetAndWrite( new IncludesParser().runParser( event.context().readString(), event.context().site(), event.context(), event.context().factory() ) );
-		event.context().resetAndWrite( new RequiresParser().runParser( event.context().readString(), event.context().site(), event.context(), event.context().factory() ) );
-		event.context().resetAndWrite( new LocaleParser().runParser( event.context().readString(), event.context().site() ) );
-		event.context().resetAndWrite( new YieldParser().runParser( event.context().readString(), event.context().factory() ) );
-		event.context().resetAndWrite( new SectionParser().runParser( event.context().readString(), event.context().factory() ) );
+		HTMLCommentScanner scanner = new HTMLCommentScanner( new IncludesParser().prepare( event.context().site(), event.context(), event.context().factory() ), new RequiresParser().prepare( event.context().site(), event.context(), event.context().factory() ), new LocaleParser().prepare( event.context().site() ), new YieldParser().prepare( event.context().factory() ), new SectionParser().prepare( event.context().factory() ) );
+
+		event.context().resetAndWrite( scanner.runParser( event.context().readString() ) );
 	}
 }
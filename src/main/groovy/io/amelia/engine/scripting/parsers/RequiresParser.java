@@ -37,21 +37,29 @@ public class RequiresParser extends HTMLCommentParser
 		if ( args.length > 2 )
 			LogBuilder.get( factory ).warning( "EvalFactory: require() method only accepts one argument, ignored." );
 
-		// TODO Prevent infinite loops!
-		ScriptingResult result = factory.eval( ScriptingContext.fromPackage( context.site(), args[1] ).request( context.request() ) );
+		ScriptingContext require = ScriptingContext.fromPackage( context.site(), args[1] ).request( context.request() );
 
-		if ( result.hasExceptions() )
-			ExceptionReport.throwExceptions( result.getExceptions() );
+		return FragmentCache.evaluate( require.getFileName(), require.md5Hash(), factory.binding(), () -> {
+			ScriptingResult result = factory.eval( require );
 
-		return result.getString();
+			if ( result.hasExceptions() )
+				ExceptionReport.throwExceptions( result.getExceptions() );
+
+			return result.getString();
+		} );
 	}
 
-	public String runParser( String source, Site site, ScriptingContext context, ScriptingFactory factory ) throws Exception
+	RequiresParser prepare( Site site, ScriptingContext context, ScriptingFactory factory )
 	{
 		this.site = site;
 		this.factory = factory;
 		this.context = context;
 
-		return runParser( source );
+		return this;
+	}
+
+	public String runParser( String source, Site site, ScriptingContext context, ScriptingFactory factory ) throws Exception
+	{
+		return prepare( site, context, factory ).runParser( source );
 	}
 }
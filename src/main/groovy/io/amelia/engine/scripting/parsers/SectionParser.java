@@ -48,10 +48,15 @@ public class SectionParser extends HTMLCommentParser
 		return factory.getYieldBuffer().get( args[1] );
 	}
 
-	public String runParser( String source, ScriptingFactory factory ) throws Exception
+	SectionParser prepare( ScriptingFactory factory )
 	{
 		this.factory = factory;
 
-		return runParser( source );
+		return this;
+	}
+
+	public String runParser( String source, ScriptingFactory factory ) throws Exception
+	{
+		return prepare( factory ).runParser( source );
 	}
 }
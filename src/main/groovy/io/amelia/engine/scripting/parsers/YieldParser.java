@@ -34,10 +34,15 @@ public class YieldParser extends HTMLCommentParser
 		return factory.getYieldBuffer().get( args[1] );
 	}
 
-	public String runParser( String source, ScriptingFactory factory ) throws Exception
+	YieldParser prepare( ScriptingFactory factory )
 	{
 		this.factory = factory;
 
-		return runParser( source );
+		return this;
+	}
+
+	public String runParser( String source, ScriptingFactory factory ) throws Exception
+	{
+		return prepare( factory ).runParser( source );
 	}
 }
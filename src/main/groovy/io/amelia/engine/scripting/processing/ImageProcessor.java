@@ -9,163 +9,327 @@
  */
 package io.amelia.engine.scripting.processing;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
 import java.awt.image.RGBImageFilter;
-
-import io.amelia.scripting.ScriptingContext;
-import io.amelia.scripting.ScriptingOption;
-import io.amelia.scripting.ScriptingProcessor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import io.amelia.engine.config.ConfigRegistry;
+import io.amelia.engine.scripting.ScriptingContext;
+import io.amelia.engine.scripting.ScriptingFactory;
+import io.amelia.engine.scripting.ScriptingOption;
 
 /**
  * Allows for image manipulation to be applied to an image before it's outputted.
+ * <p>
+ * Images are processed on a bounded pool, so a burst of requests can't decode more images at once than the pool has threads, and concurrent
+ * requests for the same variant wait on a single computation. Large reductions decode a subsampled image and halve it progressively before the
+ * final scale, and every variant is cached by the hash of its source and options.
  */
 public class ImageProcessor implements ScriptingProcessor
 {
+	private static final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+	private static ThreadPoolExecutor executor;
+
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if ( executor == null )
+		{
+			int threads = Math.max( 1, ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_THREADS ) );
+			int queueSize = Math.max( 1, ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_QUEUE ) );
+			AtomicInteger threadCount = new AtomicInteger( 1 );
+
+			executor = new ThreadPoolExecutor( threads, threads, 30L, TimeUnit.SECONDS, new ArrayBlockingQueue<>( queueSize ), runnable -> {
+				Thread thread = new Thread( runnable, "Image Processor #" + threadCount.getAndIncrement() );
+				thread.setDaemon( true );
+				return thread;
+			}, new ThreadPoolExecutor.AbortPolicy() );
+			executor.allowCoreThreadTimeOut( true );
+		}
+		return executor;
+	}
+
+	private static int getInt( ScriptingContext scriptingContext, ScriptingOption.Int option )
+	{
+		return scriptingContext.getOption( option ).map( opt -> opt.getValue().orElse( null ) ).map( value -> {
+			try
+			{
+				return Integer.parseInt( value.trim() );
+			}
+			catch ( NumberFormatException e )
+			{
+				return option.getDefault();
+			}
+		} ).orElse( option.getDefault() );
+	}
+
+	private static boolean isSet( ScriptingContext scriptingContext, ScriptingOption.Bool option )
+	{
+		// A bare option, e.g., "?thumb", is set
+		return scriptingContext.getOption( option ).map( opt -> opt.getValue().orElse( "" ) ).map( value -> !"false".equalsIgnoreCase( value ) && !"0".equals( value ) ).orElse( option.getDefault() );
+	}
+
+	/**
+	 * Halves the image until it's within twice the target size, so the final bilinear pass samples every source pixel.
+	 */
+	private static BufferedImage scale( BufferedImage img, int width, int height, int type, Object interpolation )
+	{
+		int currentWidth = img.getWidth();
+		int currentHeight = img.getHeight();
+
+		do
+		{
+			currentWidth = currentWidth / 2 >= width ? currentWidth / 2 : width;
+			currentHeight = currentHeight / 2 >= height ? currentHeight / 2 : height;
+
+			BufferedImage scaled = new BufferedImage( currentWidth, currentHeight, type );
+			Graphics2D graphics = scaled.createGraphics();
+			graphics.setRenderingHint( RenderingHints.KEY_INTERPOLATION, interpolation );
+			graphics.setRenderingHint( RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY );
+			graphics.drawImage( img, 0, 0, currentWidth, currentHeight, null );
+			graphics.dispose();
+			img = scaled;
+		}
+		while ( currentWidth != width || currentHeight != height );
+
+		return img;
+	}
+
+	private final ProcessedAssetCache cache = ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_CACHE ) ? new ProcessedAssetCache( "images" ) : null;
+
 	@Override
 	public void postEvaluate( ScriptingContext scriptingContext )
 	{
-		return;
+		if ( scriptingContext.getContentType() == null || !scriptingContext.getContentType().toLowerCase().startsWith( "image/" ) )
+			return;
 
-		/* try
-		{
-			if ( scriptingContext.getContentType() == null && !scriptingContext.getContentType().toLowerCase().startsWith( "image" ) )
-				return;
+		// Test if our Post Processor can process the current image
+		String format = scriptingContext.getContentType().split( "/" )[1].toLowerCase();
+		if ( !Arrays.asList( ImageIO.getReaderFormatNames() ).contains( format ) )
+			return;
+
+		int width;
+		int height;
 
-			float x = -1;
-			float y = -1;
+		if ( isSet( scriptingContext, Options.thumb ) )
+		{
+			width = 150;
+			height = 0;
+		}
+		else
+		{
+			width = getInt( scriptingContext, Options.width );
+			height = getInt( scriptingContext, Options.height );
+		}
 
-			boolean cacheEnabled = ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_CACHE );
-			boolean grayscale = false;
+		// Non-positive dimensions are unset and oversized ones are clamped, so a request can't allocate an arbitrarily large image
+		int maxDimension = Math.max( 1, ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_MAX_DIMENSION ) );
+		boolean upscale = ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_IMAGES_UPSCALE );
+		width = width < 1 ? 0 : Math.min( width, maxDimension );
+		height = height < 1 ? 0 : Math.min( height, maxDimension );
 
-			x = request.getArgumentInt( "width" ).orElse( x );
-			y = request.getArgumentInt( "height" ).orElse( y );
-			x = request.getArgumentInt( "x" ).orElse( x );
-			y = request.getArgumentInt( "y" ).orElse( y );
-			x = request.getArgumentInt( "w" ).orElse( x );
-			y = request.getArgumentInt( "h" ).orElse( y );
+		boolean grayscale = isSet( scriptingContext, Options.grayscale );
+		String argb = scriptingContext.getOption( Options.argb ).map( opt -> opt.getValue().orElse( null ) ).filter( value -> value.length() == 8 ).orElse( null );
+		Integer filter = null;
 
-			ScriptingContext.DefinedScriptingOption option = scriptingContext.getOption( Options.thumb ).orElse( null );
-			if ( isTrue() )
+		if ( argb != null )
+			try
 			{
-				x = 150;
-				y = 0;
+				filter = ( int ) Long.parseLong( argb, 16 );
 			}
-			else
+			catch ( NumberFormatException e )
 			{
-				x = scriptingContext.getOption( width ).getInt();
-				y = scriptingContext.getOption( height ).getInt();
+				// TODO Report malformed parameters to user
 			}
 
-			if ( request.hasArgument( "bw" ) || request.hasArgument( "grayscale" ) )
-				grayscale = true;
-
-			// Test if our Post Processor can process the current image
-			List<String> readerFormats = Arrays.asList( ImageIO.getReaderFormatNames() );
-			List<String> writerFormats = Arrays.asList( ImageIO.getWriterFormatNames() );
-			if ( scriptingContext.getContentType() != null && !readerFormats.contains( scriptingContext.getContentType().split( "/" )[1].toLowerCase() ) )
-				return;
+		if ( width < 1 && height < 1 && filter == null && !grayscale )
+			return;
 
-			int inx = scriptingContext.getBuffer().readerIndex();
-			BufferedImage img = ImageIO.read( new ByteBufInputStream( scriptingContext.getBuffer() ) );
-			scriptingContext.getBuffer().readerIndex( inx );
+		byte[] source = scriptingContext.readBytes();
+		String key = ProcessedAssetCache.key( String.format( "image:%s:%sx%s:%s:%s:%s:%s", format, width, height, argb, grayscale, maxDimension, upscale ), source );
 
-			if ( img == null )
-				return;
-
-			float w = img.getWidth();
-			float h = img.getHeight();
-			float w1 = w;
-			float h1 = h;
+		byte[] processed = cache == null ? null : cache.get( key );
+		if ( processed == null )
+		{
+			CompletableFuture<byte[]> created = new CompletableFuture<>();
+			CompletableFuture<byte[]> future = inFlight.putIfAbsent( key, created );
 
-			if ( x < 1 && y < 1 )
+			if ( future == null )
 			{
-				x = w;
-				y = h;
-			}
-			else if ( x > 0 && y < 1 )
-			{
-				w1 = x;
-				h1 = x * ( h / w );
+				future = created;
+				final int targetWidth = width;
+				final int targetHeight = height;
+				final Integer targetFilter = filter;
+
+				try
+				{
+					getExecutor().execute( () -> {
+						try
+						{
+							byte[] result = process( source, format, targetWidth, targetHeight, targetFilter, grayscale, maxDimension, upscale );
+							if ( result != null && cache != null )
+								cache.put( key, result );
+							created.complete( result );
+						}
+						catch ( Throwable t )
+						{
+							created.completeExceptionally( t );
+						}
+						finally
+						{
+							inFlight.remove( key, created );
+						}
+					} );
+				}
+				catch ( RejectedExecutionException e )
+				{
+					inFlight.remove( key, created );
+					created.complete( null );
+					ScriptingFactory.L.warning( "The image processor is saturated, serving " + scriptingContext.getFileName() + " unprocessed." );
+				}
 			}
-			else if ( y > 0 && x < 1 )
+
+			try
 			{
-				w1 = y * ( w / h );
-				h1 = y;
+				processed = future.join();
 			}
-			else if ( x > 0 && y > 0 )
+			catch ( CompletionException e )
 			{
-				w1 = x;
-				h1 = y;
+				ScriptingFactory.L.warning( "Failed to process the image " + scriptingContext.getFileName(), e.getCause() );
+				return;
 			}
+		}
 
-			boolean resize = w1 > 0 && h1 > 0 && w1 != w && h1 != h;
-			boolean argb = request.hasArgument( "argb" ) && request.getArgument( "argb" ).length() == 8;
+		if ( processed != null )
+			scriptingContext.resetAndWrite( processed );
+	}
 
-			if ( !resize && !argb && !grayscale )
-				return;
+	@Override
+	public void preEvaluate( ScriptingContext scriptingContext )
+	{
+
+	}
 
-			// Produce a unique encapsulated id based on this request
-			String encapId = UtilityEncrypt.sha1( scriptingContext.getFileName() + w1 + h1 + request.getArgument( "argb" ) + grayscale );
-			Path tempFile = Paths.get( encapId + "_" + scriptingContext.getFileName().toLowerCase() ).resolve( scriptingContext.getCachePath() );
+	/**
+	 * Decodes, transforms, and encodes an image. The result fits within the maximum dimension and, unless upscaling, the source size.
+	 *
+	 * @return The encoded image, null if it can't be decoded or no transformation applies
+	 */
+	private byte[] process( byte[] source, String format, int x, int y, Integer filter, boolean grayscale, int maxDimension, boolean upscale ) throws IOException
+	{
+		try ( ImageInputStream in = ImageIO.createImageInputStream( new ByteArrayInputStream( source ) ) )
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+			if ( !readers.hasNext() )
+				return null;
 
-			if ( cacheEnabled && Files.isRegularFile( tempFile ) )
+			ImageReader reader = readers.next();
+			try
 			{
-				scriptingContext.resetAndWrite( UtilityIO.readStreamToBytes( Files.newInputStream( tempFile ) ) );
-				return;
-			}
+				reader.setInput( in, true, true );
 
-			Image image = resize ? img.getScaledInstance( Math.round( w1 ), Math.round( h1 ), ConfigRegistry.config.getBoolean( "advanced.processors.useFastGraphics" ).orElse( true ) ? Image.SCALE_FAST : Image.SCALE_SMOOTH ) : img;
+				float w = reader.getWidth( 0 );
+				float h = reader.getHeight( 0 );
+				float w1 = w;
+				float h1 = h;
 
-			// TODO Report malformed parameters to user
+				if ( x > 0 && y < 1 )
+				{
+					w1 = x;
+					h1 = x * ( h / w );
+				}
+				else if ( y > 0 && x < 1 )
+				{
+					w1 = y * ( w / h );
+					h1 = y;
+				}
+				else if ( x > 0 && y > 0 )
+				{
+					w1 = x;
+					h1 = y;
+				}
 
-			if ( argb )
-			{
-				FilteredImageSource filteredSrc = new FilteredImageSource( image.getSource(), new RGBColorFilter( ( int ) Long.parseLong( request.getArgument( "argb" ), 16 ) ) );
-				image = Toolkit.getDefaultToolkit().createImage( filteredSrc );
-			}
+				// The computed side of a proportional resize can still exceed the limits, so scale both sides keeping the aspect ratio
+				float limitWidth = upscale ? maxDimension : Math.min( w, maxDimension );
+				float limitHeight = upscale ? maxDimension : Math.min( h, maxDimension );
+				float ratio = Math.min( 1, Math.min( limitWidth / w1, limitHeight / h1 ) );
+				w1 *= ratio;
+				h1 *= ratio;
 
-			BufferedImage rtn = new BufferedImage( Math.round( w1 ), Math.round( h1 ), img.getType() );
-			Graphics2D graphics = rtn.createGraphics();
-			graphics.drawImage( image, 0, 0, null );
-			graphics.dispose();
+				int width = Math.max( 1, Math.round( w1 ) );
+				int height = Math.max( 1, Math.round( h1 ) );
+				boolean resize = width != Math.round( w ) || height != Math.round( h );
 
-			if ( grayscale )
-			{
-				ColorConvertOp op = new ColorConvertOp( ColorSpace.getInstance( ColorSpace.CS_GRAY ), null );
-				op.filter( rtn, rtn );
-			}
+				if ( !resize && filter == null && !grayscale )
+					return null;
 
-			if ( resize )
-				ScriptingFactory.L.info( EnumColor.GRAY + "Image resized from " + Math.round( w ) + "px by " + Math.round( h ) + "px to " + Math.round( w1 ) + "px by " + Math.round( h1 ) + "px" );
+				// Thumbnails don't need every source pixel, decoding every nth one keeps the decoded image within twice the target size
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = Math.max( 1, Math.min( Math.round( w ) / ( width * 2 ), Math.round( h ) / ( height * 2 ) ) );
+				if ( subsampling > 1 )
+					param.setSourceSubsampling( subsampling, subsampling, 0, 0 );
 
-			if ( rtn != null )
-			{
-				ByteArrayOutputStream bs = new ByteArrayOutputStream();
+				BufferedImage img = reader.read( 0, param );
 
-				if ( scriptingContext.getContentType() != null && writerFormats.contains( scriptingContext.getContentType().split( "/" )[1].toLowerCase() ) )
-					ImageIO.write( rtn, scriptingContext.getContentType().split( "/" )[1].toLowerCase(), bs );
-				else
-					ImageIO.write( rtn, "png", bs );
+				boolean alpha = img.getColorModel().hasAlpha() && !"jpg".equals( format ) && !"jpeg".equals( format );
+				int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+				Object interpolation = ConfigRegistry.config.getBoolean( "advanced.processors.useFastGraphics" ).orElse( true ) ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+
+				BufferedImage rtn = scale( img, width, height, type, interpolation );
 
-				if ( cacheEnabled )
+				if ( filter != null )
 				{
-					OutputStream out = Files.newOutputStream( tempFile );
-					out.write( bs.toByteArray() );
-					IO.closeQuietly( out );
+					RGBColorFilter colorFilter = new RGBColorFilter( filter );
+					int[] pixels = rtn.getRGB( 0, 0, width, height, null, 0, width );
+					for ( int i = 0; i < pixels.length; i++ )
+						pixels[i] = colorFilter.filterRGB( i % width, i / width, pixels[i] );
+					rtn.setRGB( 0, 0, width, height, pixels, 0, width );
 				}
 
-				scriptingContext.resetAndWrite( bs.toByteArray() );
-			}
-		}
-		catch ( Throwable e )
-		{
-			e.printStackTrace();
-		} */
-	}
+				if ( grayscale )
+				{
+					ColorConvertOp op = new ColorConvertOp( ColorSpace.getInstance( ColorSpace.CS_GRAY ), null );
+					op.filter( rtn, rtn );
+				}
 
-	@Override
-	public void preEvaluate( ScriptingContext scriptingContext )
-	{
+				if ( resize )
+					ScriptingFactory.L.fine( "Image resized from " + Math.round( w ) + "px by " + Math.round( h ) + "px to " + width + "px by " + height + "px" );
+
+				ByteArrayOutputStream bs = new ByteArrayOutputStream();
 
+				if ( Arrays.asList( ImageIO.getWriterFormatNames() ).contains( format ) )
+					ImageIO.write( rtn, format, bs );
+				else
+					ImageIO.write( rtn, "png", bs );
+
+				return bs.toByteArray();
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
 	}
 
 	public static class Options
@@ -173,6 +337,8 @@ public class ImageProcessor implements ScriptingProcessor
 		public static final ScriptingOption.Int width = new ScriptingOption.Int( "width", -1, "x", "w" );
 		public static final ScriptingOption.Int height = new ScriptingOption.Int( "height", -1, "y", "h" );
 		public static final ScriptingOption.Bool thumb = new ScriptingOption.Bool( "thumb", false );
+		public static final ScriptingOption.Bool grayscale = new ScriptingOption.Bool( "grayscale", false, "bw" );
+		public static final ScriptingOption argb = new ScriptingOption( "argb" );
 	}
 
 	static class RGBColorFilter extends RGBImageFilter
@@ -23,6 +23,8 @@ import io.amelia.support.UtilityStrings;
 
 public class JSMinProcessor implements ScriptingProcessor
 {
+	private final ProcessedAssetCache cache = new ProcessedAssetCache( "jsmin" );
+
 	@Override
 	public void postEvaluate( ScriptingContext scriptingContext )
 	{
@@ -33,19 +35,28 @@ public class JSMinProcessor implements ScriptingProcessor
 		if ( scriptingContext.getFileName() != null && scriptingContext.getFileName().toLowerCase().endsWith( ".min.js" ) )
 			return;
 
-		String code = scriptingContext.readString();
-		List<SourceFile> externals = new ArrayList<>();
-		List<SourceFile> inputs = Arrays.asList( SourceFile.fromCode( ( scriptingContext.getFileName() == null || scriptingContext.getFileName().isEmpty() ) ? "fakefile.js" : scriptingContext.getFileName(), code ) );
+		String key = ProcessedAssetCache.key( "jsmin:" + CompilationLevel.SIMPLE_OPTIMIZATIONS, scriptingContext.readBytes() );
+
+		byte[] minified = cache.get( key );
+		if ( minified == null )
+		{
+			String code = scriptingContext.readString();
+			List<SourceFile> externals = new ArrayList<>();
+			List<SourceFile> inputs = Arrays.asList( SourceFile.fromCode( ( scriptingContext.getFileName() == null || scriptingContext.getFileName().isEmpty() ) ? "fakefile.js" : scriptingContext.getFileName(), code ) );
+
+			Compiler compiler = new Compiler();
 
-		Compiler compiler = new Compiler();
+			CompilerOptions options = new CompilerOptions();
 
-		CompilerOptions options = new CompilerOptions();
+			CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel( options );
 
-		CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel( options );
+			compiler.compile( externals, inputs, options );
 
-		compiler.compile( externals, inputs, options );
+			minified = UtilityStrings.trimAll( UtilityStrings.ifNullReturnEmpty( compiler.toSource() ) ).getBytes( scriptingContext.getCharset() );
+			cache.put( key, minified );
+		}
 
-		scriptingContext.resetAndWrite( UtilityStrings.trimAll( UtilityStrings.ifNullReturnEmpty( compiler.toSource() ) ) );
+		scriptingContext.resetAndWrite( minified );
 	}
 
 	@Override
@@ -15,13 +15,8 @@ import com.google.gson.GsonBuilder;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.Map;
 
 import io.amelia.scripting.ScriptingContext;
@@ -30,6 +25,16 @@ import io.amelia.scripting.ScriptingProcessor;
 
 public class LessProcessor implements ScriptingProcessor
 {
+	private static final RhinoScope lessScope = new RhinoScope( "less-rhino-1.7.4.js" );
+
+	private final ProcessedAssetCache cache = new ProcessedAssetCache( "less" );
+
+	@Override
+	public boolean isCacheable()
+	{
+		return true;
+	}
+
 	@Override
 	public void postEvaluate( ScriptingContext scriptingContext )
 	{
@@ -42,71 +47,70 @@ public class LessProcessor implements ScriptingProcessor
 		if ( !scriptingContext.getContentType().equals( "stylesheet/less" ) || !scriptingContext.getShell().equals( "less" ) )
 			return;
 
-		ClassLoader classLoader = getClass().getClassLoader();
-		InputStream inputStream = classLoader.getResourceAsStream( "less-rhino-1.7.4.js" );
+		String filename = "dummyFile.less";
 
-		try
-		{
-			Reader reader = new InputStreamReader( inputStream, "UTF-8" );
+		if ( scriptingContext.getFileName() != null && !scriptingContext.getFileName().isEmpty() )
+			filename = new File( scriptingContext.getFileName() ).getName();
 
-			Context context = Context.enter();
-			context.setOptimizationLevel( -1 ); // Without this, Rhino hits a 64K bytecode limit and fails
-
-			try
-			{
-				ScriptableObject globalScope = context.initStandardObjects();
+		Map<String, Object> compilerOptions = Maps.newHashMap();
 
-				context.evaluateReader( globalScope, reader, "less-rhino-1.7.4.js", 0, null );
+		compilerOptions.put( "filename", filename );
+		compilerOptions.put( "compress", true );
 
-				Scriptable compileScope = context.newObject( globalScope );
-				compileScope.setParentScope( globalScope );
-				compileScope.put( "lessSource", compileScope, scriptingContext.readString() );
+		String json = new GsonBuilder().create().toJson( compilerOptions );
+		String key = ProcessedAssetCache.key( "less:" + json, scriptingContext.readBytes() );
 
-				String filename = "dummyFile.less";
-
-				if ( scriptingContext.getFileName() != null && !scriptingContext.getFileName().isEmpty() )
-					filename = new File( scriptingContext.getFileName() ).getName();
+		byte[] cached = cache.get( key );
+		if ( cached != null )
+		{
+			scriptingContext.resetAndWrite( cached );
+			return;
+		}
 
-				/*
-				 * try
-				 * {
-				 * code = new LessImportParser().runParser( code, new File( fields.fileName ).getParentFile().getAbsoluteFile() );
-				 * }
-				 * catch ( ShellExecuteException e )
-				 * {
-				 * e.printStackTrace();
-				 * }
-				 */
+		Context context = RhinoScope.enter();
 
-				Map<String, Object> compilerOptions = Maps.newHashMap();
+		try
+		{
+			Scriptable compileScope = lessScope.newCompileScope( context );
+			compileScope.put( "lessSource", compileScope, scriptingContext.readString() );
 
-				compilerOptions.put( "filename", filename );
-				compilerOptions.put( "compress", true );
+			/*
+			 * try
+			 * {
+			 * code = new LessImportParser().runParser( code, new File( fields.fileName ).getParentFile().getAbsoluteFile() );
+			 * }
+			 * catch ( ShellExecuteException e )
+			 * {
+			 * e.printStackTrace();
+			 * }
+			 */
 
-				String json = new GsonBuilder().create().toJson( compilerOptions );
+			context.evaluateString( compileScope, "var parser = new less.Parser(" + json + ");", "less2css.js", 0, null );
 
-				context.evaluateString( compileScope, "var parser = new less.Parser(" + json + ");", "less2css.js", 0, null );
+			// String script = "parser.parse(lessSource, function (e, tree) { source = 'Hello World'; } );";
 
-				// String script = "parser.parse(lessSource, function (e, tree) { source = 'Hello World'; } );";
+			// Loader.getLogger().debug( "" + getScriptingContext.evaluateString( compileScope, script, "less2css.js", 0, null ) );
 
-				// Loader.getLogger().debug( "" + getScriptingContext.evaluateString( compileScope, script, "less2css.js", 0, null ) );
+			// Loader.getLogger().debug( "" + compileScope.get( "source" ) );
 
-				// Loader.getLogger().debug( "" + globalScope.get( "source" ) );
+			Object source = compileScope.get( "source", compileScope );
 
-				if ( globalScope.get( "source" ) != null && globalScope.get( "source" ) instanceof String )
-					scriptingContext.resetAndWrite( ( String ) globalScope.get( "source" ) );
-				else if ( globalScope.get( "source" ) != null )
-					ScriptingFactory.L.warning( "We did not get what we expected back from Less.js: " + globalScope.get( "source" ) );
-			}
-			finally
+			if ( source instanceof String )
 			{
-				reader.close();
-				Context.exit();
+				byte[] compiled = ( ( String ) source ).getBytes( scriptingContext.getCharset() );
+				cache.put( key, compiled );
+				scriptingContext.resetAndWrite( compiled );
 			}
+			else if ( source != null && source != Scriptable.NOT_FOUND )
+				ScriptingFactory.L.warning( "We did not get what we expected back from Less.js: " + source );
 		}
-		catch ( JavaScriptException | IOException e )
+		catch ( JavaScriptException e )
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			Context.exit();
+		}
 	}
 }
@@ -0,0 +1,211 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.processing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import io.amelia.engine.config.ConfigRegistry;
+import io.amelia.engine.scripting.ScriptingFactory;
+import io.amelia.engine.storage.StorageBus;
+import io.amelia.extra.UtilityEncrypt;
+import io.amelia.extra.UtilityIO;
+
+/**
+ * Content-addressed cache of processor output, so each version of an asset is only processed once.
+ * <p>
+ * Entries are keyed by a hash of the processor options and the unprocessed content and live in two size-bounded tiers: the least recently used
+ * entries are kept in memory and all entries are written under the cache path, where the least recently read files are deleted once the tier
+ * grows past its limit. Disk hits are promoted back into memory.
+ */
+public final class ProcessedAssetCache
+{
+	/**
+	 * Hashes the processor options and the content into a cache key.
+	 *
+	 * @param options The options that change the output, e.g., processor name and file name
+	 * @param content The unprocessed content
+	 *
+	 * @return The cache key
+	 */
+	public static String key( @Nonnull String options, @Nonnull byte[] content )
+	{
+		MessageDigest digest = UtilityEncrypt.getDigest( "MD5" );
+		digest.update( options.getBytes( StandardCharsets.UTF_8 ) );
+		digest.update( ( byte ) 0 );
+		digest.update( content );
+		return UtilityIO.encodeHexString( digest.digest() );
+	}
+
+	private final Path directory;
+	private final AtomicLong diskBytes = new AtomicLong( -1 );
+	private final long maxDiskBytes;
+	private final long maxMemoryBytes;
+	private final Map<String, byte[]> memory = new LinkedHashMap<>( 16, 0.75f, true );
+	private long memoryBytes;
+
+	/**
+	 * @param namespace The directory the entries are written to, e.g., the processor name
+	 */
+	public ProcessedAssetCache( @Nonnull String namespace )
+	{
+		directory = StorageBus.getPath( StorageBus.PATH_CACHE ).resolve( "processed" ).resolve( namespace );
+		maxMemoryBytes = ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_CACHE_MEMORY ) * 1024L * 1024L;
+		maxDiskBytes = ConfigRegistry.config.getValue( ScriptingFactory.Config.PROCESSORS_CACHE_DISK ) * 1024L * 1024L;
+	}
+
+	@Nullable
+	public byte[] get( @Nonnull String key )
+	{
+		synchronized ( memory )
+		{
+			byte[] value = memory.get( key );
+			if ( value != null )
+				return value;
+		}
+
+		if ( maxDiskBytes <= 0 )
+			return null;
+
+		Path file = getFile( key );
+		try
+		{
+			byte[] value = Files.readAllBytes( file );
+			// The modified time doubles as the last read time the disk tier is trimmed by
+			Files.setLastModifiedTime( file, FileTime.fromMillis( System.currentTimeMillis() ) );
+			putMemory( key, value );
+			return value;
+		}
+		catch ( IOException e )
+		{
+			return null;
+		}
+	}
+
+	private long getDiskBytes()
+	{
+		long bytes = diskBytes.get();
+		if ( bytes < 0 )
+		{
+			bytes = 0;
+			if ( Files.isDirectory( directory ) )
+				try ( Stream<Path> stream = Files.walk( directory ) )
+				{
+					bytes = stream.filter( Files::isRegularFile ).mapToLong( file -> file.toFile().length() ).sum();
+				}
+				catch ( IOException e )
+				{
+					ScriptingFactory.L.warning( "Failed to measure the processed asset cache " + UtilityIO.relPath( directory ), e );
+				}
+			diskBytes.compareAndSet( -1, bytes );
+		}
+		return diskBytes.get();
+	}
+
+	private Path getFile( String key )
+	{
+		return directory.resolve( key.substring( 0, 2 ) ).resolve( key );
+	}
+
+	public void put( @Nonnull String key, @Nonnull byte[] value )
+	{
+		putMemory( key, value );
+
+		if ( maxDiskBytes <= 0 || value.length > maxDiskBytes )
+			return;
+
+		Path file = getFile( key );
+		Path temp = file.resolveSibling( key + "." + Thread.currentThread().getId() + ".tmp" );
+		try
+		{
+			Files.createDirectories( file.getParent() );
+			Files.write( temp, value );
+			Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+
+			if ( getDiskBytes() >= 0 && diskBytes.addAndGet( value.length ) > maxDiskBytes )
+				trimDisk();
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to write the processed asset " + UtilityIO.relPath( file ), e );
+			try
+			{
+				Files.deleteIfExists( temp );
+			}
+			catch ( IOException ignore )
+			{
+				// Ignore
+			}
+		}
+	}
+
+	private void putMemory( String key, byte[] value )
+	{
+		if ( value.length > maxMemoryBytes )
+			return;
+
+		synchronized ( memory )
+		{
+			byte[] previous = memory.put( key, value );
+			memoryBytes += value.length - ( previous == null ? 0 : previous.length );
+
+			Iterator<byte[]> iterator = memory.values().iterator();
+			while ( memoryBytes > maxMemoryBytes && iterator.hasNext() )
+			{
+				memoryBytes -= iterator.next().length;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently read files until the disk tier is back under nine tenths of its limit.
+	 */
+	private synchronized void trimDisk()
+	{
+		if ( diskBytes.get() <= maxDiskBytes )
+			return;
+
+		try ( Stream<Path> stream = Files.walk( directory ) )
+		{
+			List<Path> files = stream.filter( Files::isRegularFile ).sorted( Comparator.comparingLong( file -> file.toFile().lastModified() ) ).collect( Collectors.toList() );
+			long target = maxDiskBytes * 9 / 10;
+
+			for ( Path file : files )
+			{
+				if ( diskBytes.get() <= target )
+					break;
+				long length = file.toFile().length();
+				if ( Files.deleteIfExists( file ) )
+					diskBytes.addAndGet( -length );
+			}
+		}
+		catch ( IOException e )
+		{
+			ScriptingFactory.L.warning( "Failed to trim the processed asset cache " + UtilityIO.relPath( directory ), e );
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ * <p>
+ * Copyright (c) 2019 Amelia Sara Greene <barelyaprincess@gmail.com>
+ * Copyright (c) 2019 Penoaks Publishing LLC <development@penoaks.com>
+ * <p>
+ * All Rights Reserved.
+ */
+package io.amelia.engine.scripting.processing;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A Rhino global scope with a compiler script evaluated into it, e.g., coffeescript.js, built once per thread and sealed so compiles can't
+ * leak into it. Each compile runs in a fresh scope whose parent is the shared one.
+ */
+final class RhinoScope
+{
+	private final String resource;
+	private final ThreadLocal<ScriptableObject> scopes;
+
+	/**
+	 * @param resource The classpath resource holding the compiler script
+	 */
+	RhinoScope( @Nonnull String resource )
+	{
+		this.resource = resource;
+		scopes = ThreadLocal.withInitial( this::initScope );
+	}
+
+	/**
+	 * Enters a Rhino context configured for the large compiler scripts. Must be paired with {@link Context#exit()}.
+	 */
+	static Context enter()
+	{
+		Context context = Context.enter();
+		context.setOptimizationLevel( -1 ); // Without this, Rhino hits a 64K bytecode limit and fails
+		return context;
+	}
+
+	/**
+	 * Creates a scope for a single compile on top of this thread's shared scope.
+	 *
+	 * @param context The entered context
+	 */
+	Scriptable newCompileScope( @Nonnull Context context )
+	{
+		ScriptableObject globalScope = scopes.get();
+		Scriptable compileScope = context.newObject( globalScope );
+		compileScope.setPrototype( globalScope );
+		compileScope.setParentScope( null );
+		return compileScope;
+	}
+
+	private ScriptableObject initScope()
+	{
+		Context context = enter();
+		try ( InputStream inputStream = getClass().getClassLoader().getResourceAsStream( resource ) )
+		{
+			if ( inputStream == null )
+				throw new IllegalStateException( "The resource " + resource + " is missing from the classpath." );
+
+			// The standard objects are left unsealed, the compiler scripts polyfill some of them
+			ScriptableObject globalScope = context.initStandardObjects();
+			try ( Reader reader = new InputStreamReader( inputStream, StandardCharsets.UTF_8 ) )
+			{
+				context.evaluateReader( globalScope, reader, resource, 0, null );
+			}
+			globalScope.sealObject();
+			return globalScope;
+		}
+		catch ( IOException e )
+		{
+			throw new IllegalStateException( "Failed to read the resource " + resource, e );
+		}
+		finally
+		{
+			Context.exit();
+		}
+	}
+}
@@ -41,6 +41,16 @@ public interface ScriptingProcessor
 		} ).filter( UtilityObjects::isNotNull );
 	}
 
+	/**
+	 * Indicates {@link #preEvaluate(ScriptingContext)} only depends on the context source and options, so it's also run when scripts are precompiled.
+	 *
+	 * @return True if the pre-evaluation is cacheable
+	 */
+	default boolean isCacheable()
+	{
+		return false;
+	}
+
 	void postEvaluate( ScriptingContext scriptingContext );
 
 	void preEvaluate( ScriptingContext scriptingContext );
@@ -22,6 +22,7 @@ public abstract class FileWatcher
 	private static final DefaultLooper looper = DefaultLooper.newParallelLooper();
 
 	protected final Path path;
+	private volatile boolean cancelled = false;
 	private long cycleCoolDown = 1;
 	private long lastCheck;
 	private long lastModified = 0;
@@ -46,8 +47,19 @@ public abstract class FileWatcher
 					readChanges();
 				}
 			}
+			else if ( lastModified != 0 )
+			{
+				lastModified = 0;
+				cycleCoolDown = 1;
+				readDeleted();
+			}
 
-			if ( !changesDetected && Delays.SECOND_5 * cycleCoolDown < Delays.MINUTE_15 )
+			if ( cancelled )
+				return;
+
+			// Files are edited constantly during development, so don't back off there
+			long maxDelay = Versioning.isDevelopment() ? Delays.SECOND_5 : Delays.MINUTE_15;
+			if ( !changesDetected && Delays.SECOND_5 * cycleCoolDown < maxDelay )
 				cycleCoolDown++;
 
 			task.setDelay( Delays.SECOND_5 * cycleCoolDown );
@@ -55,14 +67,31 @@ public abstract class FileWatcher
 		// The delay doesn't really matter - it's updated each cycle.
 	}
 
+	/**
+	 * Stops watching the file
+	 */
+	public final void cancel()
+	{
+		cancelled = true;
+		task.cancel();
+	}
+
 	public abstract void readChanges();
 
+	/**
+	 * Called once the file no longer exists, it's still watched in case it's recreated
+	 */
+	public void readDeleted()
+	{
+		// Do Nothing
+	}
+
 	/**
 	 * Resets the cool down period and runs the task sooner
 	 */
 	public final void reviveTask()
 	{
-		if ( cycleCoolDown == 1 )
+		if ( cycleCoolDown == 1 || cancelled )
 			return;
 		cycleCoolDown = 1;
 